@@ -16,19 +16,52 @@
 
 package org.example.gcp.bqclaude;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micronaut.core.annotation.Nullable;
+import io.micronaut.core.annotation.ReflectiveAccess;
+import io.micronaut.core.io.Readable;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.MediaType;
 import io.micronaut.http.annotation.Body;
 import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Header;
 import io.micronaut.http.annotation.Post;
+import io.micronaut.http.exceptions.HttpStatusException;
 import org.example.gcp.bqclaude.client.ClaudeClient;
+import org.example.gcp.bqclaude.client.Deadline;
+import org.example.gcp.bqclaude.client.ModelRouter;
+import org.example.gcp.bqclaude.client.ResponseCache;
+import org.example.gcp.bqclaude.client.SingleFlight;
+import org.example.gcp.bqclaude.client.StreamLimits;
 import io.micronaut.serde.annotation.Serdeable;
 import jakarta.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import org.example.gcp.bqclaude.client.Interactions;
 import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
 import org.example.gcp.bqclaude.client.Interactions.ClaudeResponse;
-import org.example.gcp.bqclaude.client.Interactions.Body.OK;
+import org.example.gcp.bqclaude.execution.BatchExecutor;
+import org.example.gcp.bqclaude.execution.CallerUsage;
+import org.example.gcp.bqclaude.execution.CompletionStore;
+import org.example.gcp.bqclaude.execution.FairScheduler;
+import org.example.gcp.bqclaude.execution.MessageBatchEngine;
+import org.example.gcp.bqclaude.execution.RowPacker;
+import org.example.gcp.bqclaude.exceptions.TokenExhaustedException;
+import org.example.gcp.bqclaude.metrics.ClaudeMetrics;
 
 /**
  * This controller acts as the entry point of the remote function logic. Micronaut will take part on
@@ -38,37 +71,377 @@ import org.example.gcp.bqclaude.client.Interactions.Body.OK;
 @Controller("/")
 public class BQClaudeRemoteFunctionController {
 
+  static final String INTERACTIVE_MODE = "interactive";
+  static final String MESSAGE_BATCHES_MODE = "message-batches";
+
   @Inject ClaudeClient claudeClient;
+  @Inject ModelRouter modelRouter;
   @Inject ClaudeConfiguration configuration;
+  @Inject ExecutionConfiguration executionConfiguration;
+  @Inject BatchExecutor batchExecutor;
+  @Inject FairScheduler fairScheduler;
+  @Inject CallerUsage callerUsage;
+  @Inject ResponseCache responseCache;
+  @Inject SingleFlight singleFlight;
+  @Inject CompletionStore completionStore;
+  @Inject MessageBatchEngine messageBatchEngine;
+  @Inject RetryConfiguration retryConfiguration;
+  @Inject ResponseConfiguration responseConfiguration;
+  @Inject RowPacker rowPacker;
+  @Inject ClaudeMetrics metrics;
+  @Inject ObjectMapper objectMapper;
 
   @Post
-  public RemoteFunctionResponse postMethod(@Body RemoteFunctionRequest request) {
-    var calls = Optional.ofNullable(request.calls()).orElse(List.of());
-    var responses =
-        calls.stream()
-            .map(
-                call ->
-                    ClaudeRequest.parse(
-                        configuration.model(),
-                        request.getMaxTokens(),
-                        request.getSystemPrompt(),
-                        call))
-            .map(claudeRequest -> claudeClient.sendMessageWithRetries(claudeRequest))
-            .collect(Collectors.groupingBy(response -> response.isOk()));
+  public HttpResponse<?> postMethod(
+      @Body Readable body, @Nullable @Header(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+    var start = System.nanoTime();
+    try (var calls = RemoteFunctionReader.read(objectMapper, inputStream(body))) {
+      var request = calls.request();
+      try {
+        return execute(request, calls, acceptsGzip(acceptEncoding));
+      } finally {
+        metrics.recordBatch(
+            request.isMessageBatchMode() ? MESSAGE_BATCHES_MODE : INTERACTIVE_MODE,
+            calls.rows(),
+            System.nanoTime() - start);
+      }
+    }
+  }
+
+  static InputStream inputStream(Readable body) {
+    try {
+      return body.asInputStream();
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Problems reading the remote function request.", ex);
+    }
+  }
+
+  /** Whether gzip is among the accepted codings, and not with a zero quality. */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (var coding : acceptEncoding.split(",")) {
+      var parameters = coding.split(";");
+      if (!"gzip".equalsIgnoreCase(parameters[0].trim())) {
+        continue;
+      }
+      for (var i = 1; i < parameters.length; i++) {
+        var parameter = parameters[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            return Double.parseDouble(parameter.substring(2)) > 0;
+          } catch (NumberFormatException ex) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Rows are parsed and dispatched as they are read from the request, and their replies written
+   * as they complete, so only the rows in flight are kept in memory.
+   */
+  HttpResponse<?> execute(
+      RemoteFunctionRequest request, RemoteFunctionReader calls, boolean acceptsGzip) {
+    // checked before any row is sent
+    checkModels(request);
+    callerUsage.admit(request.caller(), request.sessionUser());
+    var replies = new RepliesWriter(objectMapper, request.getReplyFields());
+    var rows = rows(request, calls);
+    var failed = new ArrayList<ClaudeResponse>();
+    Consumer<ClaudeResponse> onReply =
+        response -> {
+          if (request.isPerRowErrors()) {
+            replies.write(response.reply());
+          } else if (!response.isOk()) {
+            failed.add(response);
+          } else if (failed.isEmpty()) {
+            replies.write(response.okResponse());
+          }
+        };
+    if (request.isMessageBatchMode()) {
+      var claudeRequests = new ArrayList<ClaudeRequest>();
+      rows.forEachRemaining(row -> claudeRequests.add(row.claudeRequest()));
+      messageBatchEngine
+          .execute(request.requestId(), claudeRequests)
+          .forEach(
+              response -> {
+                record(request, response);
+                onReply.accept(response);
+              });
+    } else {
+      executeInteractive(
+          request, request.getDeadline(retryConfiguration.deadline()), rows, onReply);
+    }
+    // the batch gets answered, only the rate limited ones are retried by BigQuery
+    completionStore.forget(request.requestId(), calls.rows());
     // check if we got any errors
-    return responses.getOrDefault(false, List.of()).isEmpty()
-        ? RemoteFunctionResponse.OK(
-            responses.getOrDefault(true, List.of()).stream()
-                .map(ClaudeResponse::okResponse)
-                .toList())
-        : RemoteFunctionResponse.Error(
-            "Errors ocurred in the interaction with claude: \n"
-                + responses.getOrDefault(false, List.of()).stream()
-                    .map(ClaudeResponse::toString)
-                    .toString());
+    if (!failed.isEmpty()) {
+      return HttpResponse.ok(
+          RemoteFunctionResponse.Error(
+              "Errors ocurred in the interaction with claude: \n"
+                  + failed.stream()
+                      .map(ClaudeResponse::toString)
+                      .collect(Collectors.joining("\n"))));
+    }
+    replies.finish();
+    if (acceptsGzip
+        && responseConfiguration.compression()
+        && replies.size() >= responseConfiguration.compressionThreshold()) {
+      return HttpResponse.ok(replies.compress())
+          .contentType(MediaType.APPLICATION_JSON_TYPE)
+          .header(HttpHeaders.CONTENT_ENCODING, "gzip");
+    }
+    return HttpResponse.ok(replies).contentType(MediaType.APPLICATION_JSON_TYPE);
+  }
+
+  /** Parses the calls into Claude requests as they are read, along with their position. */
+  Iterator<Row> rows(RemoteFunctionRequest request, Iterator<List<String>> calls) {
+    return new Iterator<>() {
+      int index = 0;
+
+      @Override
+      public boolean hasNext() {
+        return calls.hasNext();
+      }
+
+      @Override
+      public Row next() {
+        return new Row(
+            index++,
+            ClaudeRequest.parse(
+                request.getModel(configuration.model()),
+                request.getMaxTokens(),
+                request.getSystemPrompt(),
+                request.isPromptCaching(),
+                calls.next()));
+      }
+    };
+  }
+
+  void executeInteractive(
+      RemoteFunctionRequest request,
+      Deadline deadline,
+      Iterator<Row> rows,
+      Consumer<ClaudeResponse> onReply) {
+    var parallelism = batchExecutor.parallelism(request.getMaxConcurrency());
+    if (request.getPackRows() > 1) {
+      batchExecutor.streamInOrder(
+          packs(rows, rowPacker.packSize(request.getPackRows())),
+          parallelism,
+          pack -> executePack(request, deadline, pack),
+          responses -> responses.forEach(onReply));
+      return;
+    }
+    // rows are executed concurrently but the replies keep the order of the calls
+    batchExecutor.streamInOrder(
+        rows,
+        parallelism,
+        row -> executeRow(request, deadline, row.index(), row.claudeRequest()),
+        onReply);
+  }
+
+  /** Groups the consecutive rows into packs as they are read. */
+  static Iterator<List<Row>> packs(Iterator<Row> rows, int packSize) {
+    return new Iterator<>() {
+      @Override
+      public boolean hasNext() {
+        return rows.hasNext();
+      }
+
+      @Override
+      public List<Row> next() {
+        var pack = new ArrayList<Row>(packSize);
+        while (pack.size() < packSize && rows.hasNext()) {
+          pack.add(rows.next());
+        }
+        return pack;
+      }
+    };
+  }
+
+  /**
+   * The rows of a pack still pending are sent as a single request. If the reply can not be split
+   * back into the rows, they are executed one by one, which is also the case for a pack with a
+   * single pending row.
+   */
+  CompletableFuture<List<ClaudeResponse>> executePack(
+      RemoteFunctionRequest request, Deadline deadline, List<Row> rows) {
+    var pending =
+        rows.stream()
+            .filter(row -> completionStore.lookup(request.requestId(), row.index()).isEmpty())
+            .toList();
+    if (pending.size() < 2) {
+      return executeRows(request, deadline, rows);
+    }
+    return sendMessage(
+            request, deadline, rowPacker.pack(pending.stream().map(Row::claudeRequest).toList()))
+        .thenApply(packed -> rowPacker.unpack(packed, pending.size()))
+        // recorded ahead of the stages returned for the pack, which a failed batch cancels
+        .thenApply(
+            unpacked -> {
+              unpacked.ifPresent(
+                  responses -> {
+                    for (int index = 0; index < pending.size(); index++) {
+                      completionStore.record(
+                          request.requestId(), pending.get(index).index(), responses.get(index));
+                    }
+                  });
+              return unpacked;
+            })
+        // rate limiting still fails the pack, any other error falls back to the single rows
+        .exceptionallyCompose(
+            error ->
+                rowFailure(error).thenApply(__ -> Optional.<List<ClaudeResponse>>empty()))
+        .thenCompose(
+            unpacked -> {
+              if (unpacked.isEmpty()) {
+                return executeRows(request, deadline, rows);
+              }
+              var responses = new ArrayList<CompletableFuture<ClaudeResponse>>(rows.size());
+              for (var row : rows) {
+                var index = pending.indexOf(row);
+                responses.add(
+                    index < 0
+                        ? executeRow(request, deadline, row.index(), row.claudeRequest())
+                        : CompletableFuture.completedFuture(unpacked.get().get(index)));
+              }
+              return allOf(responses);
+            });
+  }
+
+  CompletableFuture<List<ClaudeResponse>> executeRows(
+      RemoteFunctionRequest request, Deadline deadline, List<Row> rows) {
+    return allOf(
+        rows.stream()
+            .map(row -> executeRow(request, deadline, row.index(), row.claudeRequest()))
+            .toList());
+  }
+
+  static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+    return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+        .thenApply(__ -> futures.stream().map(CompletableFuture::join).toList());
+  }
+
+  /**
+   * Rows completed on a previous attempt of the same BigQuery request are not executed again. When
+   * reporting errors per row, only rate limiting fails the whole batch, so BigQuery retries it
+   * later. The rows still in flight when the batch fails are recorded once they complete, the
+   * returned stage is a copy so cancelling it does not skip the record.
+   */
+  CompletableFuture<ClaudeResponse> executeRow(
+      RemoteFunctionRequest request, Deadline deadline, int row, ClaudeRequest claudeRequest) {
+    var completed = completionStore.lookup(request.requestId(), row);
+    if (completed.isPresent()) {
+      return CompletableFuture.completedFuture(completed.get());
+    }
+    var response =
+        sendMessage(request, deadline, claudeRequest)
+            .thenApply(
+                claudeResponse -> completionStore.record(request.requestId(), row, claudeResponse))
+            .copy();
+    return request.isPerRowErrors()
+        ? response.exceptionallyCompose(error -> rowFailure(error))
+        : response;
+  }
+
+  static CompletableFuture<ClaudeResponse> rowFailure(Throwable error) {
+    var cause =
+        error instanceof CompletionException && error.getCause() != null
+            ? error.getCause()
+            : error;
+    if (cause instanceof TokenExhaustedException) {
+      return CompletableFuture.failedFuture(cause);
+    }
+    return CompletableFuture.completedFuture(
+        new ClaudeResponse(
+            null,
+            Interactions.Body.Failed.of("api_error", String.valueOf(cause.getMessage())),
+            Map.of()));
+  }
+
+  CompletableFuture<ClaudeResponse> sendMessage(
+      RemoteFunctionRequest request, Deadline deadline, ClaudeRequest claudeRequest) {
+    return responseCache.enabled() && request.isCacheEnabled()
+        ? responseCache.getOrSend(claudeRequest, cr -> sendDeduplicated(request, deadline, cr))
+        : sendDeduplicated(request, deadline, claudeRequest);
+  }
+
+  /**
+   * Streamed rows are not shared, their replies are cut by the stream limits of each routine and
+   * are not part of the request digest. Every row served by a request is accounted to its own
+   * caller, replies served from the cache are not.
+   */
+  CompletableFuture<ClaudeResponse> sendDeduplicated(
+      RemoteFunctionRequest request, Deadline deadline, ClaudeRequest claudeRequest) {
+    return (executionConfiguration.singleFlight() && !request.isStreaming()
+            ? singleFlight.send(claudeRequest, cr -> send(request, deadline, cr))
+            : send(request, deadline, claudeRequest))
+        .whenComplete(
+            (response, error) -> {
+              if (response != null) {
+                record(request, response);
+              }
+            });
+  }
+
+  /** Rows wait for the turn of their caller when the tokens are shared fairly between them. */
+  CompletableFuture<ClaudeResponse> send(
+      RemoteFunctionRequest request, Deadline deadline, ClaudeRequest claudeRequest) {
+    if (!fairScheduler.enabled()) {
+      return sendNow(request, deadline, claudeRequest);
+    }
+    return fairScheduler.submit(
+        fairScheduler.caller(request.caller(), request.sessionUser()),
+        claudeRequest,
+        () -> sendNow(request, deadline, claudeRequest));
+  }
+
+  /** The hedged requests that lost are charged with the usage of the reply that won. */
+  void record(RemoteFunctionRequest request, ClaudeResponse response) {
+    callerUsage.record(
+        request.caller(),
+        request.sessionUser(),
+        response.response() instanceof Interactions.Body.OK ok ? ok.usage() : null,
+        1 + response.hedgeLosers());
   }
 
+  CompletableFuture<ClaudeResponse> sendNow(
+      RemoteFunctionRequest request, Deadline deadline, ClaudeRequest claudeRequest) {
+    var fallbackModels = request.getFallbackModels(modelRouter.fallbackModels());
+    if (request.isStreaming()) {
+      return claudeClient.sendMessageStreaming(
+          claudeRequest, request.getStreamLimits(), fallbackModels, deadline);
+    }
+    return executionConfiguration.nonBlocking()
+        ? claudeClient.sendMessageAsync(claudeRequest, fallbackModels, deadline)
+        : batchExecutor.onVirtualThread(
+            () -> claudeClient.sendMessageWithRetries(claudeRequest, fallbackModels, deadline));
+  }
+
+  /** Rejects the batches asking for models the function is not configured to send rows to. */
+  void checkModels(RemoteFunctionRequest request) {
+    var allowed = modelRouter.allowedModels(configuration.model());
+    var models = new ArrayList<String>();
+    models.add(request.getModel(configuration.model()));
+    models.addAll(request.getFallbackModels(modelRouter.fallbackModels()));
+    for (var model : models) {
+      if (!allowed.contains(model)) {
+        throw new HttpStatusException(
+            HttpStatus.BAD_REQUEST, "Unknown model " + model + ", expected one of " + allowed);
+      }
+    }
+  }
+
+  /** A call of the batch, parsed into its Claude request, along with its position. */
+  record Row(int index, ClaudeRequest claudeRequest) {}
+
   @Serdeable
+  @ReflectiveAccess
   public record RemoteFunctionRequest(
       String requestId,
       String caller,
@@ -83,6 +456,122 @@ public class BQClaudeRemoteFunctionController {
               .getOrDefault("max-tokens", "1024"));
     }
 
+    int getMaxConcurrency() {
+      return Integer.parseInt(
+          Optional.ofNullable(userDefinedContext)
+              .orElse(Map.of())
+              .getOrDefault("max-concurrency", String.valueOf(Integer.MAX_VALUE)));
+    }
+
+    boolean isCacheEnabled() {
+      return Boolean.parseBoolean(
+          Optional.ofNullable(userDefinedContext).orElse(Map.of()).getOrDefault("cache", "true"));
+    }
+
+    boolean isPerRowErrors() {
+      return Boolean.parseBoolean(
+          Optional.ofNullable(userDefinedContext)
+              .orElse(Map.of())
+              .getOrDefault("per-row-errors", "false"));
+    }
+
+    /** Offline enrichment jobs can go through the Message Batches API instead. */
+    boolean isMessageBatchMode() {
+      return MESSAGE_BATCHES_MODE.equals(
+          Optional.ofNullable(userDefinedContext)
+              .orElse(Map.of())
+              .getOrDefault("execution-mode", INTERACTIVE_MODE));
+    }
+
+    /**
+     * Streamed replies can be cut short by a per row deadline or by a budget of generated
+     * characters, returning what was generated until then.
+     */
+    boolean isStreaming() {
+      return Boolean.parseBoolean(
+          Optional.ofNullable(userDefinedContext).orElse(Map.of()).getOrDefault("stream", "false"));
+    }
+
+    StreamLimits getStreamLimits() {
+      var context = Optional.ofNullable(userDefinedContext).orElse(Map.of());
+      return new StreamLimits(
+          Optional.ofNullable(context.get("stream-deadline-ms"))
+              .map(millis -> Duration.ofMillis(Long.parseLong(millis)))
+              .orElse(null),
+          Integer.parseInt(context.getOrDefault("stream-max-characters", "0")));
+    }
+
+    /** The configured deadline budget can only be shortened by the routine. */
+    Deadline getDeadline(Duration configured) {
+      return Deadline.after(
+          Optional.ofNullable(userDefinedContext)
+              .map(context -> context.get("deadline-seconds"))
+              .map(seconds -> Duration.ofSeconds(Long.parseLong(seconds)))
+              .filter(requested -> requested.compareTo(configured) < 0)
+              .orElse(configured));
+    }
+
+    /** Short rows can be answered several at a time, 1 sends a request per row. */
+    int getPackRows() {
+      return Integer.parseInt(
+          Optional.ofNullable(userDefinedContext).orElse(Map.of()).getOrDefault("pack-rows", "1"));
+    }
+
+    /** Every row shares the system prompt, so it can be cached after the first row uses it. */
+    boolean isPromptCaching() {
+      return Boolean.parseBoolean(
+          Optional.ofNullable(userDefinedContext)
+              .orElse(Map.of())
+              .getOrDefault("prompt-caching", "false"));
+    }
+
+    /** The model asked for by the routine, instead of the configured one. */
+    String getModel(String configured) {
+      return Optional.ofNullable(userDefinedContext)
+          .map(context -> context.get("model"))
+          .filter(model -> !model.isBlank())
+          .orElse(configured);
+    }
+
+    /**
+     * Comma separated models that can answer the rows when the model asked for can not, an empty
+     * list keeps the rows on it.
+     */
+    List<String> getFallbackModels(List<String> configured) {
+      return Optional.ofNullable(userDefinedContext)
+          .map(context -> context.get("fallback-models"))
+          .map(ModelRouter::models)
+          .orElse(configured);
+    }
+
+    /**
+     * Comma separated fields of the successful replies to return, null returns them whole. Besides
+     * the fields of Claude API messages, {@code text} returns the text of their content.
+     */
+    List<String> getReplyFields() {
+      var fields =
+          Optional.ofNullable(userDefinedContext)
+              .map(context -> context.get("reply-fields"))
+              .map(
+                  value ->
+                      Arrays.stream(value.split(","))
+                          .map(String::trim)
+                          .filter(field -> !field.isEmpty())
+                          .toList())
+              .filter(list -> !list.isEmpty())
+              .orElse(null);
+      if (fields != null) {
+        for (var field : fields) {
+          if (!RepliesWriter.FIELDS.contains(field)) {
+            throw new HttpStatusException(
+                HttpStatus.BAD_REQUEST,
+                "Unknown reply field " + field + ", expected some of " + RepliesWriter.FIELDS);
+          }
+        }
+      }
+      return fields;
+    }
+
     String getSystemPrompt() {
       return Optional.ofNullable(userDefinedContext)
           .orElse(Map.of())
@@ -90,10 +579,15 @@ public class BQClaudeRemoteFunctionController {
     }
   }
 
+  /**
+   * Replies are Claude API message objects, or error objects for the rows that failed when errors
+   * are reported per row.
+   */
   @Serdeable
-  public record RemoteFunctionResponse(List<OK> replies, String errorMessage) {
+  @ReflectiveAccess
+  public record RemoteFunctionResponse(List<Interactions.Body> replies, String errorMessage) {
 
-    static RemoteFunctionResponse OK(List<OK> replies) {
+    static RemoteFunctionResponse OK(List<Interactions.Body> replies) {
       return new RemoteFunctionResponse(replies, null);
     }
 
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.bind.annotation.Bindable;
+
+/**
+ * Controls the adaptive limit of requests in flight per API token. Each token starts with the
+ * configured maximum of rows in flight per token, the limit then grows by one request every time a
+ * full limit worth of requests succeeds and shrinks by the backoff ratio when Claude API rejects
+ * requests for rate limiting or overload. Latency rising above the tolerated multiple of its
+ * baseline lowers the limit by one request. When disabled the limit stays fixed.
+ */
+@ConfigurationProperties("claude.concurrency")
+public record ConcurrencyConfiguration(
+    @Bindable(defaultValue = "true") boolean adaptive,
+    @Bindable(defaultValue = "1") int minLimit,
+    @Bindable(defaultValue = "64") int maxLimit,
+    @Bindable(defaultValue = "0.5") double backoffRatio,
+    @Bindable(defaultValue = "2.0") double latencyTolerance) {}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.bind.annotation.Bindable;
+
+/**
+ * Controls how the rows of a BigQuery batch are executed against Claude API. When concurrent
+ * execution is enabled every row runs on its own virtual thread, bounded by the number of rows
+ * allowed in flight for a single batch and by the number of requests allowed in flight for a
+ * single API token, which is where the adaptive limit of each token starts. Non blocking execution
+ * relies on the reactive HTTP client instead, and no thread is held while rows are in flight or
+ * waiting for a retry. With single flight enabled, identical requests in flight at the same time
+ * share one Claude API call.
+ */
+@ConfigurationProperties("claude.execution")
+public record ExecutionConfiguration(
+    @Bindable(defaultValue = "true") boolean concurrent,
+    @Bindable(defaultValue = "32") int maxConcurrentRows,
+    @Bindable(defaultValue = "8") int maxConcurrentRowsPerToken,
+    @Bindable(defaultValue = "false") boolean nonBlocking,
+    @Bindable(defaultValue = "true") boolean singleFlight) {}
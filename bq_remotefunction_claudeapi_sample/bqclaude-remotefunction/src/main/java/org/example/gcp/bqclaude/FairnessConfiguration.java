@@ -0,0 +1,39 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.annotation.Nullable;
+import io.micronaut.core.bind.annotation.Bindable;
+import java.util.List;
+
+/**
+ * Controls how the API tokens are shared between the BigQuery callers executing rows at the same
+ * time. Rows are queued per caller, identified by the session user or, with the {@code caller}
+ * key, by the query sending them, and started by deficit round robin: on each round a caller can
+ * start rows worth its weight times the quantum of estimated tokens. Weights are given as
+ * {@code name=weight} entries, callers not listed get the default weight. The rows in flight are
+ * bounded by the sum of the in flight limits of the tokens, or by the maximum when positive.
+ */
+@ConfigurationProperties("claude.fairness")
+public record FairnessConfiguration(
+    @Bindable(defaultValue = "true") boolean enabled,
+    @Bindable(defaultValue = "session-user") String key,
+    @Nullable List<String> weights,
+    @Bindable(defaultValue = "1") int defaultWeight,
+    @Bindable(defaultValue = "4096") long quantum,
+    @Bindable(defaultValue = "0") int maxInFlight) {}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.bind.annotation.Bindable;
+import java.time.Duration;
+
+/**
+ * Controls the hedging of slow Claude API requests. When enabled, a request without a reply once
+ * the percentile of the latency of the recent replies has passed, and never before the minimum
+ * delay, is sent again with another token, the first reply wins and the other request is
+ * cancelled. The extra requests are bounded by the budget, as a ratio of the requests sent.
+ */
+@ConfigurationProperties("claude.hedging")
+public record HedgingConfiguration(
+    @Bindable(defaultValue = "false") boolean enabled,
+    @Bindable(defaultValue = "95") double percentile,
+    @Bindable(defaultValue = "1s") Duration minDelay,
+    @Bindable(defaultValue = "0.05") double budget) {}
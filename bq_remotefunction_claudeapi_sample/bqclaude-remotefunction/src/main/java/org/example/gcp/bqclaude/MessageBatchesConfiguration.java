@@ -0,0 +1,32 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.bind.annotation.Bindable;
+import java.time.Duration;
+
+/**
+ * Controls the execution of BigQuery batches through the Message Batches API. Jobs are remembered
+ * for a bit longer than the 24 hours Claude API takes to expire them, and their status is checked
+ * at most once per poll interval no matter how often BigQuery retries.
+ */
+@ConfigurationProperties("claude.batches")
+public record MessageBatchesConfiguration(
+    @Bindable(defaultValue = "10000") long maxJobs,
+    @Bindable(defaultValue = "25h") Duration jobTtl,
+    @Bindable(defaultValue = "30s") Duration pollInterval) {}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.bind.annotation.Bindable;
+
+/**
+ * Bounds the packing of several rows into a single Claude API request. A routine asks for packing
+ * and for the number of rows per request, which can not go over the configured maximum. The max
+ * tokens of a packed request add up the ones of its rows, up to the configured maximum, which
+ * should not exceed the max output tokens of the model in use.
+ */
+@ConfigurationProperties("claude.packing")
+public record PackingConfiguration(
+    @Bindable(defaultValue = "50") int maxRows,
+    @Bindable(defaultValue = "8192") int maxTokens) {}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.annotation.Nullable;
+import io.micronaut.core.bind.annotation.Bindable;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Controls the accounting of the Claude API usage of the BigQuery callers and the quotas admitting
+ * their batches. Requests and tokens are counted per query and per session user over fixed
+ * windows, and a batch from a session user, or from a query with the {@code caller} key, that
+ * already consumed its quota of input and output tokens in the current window is rejected before
+ * any of its rows is sent. Quotas are given as {@code name=tokens} entries, callers not listed get
+ * the default quota, zero meaning unlimited. At most the max entries are counted at once, the
+ * batches of callers that would need more are rejected until a window passes.
+ */
+@ConfigurationProperties("claude.quotas")
+public record QuotaConfiguration(
+    @Bindable(defaultValue = "true") boolean enabled,
+    @Bindable(defaultValue = "session-user") String key,
+    @Bindable(defaultValue = "1h") Duration window,
+    @Nullable List<String> limits,
+    @Bindable(defaultValue = "0") long defaultLimit,
+    @Bindable(defaultValue = "10000") int maxEntries) {}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.core.io.Readable;
+import io.micronaut.core.type.Argument;
+import io.micronaut.core.type.Headers;
+import io.micronaut.http.MediaType;
+import io.micronaut.http.annotation.Consumes;
+import io.micronaut.http.body.MessageBodyReader;
+import io.micronaut.http.codec.CodecException;
+import jakarta.inject.Singleton;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Hands the remote function request body over as a {@link Readable} when served by Netty, as the
+ * Cloud Functions runtime does, so the controller reads the calls from it the same way. Netty
+ * receives the whole body before binding it, the Cloud Functions runtime reads it from the servlet
+ * request as the rows are dispatched.
+ */
+@Singleton
+@Consumes(MediaType.APPLICATION_JSON)
+final class ReadableBodyReader implements MessageBodyReader<Readable> {
+
+  @Override
+  public Readable read(
+      Argument<Readable> type, MediaType mediaType, Headers httpHeaders, InputStream inputStream)
+      throws CodecException {
+    try {
+      return new BodyReadable(inputStream.readAllBytes());
+    } catch (IOException ex) {
+      throw new CodecException("Problems reading the remote function request.", ex);
+    }
+  }
+
+  record BodyReadable(byte[] content) implements Readable {
+
+    @Override
+    public InputStream asInputStream() {
+      return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public boolean exists() {
+      return true;
+    }
+
+    @Override
+    public String getName() {
+      return "body";
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.example.gcp.bqclaude.BQClaudeRemoteFunctionController.RemoteFunctionRequest;
+
+/**
+ * Reads a BigQuery request with a streaming JSON parser. The fields of the request are bound as
+ * they come, and then the calls are handed out one row at a time, so a row is only parsed when
+ * there is room to execute it and the memory used by a batch follows its rows in flight instead of
+ * its size.
+ *
+ * <p>BigQuery sends the calls after the rest of the fields, and leaves out the user defined context
+ * when the routine has none. Calls coming after the request id are streamed, with the context read
+ * until then, or an empty one, and a context coming after them rejects the request since its rows
+ * already ran without it. Calls coming before the request id are buffered until the whole request
+ * is read, since the rows are tracked by it.
+ */
+final class RemoteFunctionReader implements Iterator<List<String>>, AutoCloseable {
+
+  private static final TypeReference<Map<String, String>> CONTEXT = new TypeReference<>() {};
+  private static final TypeReference<List<String>> ROW = new TypeReference<>() {};
+  private static final TypeReference<List<List<String>>> ROWS = new TypeReference<>() {};
+
+  private final ObjectMapper objectMapper;
+  private final JsonParser parser;
+  private String requestId;
+  private String caller;
+  private String sessionUser;
+  private Map<String, String> userDefinedContext;
+  private Iterator<List<String>> buffered = List.<List<String>>of().iterator();
+  private boolean streaming = false;
+  private boolean streamed = false;
+  private JsonToken next;
+  private int rows = 0;
+
+  private RemoteFunctionReader(ObjectMapper objectMapper, JsonParser parser) {
+    this.objectMapper = objectMapper;
+    this.parser = parser;
+  }
+
+  /** Reads the request up to its calls, which are then read on demand. */
+  static RemoteFunctionReader read(ObjectMapper objectMapper, InputStream body) {
+    try {
+      var reader =
+          new RemoteFunctionReader(objectMapper, objectMapper.getFactory().createParser(body));
+      if (reader.parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new HttpStatusException(
+            HttpStatus.BAD_REQUEST, "The remote function request should be a JSON object.");
+      }
+      reader.readFields();
+      return reader;
+    } catch (IOException ex) {
+      throw failure(ex);
+    }
+  }
+
+  /** The request without its calls. */
+  RemoteFunctionRequest request() {
+    return new RemoteFunctionRequest(requestId, caller, sessionUser, userDefinedContext, null);
+  }
+
+  /** The number of rows handed out so far. */
+  int rows() {
+    return rows;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (!streaming) {
+      return buffered.hasNext();
+    }
+    try {
+      if (next == null) {
+        next = parser.nextToken();
+      }
+      if (next == JsonToken.END_ARRAY) {
+        // the rest of the request comes after the calls
+        streaming = false;
+        next = null;
+        readFields();
+        return buffered.hasNext();
+      }
+      return true;
+    } catch (IOException ex) {
+      throw failure(ex);
+    }
+  }
+
+  @Override
+  public List<String> next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException("No more calls in the request.");
+    }
+    rows++;
+    if (!streaming) {
+      return buffered.next();
+    }
+    try {
+      next = null;
+      return objectMapper.readValue(parser, ROW);
+    } catch (IOException ex) {
+      throw failure(ex);
+    }
+  }
+
+  /** Reads fields until the end of the request, or until the calls can be streamed. */
+  void readFields() throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      var field = parser.currentName();
+      var token = parser.nextToken();
+      switch (field) {
+        case "requestId" -> requestId = parser.getValueAsString();
+        case "caller" -> caller = parser.getValueAsString();
+        case "sessionUser" -> sessionUser = parser.getValueAsString();
+        case "userDefinedContext" -> {
+          if (streamed) {
+            throw new HttpStatusException(
+                HttpStatus.BAD_REQUEST,
+                "The user defined context should come before the calls of the request.");
+          }
+          userDefinedContext = objectMapper.readValue(parser, CONTEXT);
+        }
+        case "calls" -> {
+          if (token == JsonToken.START_ARRAY && requestId != null) {
+            // the rows run with the context read so far
+            userDefinedContext = userDefinedContext != null ? userDefinedContext : Map.of();
+            streaming = true;
+            streamed = true;
+            return;
+          }
+          var calls = objectMapper.readValue(parser, ROWS);
+          buffered = calls != null ? calls.iterator() : buffered;
+        }
+        default -> parser.skipChildren();
+      }
+    }
+  }
+
+  static RuntimeException failure(IOException ex) {
+    if (ex instanceof JsonProcessingException malformed) {
+      return new HttpStatusException(
+          HttpStatus.BAD_REQUEST,
+          "Malformed remote function request: " + malformed.getOriginalMessage());
+    }
+    return new UncheckedIOException("Problems reading the remote function request.", ex);
+  }
+
+  @Override
+  public void close() {
+    try {
+      parser.close();
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Problems closing the remote function request.", ex);
+    }
+  }
+}
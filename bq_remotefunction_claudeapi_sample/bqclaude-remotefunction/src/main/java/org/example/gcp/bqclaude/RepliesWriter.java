@@ -0,0 +1,178 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micronaut.core.io.Writable;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.example.gcp.bqclaude.client.Interactions;
+
+/**
+ * Writes the replies of a batch as they complete, in the order of its rows, producing the same
+ * JSON as {@link BQClaudeRemoteFunctionController.RemoteFunctionResponse}. BigQuery retries a batch
+ * answered with a 429, so the status of the response can only be decided once every row is done;
+ * until then the replies are kept serialized, which takes far less memory than the responses they
+ * come from.
+ *
+ * <p>Successful replies can be projected to some of their fields, plus {@code text} for the text of
+ * their content, so BigQuery gets only what the query reads. Error replies are always complete.
+ * Once finished, the replies can be compressed with gzip.
+ */
+final class RepliesWriter implements Writable {
+
+  static final List<String> FIELDS =
+      List.of(
+          "text",
+          "content",
+          "id",
+          "model",
+          "role",
+          "type",
+          "stop_reason",
+          "stop_sequence",
+          "usage");
+
+  private final ObjectMapper objectMapper;
+  private final List<String> fields;
+  private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  private final JsonGenerator generator;
+  private boolean compressed = false;
+
+  RepliesWriter(ObjectMapper objectMapper) {
+    this(objectMapper, null);
+  }
+
+  /** Writes only the given fields of the successful replies, all of them when null. */
+  RepliesWriter(ObjectMapper objectMapper, List<String> fields) {
+    this.objectMapper = objectMapper;
+    this.fields = fields;
+    try {
+      this.generator = objectMapper.getFactory().createGenerator(buffer);
+      generator.writeStartObject();
+      generator.writeArrayFieldStart("replies");
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Problems starting the replies.", ex);
+    }
+  }
+
+  void write(Interactions.Body reply) {
+    try {
+      if (fields != null && reply instanceof Interactions.Body.OK ok) {
+        writeProjected(ok);
+      } else {
+        objectMapper.writeValue(generator, reply);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Problems writing a reply.", ex);
+    }
+  }
+
+  /** Fields missing on the reply are left out. */
+  void writeProjected(Interactions.Body.OK reply) throws IOException {
+    generator.writeStartObject();
+    for (var field : fields) {
+      var value =
+          switch (field) {
+            case "text" -> text(reply);
+            case "content" -> reply.content();
+            case "id" -> reply.id();
+            case "model" -> reply.model();
+            case "role" -> reply.role();
+            case "type" -> reply.type();
+            case "stop_reason" -> reply.stopReason();
+            case "stop_sequence" -> reply.stopSequence();
+            case "usage" -> reply.usage();
+            default ->
+                throw new HttpStatusException(
+                    HttpStatus.BAD_REQUEST, "Unknown reply field: " + field);
+          };
+      if (value != null) {
+        generator.writeFieldName(field);
+        objectMapper.writeValue(generator, value);
+      }
+    }
+    generator.writeEndObject();
+  }
+
+  /** The text blocks of the content, joined. */
+  static String text(Interactions.Body.OK reply) {
+    if (reply.content() == null) {
+      return null;
+    }
+    var text = new StringBuilder();
+    for (var content : reply.content()) {
+      if (content.text() != null) {
+        text.append(content.text());
+      }
+    }
+    return text.toString();
+  }
+
+  /** Closes the replies, after which the response can be written. */
+  RepliesWriter finish() {
+    try {
+      generator.writeEndArray();
+      generator.writeEndObject();
+      generator.close();
+      return this;
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Problems finishing the replies.", ex);
+    }
+  }
+
+  /** Size of the finished replies as they will be written. */
+  int size() {
+    return buffer.size();
+  }
+
+  /** Compresses the finished replies, which can then only be written as bytes. */
+  RepliesWriter compress() {
+    var compressed = new ByteArrayOutputStream(Math.max(32, buffer.size() / 4));
+    try (var gzip = new GZIPOutputStream(compressed)) {
+      buffer.writeTo(gzip);
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Problems compressing the replies.", ex);
+    }
+    this.buffer = compressed;
+    this.compressed = true;
+    return this;
+  }
+
+  @Override
+  public void writeTo(OutputStream outputStream, Charset charset) throws IOException {
+    buffer.writeTo(outputStream);
+  }
+
+  @Override
+  public void writeTo(Writer out) throws IOException {
+    if (compressed) {
+      throw new IllegalStateException("Compressed replies can only be written as bytes.");
+    }
+    out.write(buffer.toString(StandardCharsets.UTF_8));
+  }
+}
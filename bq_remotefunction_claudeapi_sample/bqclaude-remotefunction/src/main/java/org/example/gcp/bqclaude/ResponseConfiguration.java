@@ -0,0 +1,29 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.bind.annotation.Bindable;
+
+/**
+ * Controls the compression of the replies sent back to BigQuery. When enabled, replies of at least
+ * the threshold in bytes are compressed with gzip for the requests that accept it.
+ */
+@ConfigurationProperties("claude.response")
+public record ResponseConfiguration(
+    @Bindable(defaultValue = "true") boolean compression,
+    @Bindable(defaultValue = "1024") int compressionThreshold) {}
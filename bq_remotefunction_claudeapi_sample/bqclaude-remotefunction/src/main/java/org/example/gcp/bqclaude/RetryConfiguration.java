@@ -0,0 +1,33 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.bind.annotation.Bindable;
+import java.time.Duration;
+
+/**
+ * Controls how rate limited requests are retried. Retries wait as long as Claude API asks for, or
+ * the fallback delay when the response does not say, and move to another token right away when one
+ * is available. Every BigQuery request gets a deadline, by default well within the function
+ * timeout, after which its rows are not retried anymore.
+ */
+@ConfigurationProperties("claude.retries")
+public record RetryConfiguration(
+    @Bindable(defaultValue = "10") int maxAttempts,
+    @Bindable(defaultValue = "5s") Duration fallbackDelay,
+    @Bindable(defaultValue = "540s") Duration deadline) {}
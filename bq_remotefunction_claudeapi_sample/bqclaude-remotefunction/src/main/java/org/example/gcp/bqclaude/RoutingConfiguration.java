@@ -0,0 +1,38 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.annotation.Nullable;
+import io.micronaut.core.bind.annotation.Bindable;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Controls the models a row can be answered with when the configured one can not take it right
+ * away. Fallback models are tried in order when the tokens of the model asked for are exhausted or
+ * out of budget, or when its replies take on average longer than the latency threshold, zero
+ * meaning latency is not considered. A slow model is tried again once the probe interval passes
+ * without replies from it. Without fallback models rows wait for the model they asked for.
+ * Routines can only ask for the configured model, the fallback models and the other models listed.
+ */
+@ConfigurationProperties("claude.routing")
+public record RoutingConfiguration(
+    @Nullable List<String> fallbackModels,
+    @Nullable List<String> models,
+    @Bindable(defaultValue = "0s") Duration latencyThreshold,
+    @Bindable(defaultValue = "30s") Duration probeInterval) {}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.bind.annotation.Bindable;
+
+/**
+ * Controls the input and output tokens budgets kept per API token. Every request reserves the
+ * tokens it is estimated to consume, its input from the length of the prompts at the configured
+ * characters per token, later adjusted with the reported usage, and its output from its max
+ * tokens. Budgets are learned from the rate limit headers of Claude API, the per minute amounts
+ * configured here apply until then and are kept when Claude API does not inform them. Zero means
+ * unbounded. When disabled only the requests budget paces the dispatch of tokens.
+ */
+@ConfigurationProperties("claude.token-budget")
+public record TokenBudgetConfiguration(
+    @Bindable(defaultValue = "true") boolean enabled,
+    @Bindable(defaultValue = "4.0") double charactersPerToken,
+    @Bindable(defaultValue = "0") long inputTokensPerMinute,
+    @Bindable(defaultValue = "0") long outputTokensPerMinute) {}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.annotation.Nullable;
+import io.micronaut.core.bind.annotation.Bindable;
+import java.time.Duration;
+
+/**
+ * Controls where the rate limited tokens are shared. With the default memory store every function
+ * instance learns on its own when a token gets rate limited. With the redis store, pointed by the
+ * uri to any server speaking the Redis protocol, instances publish until when a token is rate
+ * limited under the given key and pick up what the others published once per refresh interval,
+ * without waiting for it while dispatching tokens.
+ */
+@ConfigurationProperties("claude.token-store")
+public record TokenStoreConfiguration(
+    @Bindable(defaultValue = "memory") String type,
+    @Nullable String uri,
+    @Bindable(defaultValue = "bqclaude:token-resets") String key,
+    @Bindable(defaultValue = "1s") Duration refreshInterval) {}
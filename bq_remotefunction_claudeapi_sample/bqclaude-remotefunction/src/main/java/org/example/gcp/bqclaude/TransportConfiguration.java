@@ -0,0 +1,33 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.context.annotation.ConfigurationProperties;
+import io.micronaut.core.bind.annotation.Bindable;
+import java.time.Duration;
+
+/**
+ * Controls the warm up of the connections to Claude API. When enabled, the given number of
+ * connections are opened while the application starts, so the first rows do not pay for the DNS
+ * lookup and the TCP and TLS handshakes. Starting waits for them up to the timeout. Over HTTP/2 a
+ * single connection carries the concurrent requests, so the rest of the warm up requests share it.
+ */
+@ConfigurationProperties("claude.transport")
+public record TransportConfiguration(
+    @Bindable(defaultValue = "true") boolean warmup,
+    @Bindable(defaultValue = "4") int warmupConnections,
+    @Bindable(defaultValue = "3s") Duration warmupTimeout) {}
@@ -22,23 +22,60 @@ import io.micronaut.http.HttpRequest;
 import io.micronaut.http.HttpResponse;
 import io.micronaut.http.HttpStatus;
 import io.micronaut.http.MediaType;
+import io.micronaut.http.MutableHttpRequest;
 import io.micronaut.http.client.HttpClient;
+import io.micronaut.http.client.StreamingHttpClient;
 import io.micronaut.http.client.annotation.Client;
 import io.micronaut.http.client.exceptions.HttpClientResponseException;
 import io.micronaut.http.uri.UriBuilder;
+import io.micronaut.json.JsonMapper;
+import io.micronaut.scheduling.TaskExecutors;
 import jakarta.inject.Inject;
+import jakarta.inject.Named;
 import jakarta.inject.Singleton;
 import java.net.URI;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import org.example.gcp.bqclaude.ClaudeConfiguration;
+import org.example.gcp.bqclaude.RetryConfiguration;
 import org.example.gcp.bqclaude.client.Interactions.*;
 import org.example.gcp.bqclaude.client.Interactions.Body.*;
+import org.example.gcp.bqclaude.exceptions.BudgetExhaustedException;
 import org.example.gcp.bqclaude.exceptions.TokenExhaustedException;
+import org.example.gcp.bqclaude.metrics.ClaudeMetrics;
 import org.example.gcp.bqclaude.tokens.TokenDispatcher;
+import org.example.gcp.bqclaude.tokens.TokenDispatcher.Outcome;
+import org.example.gcp.bqclaude.tokens.TokenEstimator;
+import org.example.gcp.bqclaude.tokens.TokenEstimator.TokenEstimate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
-/** In charge of executing the interactions with the Claude API. */
+/**
+ * In charge of executing the interactions with the Claude API. Offers a blocking API, meant to be
+ * used from virtual threads, and a non blocking one where neither the in flight requests nor the
+ * backoffs between retries hold a thread. Replies can also be streamed, which bounds their latency
+ * by cutting them short.
+ *
+ * <p>Every attempt of a request is routed to the model that can answer it right away among the
+ * one it asks for and its fallback models, retries only wait when none of them can.
+ *
+ * <p>When hedging is enabled, a request without a reply after the delay decided by the {@link
+ * Hedger} is sent again with another token, and the first reply wins. Blocking callers wait for
+ * the winner of the non blocking requests, streamed replies are never hedged.
+ */
 @Singleton
 public class ClaudeClient {
 
@@ -47,53 +84,613 @@ public class ClaudeClient {
   private static final Logger LOG = LoggerFactory.getLogger(ClaudeClient.class);
   private static final String ANTHROPIC_VERSION_KEY = "anthropic-version";
   private static final String API_HEADER_KEY = "x-api-key";
+  private static final String OVERLOADED_ERROR = "overloaded_error";
   private static final URI CLAUDE_URI = UriBuilder.of(CLAUDE_MESSAGES_PATH).build();
 
   @Inject
   @Client(id = "claude", errorType = Body.Failed.class)
   HttpClient client;
 
+  @Inject
+  @Client(id = "claude", errorType = Body.Failed.class)
+  StreamingHttpClient streamingClient;
+
   @Inject TokenDispatcher tokens;
+  @Inject TokenEstimator estimator;
+  @Inject ModelRouter router;
   @Inject ClaudeConfiguration configuration;
+  @Inject JsonMapper jsonMapper;
+  @Inject UsageStats usageStats;
+  @Inject Hedger hedger;
+
+  @Inject
+  @Named(TaskExecutors.SCHEDULED)
+  ExecutorService scheduler;
+
+  @Inject RetryConfiguration retryConfiguration;
+  @Inject ClaudeMetrics metrics;
+
+  private final LongAdder streamedReplies = new LongAdder();
+  private final LongAdder timeToFirstTokenNanos = new LongAdder();
+
+  /**
+   * Rate limited requests are retried after the delay Claude API asked for, or right away when
+   * another token is usable. Retrying stops as soon as the next attempt would not start before the
+   * deadline, the rate limiting error is then propagated so BigQuery retries the batch later.
+   */
+  RetryPolicy<ClaudeResponse> retryPolicy(
+      ClaudeRequest request, List<String> fallbackModels, Deadline deadline) {
+    return RetryPolicy.<ClaudeResponse>builder()
+        .handleIf(error -> unwrap(error) instanceof TokenExhaustedException)
+        .abortIf(
+            (response, error) ->
+                unwrap(error) instanceof TokenExhaustedException
+                    && !deadline.allows(retryDelay(request, fallbackModels)))
+        .withDelayFn(__ -> withJitter(retryDelay(request, fallbackModels)))
+        .withMaxAttempts(retryConfiguration.maxAttempts())
+        .onRetry(e -> LOG.atInfo().log("Retrying Claude API request."))
+        .onRetryScheduled(e -> metrics.recordRetry(e.getDelay()))
+        .onAbort(e -> LOG.atWarn().log("Claude API request can not be retried before deadline."))
+        .build();
+  }
+
+  Duration retryDelay(ClaudeRequest request, List<String> fallbackModels) {
+    return Duration.ofMillis(router.availableIn(request.model(), fallbackModels));
+  }
+
+  /** Spreads a bit the retries waiting for the same reset, so they do not hit it all at once. */
+  static Duration withJitter(Duration delay) {
+    if (delay.isZero()) {
+      return delay;
+    }
+    return delay.plusMillis(ThreadLocalRandom.current().nextLong(delay.toMillis() / 10 + 1));
+  }
 
-  private final RetryPolicy<ClaudeResponse> retryPolicy =
-      RetryPolicy.<ClaudeResponse>builder()
-          .handle(TokenExhaustedException.class)
-          .withBackoff(Duration.ofSeconds(10), Duration.ofSeconds(70))
-          .withJitter(0.25)
-          .withMaxAttempts(10)
-          .onRetry(e -> LOG.atInfo().log("Retrying Claude API request."))
-          .build();
+  static void checkDeadline(Deadline deadline) {
+    if (deadline.expired()) {
+      throw new TokenExhaustedException("Deadline exceeded before sending the request.");
+    }
+  }
 
   public ClaudeResponse sendMessageWithRetries(ClaudeRequest request) {
-    return Failsafe.with(retryPolicy).<ClaudeResponse>get(() -> sendMessage(request));
+    return sendMessageWithRetries(request, Deadline.after(retryConfiguration.deadline()));
+  }
+
+  public ClaudeResponse sendMessageWithRetries(ClaudeRequest request, Deadline deadline) {
+    return sendMessageWithRetries(request, router.fallbackModels(), deadline);
+  }
+
+  public ClaudeResponse sendMessageWithRetries(
+      ClaudeRequest request, List<String> fallbackModels, Deadline deadline) {
+    return Failsafe.with(retryPolicy(request, fallbackModels, deadline))
+        .<ClaudeResponse>get(
+            () -> {
+              checkDeadline(deadline);
+              return sendMessage(request, fallbackModels, deadline);
+            });
+  }
+
+  public CompletableFuture<ClaudeResponse> sendMessageAsync(ClaudeRequest request) {
+    return sendMessageAsync(request, Deadline.after(retryConfiguration.deadline()));
+  }
+
+  /**
+   * Sends the request without blocking the caller, retries are scheduled on timers so waiting for
+   * a backoff does not pin any thread.
+   */
+  public CompletableFuture<ClaudeResponse> sendMessageAsync(
+      ClaudeRequest request, Deadline deadline) {
+    return sendMessageAsync(request, router.fallbackModels(), deadline);
+  }
+
+  public CompletableFuture<ClaudeResponse> sendMessageAsync(
+      ClaudeRequest request, List<String> fallbackModels, Deadline deadline) {
+    return Failsafe.with(retryPolicy(request, fallbackModels, deadline))
+        .with(scheduler)
+        .getStageAsync(
+            () -> {
+              checkDeadline(deadline);
+              return sendMessageOnceAsync(request, fallbackModels, deadline);
+            });
+  }
+
+  CompletableFuture<ClaudeResponse> sendMessageOnceAsync(
+      ClaudeRequest request, List<String> fallbackModels, Deadline deadline) {
+    var estimate = estimator.estimate(request);
+    return dispatchAsync(request, fallbackModels, estimate, deadline)
+        .thenCompose(
+            dispatched ->
+                hedger.enabled()
+                    ? hedged(dispatched, estimate)
+                    : exchangeAsync(
+                        dispatched,
+                        estimate,
+                        new CompletableFuture<>(),
+                        new CompletableFuture<>()));
+  }
+
+  /**
+   * Sends the request once its token has room for it, completing the started future when it does.
+   * Completing the cancelled future cancels the request, or keeps it from being sent at all.
+   */
+  CompletableFuture<ClaudeResponse> exchangeAsync(
+      Dispatched dispatched,
+      TokenEstimate estimate,
+      CompletableFuture<Void> started,
+      CompletableFuture<Void> cancelled) {
+    return withPermit(
+        dispatched,
+        estimate,
+        () -> {
+          if (cancelled.isDone()) {
+            return CompletableFuture.failedFuture(new NotSentException());
+          }
+          started.complete(null);
+          var exchange =
+              Mono.from(
+                      client.exchange(
+                          messageRequest(dispatched.request(), dispatched.token()), OK.class))
+                  .toFuture();
+          cancelled.thenRun(() -> exchange.cancel(true));
+          return exchange
+              .handle((response, error) -> asyncResponse(dispatched, response, error))
+              .thenCompose(stage -> stage);
+        });
+  }
+
+  /**
+   * Sends the request, and once the hedging delay passes without a reply sends it again with
+   * another token if the budget allows it. The first successful reply wins and cancels the other
+   * request, otherwise the outcome of the last request to complete is the one returned. The
+   * returned outcome counts the other requests that were sent.
+   */
+  CompletableFuture<ClaudeResponse> hedged(Dispatched primary, TokenEstimate estimate) {
+    hedger.requested();
+    var winner = new CompletableFuture<ClaudeResponse>();
+    // requests without an outcome yet, a hedge is only sent while the first one is in flight
+    var pending = new AtomicInteger(1);
+    var sent = new AtomicInteger();
+    var started = new CompletableFuture<Void>();
+    started.thenRun(sent::incrementAndGet);
+    var cancelPrimary = new CompletableFuture<Void>();
+    var cancelHedge = new CompletableFuture<Void>();
+    race(
+        exchangeAsync(primary, estimate, started, cancelPrimary),
+        winner,
+        pending,
+        cancelHedge,
+        () -> {});
+    hedger
+        .delay()
+        .ifPresent(
+            delay ->
+                started.thenRunAsync(
+                    () ->
+                        hedge(
+                            primary, estimate, winner, pending, sent, cancelPrimary, cancelHedge),
+                    CompletableFuture.delayedExecutor(
+                        delay.toNanos(), TimeUnit.NANOSECONDS, scheduler)));
+    return winner.thenApply(response -> response.withHedgeLosers(Math.max(0, sent.get() - 1)));
+  }
+
+  void hedge(
+      Dispatched primary,
+      TokenEstimate estimate,
+      CompletableFuture<ClaudeResponse> winner,
+      AtomicInteger pending,
+      AtomicInteger sent,
+      CompletableFuture<Void> cancelPrimary,
+      CompletableFuture<Void> cancelHedge) {
+    if (winner.isDone() || !hedger.tryHedge()) {
+      return;
+    }
+    String token;
+    try {
+      token = tokens.dispatchToken(primary.model(), estimate, primary.token());
+    } catch (TokenExhaustedException ex) {
+      // no other token can take it right away, hedging is not worth waiting for one
+      hedger.refund();
+      return;
+    }
+    if (pending.getAndUpdate(count -> count == 0 ? 0 : count + 1) == 0) {
+      tokens.releaseBudget(primary.model(), token, estimate, null);
+      hedger.refund();
+      return;
+    }
+    LOG.atDebug().log("Hedging Claude API request with {}.", tokens.alias(token));
+    var started = new CompletableFuture<Void>();
+    started.thenRun(sent::incrementAndGet);
+    race(
+        exchangeAsync(new Dispatched(primary.request(), token), estimate, started, cancelHedge),
+        winner,
+        pending,
+        cancelPrimary,
+        hedger::won);
+  }
+
+  static void race(
+      CompletableFuture<ClaudeResponse> attempt,
+      CompletableFuture<ClaudeResponse> winner,
+      AtomicInteger pending,
+      CompletableFuture<Void> cancelOther,
+      Runnable onWin) {
+    attempt.whenComplete(
+        (response, error) -> {
+          var left = pending.decrementAndGet();
+          if (error == null && response.isOk()) {
+            if (winner.complete(response)) {
+              cancelOther.complete(null);
+              onWin.run();
+            }
+          } else if (left == 0) {
+            if (error != null) {
+              winner.completeExceptionally(unwrap(error));
+            } else {
+              winner.complete(response);
+            }
+          }
+        });
+  }
+
+  /**
+   * Dispatches a token with room for the estimated tokens of a request, for the model it gets
+   * routed to, waiting for the budgets to refill when none has it. Nothing is sent to Claude API
+   * meanwhile, so waiting is not a retry, but it is still bounded by the deadline.
+   */
+  Dispatched dispatch(
+      ClaudeRequest request,
+      List<String> fallbackModels,
+      TokenEstimate estimate,
+      Deadline deadline) {
+    while (true) {
+      var routed = router.route(request, fallbackModels);
+      try {
+        return new Dispatched(routed, tokens.dispatchToken(routed.model(), estimate));
+      } catch (BudgetExhaustedException ex) {
+        var wait = budgetWait(request, fallbackModels, deadline, ex);
+        try {
+          Thread.sleep(wait);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw new TokenExhaustedException(
+              "Interrupted while waiting for token budgets.", interrupted);
+        }
+      }
+    }
+  }
+
+  /** Same as {@link #dispatch}, with the waits scheduled on timers instead of holding a thread. */
+  CompletableFuture<Dispatched> dispatchAsync(
+      ClaudeRequest request,
+      List<String> fallbackModels,
+      TokenEstimate estimate,
+      Deadline deadline) {
+    var routed = router.route(request, fallbackModels);
+    try {
+      return CompletableFuture.completedFuture(
+          new Dispatched(routed, tokens.dispatchToken(routed.model(), estimate)));
+    } catch (BudgetExhaustedException ex) {
+      Duration wait;
+      try {
+        wait = budgetWait(request, fallbackModels, deadline, ex);
+      } catch (BudgetExhaustedException expired) {
+        return CompletableFuture.failedFuture(expired);
+      }
+      return CompletableFuture.runAsync(
+              () -> {},
+              CompletableFuture.delayedExecutor(wait.toMillis(), TimeUnit.MILLISECONDS, scheduler))
+          .thenCompose(__ -> dispatchAsync(request, fallbackModels, estimate, deadline));
+    } catch (TokenExhaustedException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+  }
+
+  Duration budgetWait(
+      ClaudeRequest request,
+      List<String> fallbackModels,
+      Deadline deadline,
+      BudgetExhaustedException exhausted) {
+    var wait = withJitter(retryDelay(request, fallbackModels));
+    if (!deadline.allows(wait)) {
+      throw exhausted;
+    }
+    return wait;
+  }
+
+  /**
+   * Runs the exchange once the token has room for it, the outcome is informed back so the limit of
+   * requests in flight for the token adapts to what Claude API can take.
+   */
+  CompletableFuture<ClaudeResponse> withPermit(
+      Dispatched dispatched,
+      TokenEstimate estimate,
+      Supplier<CompletableFuture<ClaudeResponse>> exchange) {
+    return tokens
+        .acquirePermitAsync(dispatched.token())
+        .whenComplete(
+            (__, error) -> {
+              if (error != null) {
+                tokens.releaseBudget(dispatched.model(), dispatched.token(), estimate, null);
+              }
+            })
+        .thenCompose(
+            __ -> {
+              var start = System.nanoTime();
+              CompletableFuture<ClaudeResponse> result;
+              try {
+                result = exchange.get();
+              } catch (RuntimeException ex) {
+                result = CompletableFuture.failedFuture(ex);
+              }
+              return result.whenComplete(
+                  (response, error) -> completed(dispatched, estimate, start, response, error));
+            });
+  }
+
+  /**
+   * Informs the outcome of the request to the token dispatcher and records it on the metrics. The
+   * reported usage reconciles the tokens reserved for the request and the estimates of the next
+   * ones, and the latency of a reply drives the routing of the next requests for its model.
+   */
+  void completed(
+      Dispatched dispatched,
+      TokenEstimate estimate,
+      long startNanos,
+      ClaudeResponse response,
+      Throwable error) {
+    var latency = System.nanoTime() - startNanos;
+    var usage = response != null && response.response() instanceof OK ok ? ok.usage() : null;
+    if (error != null
+        && unwrap(error) instanceof CancellationException
+        && !(unwrap(error) instanceof NotSentException)) {
+      // a hedge loser may still be billed, only the requests never sent give their tokens back
+      tokens.consumeBudget(dispatched.model(), dispatched.token(), estimate);
+    } else {
+      tokens.releaseBudget(dispatched.model(), dispatched.token(), estimate, usage);
+    }
+    estimator.calibrate(estimate, usage);
+    tokens.releasePermit(dispatched.token(), startNanos, outcome(response, error));
+    if (usage != null) {
+      router.recordLatency(dispatched.model(), latency);
+      hedger.record(latency);
+    }
+    metrics.recordRequest(
+        tokens.alias(dispatched.token()), dispatched.model(), result(response, error), latency);
+  }
+
+  static String result(ClaudeResponse response, Throwable error) {
+    if (error != null) {
+      return switch (unwrap(error)) {
+        case TokenExhaustedException __ -> "rate_limit_error";
+        case CancellationException __ -> "cancelled";
+        case Throwable other -> other.getClass().getSimpleName();
+      };
+    }
+    return switch (response.response()) {
+      case OK __ -> ClaudeMetrics.OK_RESULT;
+      case Failed failed when failed.error() != null -> failed.error().type();
+      case Failed failed -> failed.type();
+      case RateLimited __ -> "rate_limit_error";
+      case Empty __ -> "empty";
+    };
+  }
+
+  static Outcome outcome(ClaudeResponse response, Throwable error) {
+    if (error != null) {
+      return unwrap(error) instanceof TokenExhaustedException ? Outcome.OVERLOADED : Outcome.FAILED;
+    }
+    return switch (response.response()) {
+      case OK __ -> Outcome.SUCCESS;
+      case Failed failed when failed.error() != null
+              && OVERLOADED_ERROR.equals(failed.error().type()) ->
+          Outcome.OVERLOADED;
+      default -> Outcome.FAILED;
+    };
+  }
+
+  public CompletableFuture<ClaudeResponse> sendMessageStreaming(
+      ClaudeRequest request, StreamLimits limits) {
+    return sendMessageStreaming(request, limits, Deadline.after(retryConfiguration.deadline()));
+  }
+
+  /**
+   * Streams the reply as server sent events, assembling its content while it arrives. When the
+   * limits are reached the stream is cancelled and the content received so far is returned, with
+   * the cutoff informed as the stop reason.
+   */
+  public CompletableFuture<ClaudeResponse> sendMessageStreaming(
+      ClaudeRequest request, StreamLimits limits, Deadline deadline) {
+    return sendMessageStreaming(request, limits, router.fallbackModels(), deadline);
+  }
+
+  public CompletableFuture<ClaudeResponse> sendMessageStreaming(
+      ClaudeRequest request, StreamLimits limits, List<String> fallbackModels, Deadline deadline) {
+    return Failsafe.with(retryPolicy(request, fallbackModels, deadline))
+        .with(scheduler)
+        .getStageAsync(
+            () -> {
+              checkDeadline(deadline);
+              return streamMessageOnce(request.withStream(true), limits, fallbackModels, deadline);
+            });
+  }
+
+  CompletableFuture<ClaudeResponse> streamMessageOnce(
+      ClaudeRequest request, StreamLimits limits, List<String> fallbackModels, Deadline deadline) {
+    var estimate = estimator.estimate(request);
+    return dispatchAsync(request, fallbackModels, estimate, deadline)
+        .thenCompose(
+            dispatched ->
+                withPermit(dispatched, estimate, () -> streamMessage(dispatched, limits)));
+  }
+
+  CompletableFuture<ClaudeResponse> streamMessage(Dispatched dispatched, StreamLimits limits) {
+    var stream = new MessageStream(jsonMapper, limits.maxCharacters());
+    // the first chunk carries the status and the rate limit headers of the response
+    var head = new AtomicReference<HttpResponse<?>>();
+    var chunks =
+        Flux.from(
+                streamingClient.exchangeStream(
+                    messageRequest(dispatched.request(), dispatched.token())
+                        .accept(MediaType.TEXT_EVENT_STREAM_TYPE)))
+            .doOnNext(
+                chunk -> {
+                  head.compareAndSet(null, chunk);
+                  chunk.getBody().ifPresent(buffer -> stream.feed(buffer.toByteArray()));
+                })
+            .takeUntil(__ -> stream.stopped() || limits.exceeded(stream.characters()));
+    if (limits.deadline() != null) {
+      chunks = chunks.take(limits.deadline());
+    }
+    return chunks
+        .then()
+        .toFuture()
+        .handle(
+            (__, error) ->
+                error != null
+                    ? asyncResponse(dispatched, null, error)
+                    : CompletableFuture.completedFuture(
+                        streamedResponse(dispatched, head.get(), stream, limits)))
+        .thenCompose(stage -> stage);
+  }
+
+  ClaudeResponse streamedResponse(
+      Dispatched dispatched, HttpResponse<?> head, MessageStream stream, StreamLimits limits) {
+    stream
+        .timeToFirstToken()
+        .ifPresent(
+            ttft -> {
+              streamedReplies.increment();
+              timeToFirstTokenNanos.add(ttft.toNanos());
+              LOG.atDebug().log("Time to first token {}ms.", ttft.toMillis());
+            });
+    var headers = head != null ? head.getHeaders().asMap() : Map.<String, List<String>>of();
+    var cutoff =
+        stream.stopped()
+            ? null
+            : limits.exceeded(stream.characters())
+                ? MessageStream.CHARACTER_BUDGET_STOP_REASON
+                : MessageStream.DEADLINE_STOP_REASON;
+    var response =
+        recordUsage(new ClaudeResponse(dispatched.token(), stream.body(cutoff), headers));
+    return head != null ? tokens.informTokenUsage(dispatched.model(), response) : response;
+  }
+
+  ClaudeResponse recordUsage(ClaudeResponse response) {
+    if (response.response() instanceof OK ok) {
+      usageStats.record(ok.usage());
+    }
+    return response;
+  }
+
+  /** Average time until the first content of a streamed reply arrived. */
+  public Duration averageTimeToFirstToken() {
+    var count = streamedReplies.sum();
+    return count == 0 ? Duration.ZERO : Duration.ofNanos(timeToFirstTokenNanos.sum() / count);
+  }
+
+  CompletableFuture<ClaudeResponse> asyncResponse(
+      Dispatched dispatched, HttpResponse<?> response, Throwable error) {
+    try {
+      return switch (unwrap(error)) {
+        case null -> CompletableFuture.completedFuture(fullResponse(dispatched, response));
+        case HttpClientResponseException ex -> {
+          LOG.atWarn()
+              .setCause(ex)
+              .log("Error encountered while interacting with Claude API, we will retry.");
+          yield CompletableFuture.completedFuture(fullResponse(dispatched, ex.getResponse()));
+        }
+        default -> CompletableFuture.failedFuture(unwrap(error));
+      };
+    } catch (RuntimeException ex) {
+      return CompletableFuture.failedFuture(ex);
+    }
+  }
+
+  static Throwable unwrap(Throwable error) {
+    return error instanceof CompletionException completion && completion.getCause() != null
+        ? completion.getCause()
+        : error;
+  }
+
+  MutableHttpRequest<ClaudeRequest> messageRequest(ClaudeRequest request, String token) {
+    return HttpRequest.POST(CLAUDE_URI, request)
+        .accept(MediaType.APPLICATION_JSON)
+        .header(API_HEADER_KEY, token)
+        .header(ANTHROPIC_VERSION_KEY, configuration.version());
   }
 
   public ClaudeResponse sendMessage(ClaudeRequest request) {
-    var token = tokens.dispatchToken();
+    return sendMessage(request, Deadline.after(retryConfiguration.deadline()));
+  }
+
+  public ClaudeResponse sendMessage(ClaudeRequest request, Deadline deadline) {
+    return sendMessage(request, router.fallbackModels(), deadline);
+  }
+
+  public ClaudeResponse sendMessage(
+      ClaudeRequest request, List<String> fallbackModels, Deadline deadline) {
+    if (hedger.enabled()) {
+      try {
+        return sendMessageOnceAsync(request, fallbackModels, deadline).join();
+      } catch (CompletionException ex) {
+        throw unwrap(ex) instanceof RuntimeException cause ? cause : ex;
+      }
+    }
+    var estimate = estimator.estimate(request);
+    var dispatched = dispatch(request, fallbackModels, estimate, deadline);
     try {
-      var httpRequest =
-          HttpRequest.POST(CLAUDE_URI, request)
-              .accept(MediaType.APPLICATION_JSON)
-              .header(API_HEADER_KEY, token)
-              .header(ANTHROPIC_VERSION_KEY, configuration.version());
-      var response = client.toBlocking().exchange(httpRequest, OK.class);
-      return fullResponse(token, response);
+      tokens.acquirePermit(dispatched.token());
+    } catch (RuntimeException ex) {
+      tokens.releaseBudget(dispatched.model(), dispatched.token(), estimate, null);
+      throw ex;
+    }
+    var start = System.nanoTime();
+    ClaudeResponse response = null;
+    Throwable error = null;
+    try {
+      response = exchange(dispatched);
+      return response;
+    } catch (RuntimeException | Error ex) {
+      error = ex;
+      throw ex;
+    } finally {
+      completed(dispatched, estimate, start, response, error);
+    }
+  }
+
+  ClaudeResponse exchange(Dispatched dispatched) {
+    try {
+      var response =
+          client
+              .toBlocking()
+              .exchange(messageRequest(dispatched.request(), dispatched.token()), OK.class);
+      return fullResponse(dispatched, response);
     } catch (HttpClientResponseException ex) {
       LOG.atWarn()
           .setCause(ex)
           .log("Error encountered while interacting with Claude API, we will retry.");
       var response = ex.getResponse();
-      return fullResponse(token, response);
+      return fullResponse(dispatched, response);
     }
   }
 
-  ClaudeResponse fullResponse(String tokenId, HttpResponse<?> response) {
+  /** Claude API answers with codes unknown to Micronaut, like 529 when overloaded. */
+  static HttpStatus statusOf(int code) {
+    try {
+      return HttpStatus.valueOf(code);
+    } catch (IllegalArgumentException ex) {
+      return HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+  }
+
+  ClaudeResponse fullResponse(Dispatched dispatched, HttpResponse<?> response) {
     var headersAsMap = response.getHeaders().asMap();
+    var tokenId = dispatched.token();
 
-    return switch (HttpStatus.valueOf(response.code())) {
+    return switch (statusOf(response.code())) {
       case TOO_MANY_REQUESTS -> {
-        tokens.informTokenUsage(new ClaudeResponse(tokenId, RateLimited.create(), headersAsMap));
+        tokens.informTokenUsage(
+            dispatched.model(), new ClaudeResponse(tokenId, RateLimited.create(), headersAsMap));
         throw new TokenExhaustedException(
             "Too many requests on Claude API, backoff and then retry.");
       }
@@ -101,14 +698,31 @@ public class ClaudeClient {
           response
               .getBody(OK.class)
               .map(ok -> new ClaudeResponse(tokenId, ok, headersAsMap))
-              .map(claudeResponse -> tokens.informTokenUsage(claudeResponse))
+              .map(this::recordUsage)
+              .map(claudeResponse -> tokens.informTokenUsage(dispatched.model(), claudeResponse))
               .orElse(ClaudeResponse.emptyWithHeaders(tokenId, headersAsMap));
       default ->
           response
               .getBody(Failed.class)
               .map(failed -> new ClaudeResponse(tokenId, failed, headersAsMap))
-              .map(claudeResponse -> tokens.informTokenUsage(claudeResponse))
+              .map(claudeResponse -> tokens.informTokenUsage(dispatched.model(), claudeResponse))
               .orElse(ClaudeResponse.emptyWithHeaders(tokenId, headersAsMap));
     };
   }
+
+  /** The request as routed to a model, along with the token dispatched for it. */
+  record Dispatched(ClaudeRequest request, String token) {
+
+    String model() {
+      return request.model();
+    }
+  }
+
+  /** Cancels a request that got answered by another one before leaving the function. */
+  static final class NotSentException extends CancellationException {
+
+    NotSentException() {
+      super("Request answered before being sent.");
+    }
+  }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.example.gcp.bqclaude.client;
+
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.context.event.ApplicationEventListener;
+import io.micronaut.context.event.StartupEvent;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.client.HttpClient;
+import io.micronaut.http.client.annotation.Client;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.IntStream;
+import org.example.gcp.bqclaude.TransportConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.Body;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+/**
+ * Opens the connections to Claude API while the application starts, with unauthenticated requests
+ * whose rejection is expected. Whatever the answer, the connection stays in the pool of the client
+ * for the requests of the first rows. Failing to warm up only costs the wait.
+ */
+@Singleton
+@Requires(property = "claude.transport.warmup", notEquals = "false")
+public class ConnectionWarmer implements ApplicationEventListener<StartupEvent> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ConnectionWarmer.class);
+
+  @Inject
+  @Client(id = "claude", errorType = Body.Failed.class)
+  HttpClient client;
+
+  @Inject TransportConfiguration configuration;
+
+  @Override
+  public void onApplicationEvent(StartupEvent event) {
+    var start = System.nanoTime();
+    var warmups =
+        IntStream.range(0, configuration.warmupConnections())
+            .mapToObj(
+                __ ->
+                    Mono.from(client.exchange(HttpRequest.GET(ClaudeClient.CLAUDE_MESSAGES_PATH)))
+                        .toFuture()
+                        .handle((response, error) -> null))
+            .toArray(CompletableFuture[]::new);
+    try {
+      CompletableFuture.allOf(warmups)
+          .get(configuration.warmupTimeout().toMillis(), TimeUnit.MILLISECONDS);
+      LOG.atInfo()
+          .log(
+              "Warmed up connections to Claude API in {}ms.",
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    } catch (TimeoutException ex) {
+      LOG.atWarn().log("Connections to Claude API not warmed up before the timeout.");
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (Exception ex) {
+      LOG.atWarn().setCause(ex).log("Could not warm up the connections to Claude API.");
+    }
+  }
+}
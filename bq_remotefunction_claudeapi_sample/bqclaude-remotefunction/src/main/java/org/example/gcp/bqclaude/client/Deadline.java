@@ -0,0 +1,38 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.client;
+
+import java.time.Duration;
+
+/** The moment, as epoch millis, by which the rows of a BigQuery request need to be answered. */
+public record Deadline(long epochMillis) {
+
+  public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+  public static Deadline after(Duration budget) {
+    return new Deadline(System.currentTimeMillis() + budget.toMillis());
+  }
+
+  public boolean expired() {
+    return System.currentTimeMillis() >= epochMillis;
+  }
+
+  /** Checks if waiting for the given delay still leaves time before the deadline. */
+  public boolean allows(Duration delay) {
+    return System.currentTimeMillis() + delay.toMillis() < epochMillis;
+  }
+}
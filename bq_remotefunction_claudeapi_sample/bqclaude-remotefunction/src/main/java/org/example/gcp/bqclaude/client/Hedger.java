@@ -0,0 +1,126 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.client;
+
+import jakarta.inject.Singleton;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import org.example.gcp.bqclaude.HedgingConfiguration;
+
+/**
+ * Decides when a Claude API request is slow enough to be sent again with another token. The delay
+ * is the configured percentile of the latency of the recent replies, computed again every few
+ * replies over a window of them, and no request gets hedged until the window has enough replies to
+ * tell what a slow one is.
+ *
+ * <p>Hedges are paid out of a budget: every request sent saves up the budget ratio of a hedge, and
+ * sending one takes a whole hedge out of it, so hedging adds at most that ratio of extra requests
+ * on top of a small burst.
+ */
+@Singleton
+public class Hedger {
+
+  // recent replies the percentile is computed over
+  private static final int WINDOW = 512;
+  // replies needed before hedging, and between computing the percentile again
+  private static final int MIN_SAMPLES = 64;
+  private static final int RECOMPUTE_EVERY = 32;
+  // hedges that can be sent in a row out of the budget saved up
+  private static final double MAX_BURST = 10;
+
+  private final HedgingConfiguration configuration;
+  private final long[] samples = new long[WINDOW];
+  private long recorded = 0;
+  private double budget = 0;
+  // negative until enough replies are recorded
+  private volatile long delayNanos = -1;
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder won = new LongAdder();
+
+  public Hedger(HedgingConfiguration configuration) {
+    this.configuration = configuration;
+  }
+
+  public boolean enabled() {
+    return configuration.enabled();
+  }
+
+  /** Records the latency of a reply, from the moment its request was sent. */
+  public void record(long latencyNanos) {
+    if (!configuration.enabled()) {
+      return;
+    }
+    long[] window = null;
+    synchronized (this) {
+      samples[(int) (recorded % WINDOW)] = latencyNanos;
+      recorded++;
+      if (recorded >= MIN_SAMPLES && recorded % RECOMPUTE_EVERY == 0) {
+        window = Arrays.copyOf(samples, (int) Math.min(recorded, WINDOW));
+      }
+    }
+    if (window != null) {
+      Arrays.sort(window);
+      var index = (int) Math.ceil(configuration.percentile() / 100 * window.length) - 1;
+      delayNanos =
+          Math.max(
+              configuration.minDelay().toNanos(),
+              window[Math.max(0, Math.min(window.length - 1, index))]);
+    }
+  }
+
+  /** How long to wait for a reply before hedging its request, empty while it is not known. */
+  public Optional<Duration> delay() {
+    var delay = delayNanos;
+    return delay < 0 ? Optional.empty() : Optional.of(Duration.ofNanos(delay));
+  }
+
+  /** Saves up the budget of a request sent. */
+  public synchronized void requested() {
+    budget = Math.min(MAX_BURST, budget + configuration.budget());
+  }
+
+  /** Takes a hedge out of the budget, when there is room for it. */
+  public synchronized boolean tryHedge() {
+    if (budget < 1) {
+      return false;
+    }
+    budget -= 1;
+    sent.increment();
+    return true;
+  }
+
+  /** Gives back a hedge that could not be sent after all. */
+  public synchronized void refund() {
+    budget = Math.min(MAX_BURST, budget + 1);
+    sent.decrement();
+  }
+
+  /** Records a hedge that got its reply before the request it hedged. */
+  public void won() {
+    won.increment();
+  }
+
+  public long hedgesSent() {
+    return sent.sum();
+  }
+
+  public long hedgesWon() {
+    return won.sum();
+  }
+}
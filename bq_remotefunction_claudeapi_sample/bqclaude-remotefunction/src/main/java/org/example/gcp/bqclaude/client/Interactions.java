@@ -18,6 +18,7 @@ package org.example.gcp.bqclaude.client;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonValue;
+import io.micronaut.core.annotation.TypeHint;
 import io.micronaut.serde.annotation.Serdeable;
 import java.util.List;
 import java.util.Map;
@@ -25,7 +26,40 @@ import java.util.Map;
 /**
  * Defines all the types needed to be exchanged with Claude API. Micronaut client will take care of
  * the serialization/deserialization when executing the interactions.
+ *
+ * <p>Jackson reaches the records, the enum value and the members of the sealed {@link Body}
+ * hierarchy through reflection, so they are registered for it when building a native image.
  */
+@TypeHint(
+    value = {
+      Interactions.Role.class,
+      Interactions.ClaudeRequest.class,
+      Interactions.SystemBlock.class,
+      Interactions.CacheControl.class,
+      Interactions.Message.class,
+      Interactions.BatchRequest.class,
+      Interactions.BatchItem.class,
+      Interactions.MessageBatch.class,
+      Interactions.RequestCounts.class,
+      Interactions.BatchResult.class,
+      Interactions.BatchOutcome.class,
+      Interactions.StreamEvent.class,
+      Interactions.Delta.class,
+      Interactions.Metadata.class,
+      Interactions.Body.class,
+      Interactions.Body.Empty.class,
+      Interactions.Body.OK.class,
+      Interactions.Body.Content.class,
+      Interactions.Body.Usage.class,
+      Interactions.Body.RateLimited.class,
+      Interactions.Body.Failed.class,
+      Interactions.Body.Detail.class
+    },
+    accessType = {
+      TypeHint.AccessType.ALL_DECLARED_CONSTRUCTORS,
+      TypeHint.AccessType.ALL_DECLARED_FIELDS,
+      TypeHint.AccessType.ALL_PUBLIC_METHODS
+    })
 public interface Interactions {
 
   enum Role {
@@ -47,33 +81,171 @@ public interface Interactions {
       Metadata metadata,
       @JsonProperty("stop_sequences") List<String> stopSequences,
       boolean stream,
-      String system,
+      List<SystemBlock> system,
       double temperature,
       Double topK,
       Double topP) {
 
     public ClaudeRequest(String model, List<Message> messages, int maxTokens, String systemPrompt) {
-      this(model, maxTokens, messages, null, List.of(), false, systemPrompt, 1.0, null, null);
+      this(model, messages, maxTokens, SystemBlock.of(systemPrompt, false));
+    }
+
+    public ClaudeRequest(
+        String model, List<Message> messages, int maxTokens, List<SystemBlock> system) {
+      this(model, maxTokens, messages, null, List.of(), false, system, 1.0, null, null);
+    }
+
+    public ClaudeRequest withModel(String model) {
+      return new ClaudeRequest(
+          model,
+          maxTokens,
+          messages,
+          metadata,
+          stopSequences,
+          stream,
+          system,
+          temperature,
+          topK,
+          topP);
+    }
+
+    public ClaudeRequest withStream(boolean stream) {
+      return new ClaudeRequest(
+          model,
+          maxTokens,
+          messages,
+          metadata,
+          stopSequences,
+          stream,
+          system,
+          temperature,
+          topK,
+          topP);
     }
 
     public static ClaudeRequest parse(
         String model, int maxTokens, String systemPrompt, List<String> params) {
+      return parse(model, maxTokens, systemPrompt, false, params);
+    }
+
+    /**
+     * Creates the request for a row, when the system prompt is cached the rows sharing it only pay
+     * for it in full once while the cache lives.
+     */
+    public static ClaudeRequest parse(
+        String model,
+        int maxTokens,
+        String systemPrompt,
+        boolean cacheSystemPrompt,
+        List<String> params) {
       return new ClaudeRequest(
           model,
           params.stream().map(message -> new Message(Role.USER, message)).toList(),
           maxTokens,
-          systemPrompt);
+          SystemBlock.of(systemPrompt, cacheSystemPrompt));
+    }
+  }
+
+  /** Text block of the system prompt, optionally marked as a prompt caching breakpoint. */
+  @Serdeable
+  record SystemBlock(
+      String type, String text, @JsonProperty("cache_control") CacheControl cacheControl) {
+
+    static List<SystemBlock> of(String prompt, boolean cached) {
+      if (prompt == null || prompt.isEmpty()) {
+        return null;
+      }
+      return List.of(new SystemBlock("text", prompt, cached ? CacheControl.EPHEMERAL : null));
     }
   }
 
+  @Serdeable
+  record CacheControl(String type) {
+
+    static final CacheControl EPHEMERAL = new CacheControl("ephemeral");
+  }
+
   @Serdeable
   record Message(Role role, String content) {}
 
+  /** Request submitting a group of messages to the Message Batches API. */
+  @Serdeable
+  record BatchRequest(List<BatchItem> requests) {}
+
+  @Serdeable
+  record BatchItem(@JsonProperty("custom_id") String customId, ClaudeRequest params) {}
+
+  /** State of a job submitted to the Message Batches API. */
+  @Serdeable
+  record MessageBatch(
+      String id,
+      String type,
+      @JsonProperty("processing_status") String processingStatus,
+      @JsonProperty("request_counts") RequestCounts requestCounts,
+      @JsonProperty("results_url") String resultsUrl) {
+
+    public boolean ended() {
+      return "ended".equals(processingStatus);
+    }
+  }
+
+  @Serdeable
+  record RequestCounts(
+      long processing, long succeeded, long errored, long canceled, long expired) {}
+
+  /** One line of the results of a Message Batches API job. */
+  @Serdeable
+  record BatchResult(@JsonProperty("custom_id") String customId, BatchOutcome result) {}
+
+  @Serdeable
+  record BatchOutcome(String type, Body.OK message, Body.Failed error) {
+
+    public Body body() {
+      return switch (type) {
+        case "succeeded" -> message;
+        case "errored" ->
+            error != null ? error : Body.Failed.of("api_error", "Errored without details.");
+        default -> Body.Failed.of("api_error", "Batch request " + type + ".");
+      };
+    }
+  }
+
+  /** One of the server sent events of a streamed message, only the fields in use are mapped. */
+  @Serdeable
+  record StreamEvent(
+      String type,
+      Integer index,
+      Body.OK message,
+      @JsonProperty("content_block") Body.Content contentBlock,
+      Delta delta,
+      Body.Usage usage,
+      Body.Detail error) {}
+
+  @Serdeable
+  record Delta(
+      String type,
+      String text,
+      @JsonProperty("stop_reason") String stopReason,
+      @JsonProperty("stop_sequence") String stopSequence) {}
+
   @Serdeable
   record Metadata(@JsonProperty("user_id") String userId) {}
 
+  /**
+   * The outcome of a request, along with the hedged requests sent for it that lost the race to
+   * another one, which Claude API bills without them answering the row.
+   */
   @Serdeable
-  record ClaudeResponse(String tokenId, Body response, Map<String, List<String>> headers) {
+  record ClaudeResponse(
+      String tokenId, Body response, Map<String, List<String>> headers, int hedgeLosers) {
+
+    public ClaudeResponse(String tokenId, Body response, Map<String, List<String>> headers) {
+      this(tokenId, response, headers, 0);
+    }
+
+    ClaudeResponse withHedgeLosers(int hedgeLosers) {
+      return new ClaudeResponse(tokenId, response, headers, hedgeLosers);
+    }
 
     static ClaudeResponse emptyWithHeaders(String tokenId, Map<String, List<String>> headers) {
       return new ClaudeResponse(tokenId, new Body.Empty(), headers);
@@ -91,6 +263,16 @@ public interface Interactions {
     public Body.OK okResponse() {
       return (Body.OK) response();
     }
+
+    /** The body to be returned for the row, failures are reported as Claude API error objects. */
+    public Body reply() {
+      return switch (this.response()) {
+        case Body.OK ok -> ok;
+        case Body.Failed failed -> failed;
+        case Body.RateLimited __ -> Body.Failed.of("rate_limit_error", "Token exhausted.");
+        case Body.Empty __ -> Body.Failed.of("api_error", "Empty response from Claude API.");
+      };
+    }
   }
 
   @Serdeable
@@ -114,10 +296,16 @@ public interface Interactions {
     @Serdeable
     public record Content(String text, String type) {}
 
+    /**
+     * Input tokens written to or read from the prompt cache are not included in the regular input
+     * tokens.
+     */
     @Serdeable
     public record Usage(
         @JsonProperty("input_tokens") int inputTokens,
-        @JsonProperty("output_tokens") int outputTokens) {}
+        @JsonProperty("output_tokens") int outputTokens,
+        @JsonProperty("cache_creation_input_tokens") int cacheCreationInputTokens,
+        @JsonProperty("cache_read_input_tokens") int cacheReadInputTokens) {}
 
     public record RateLimited() implements Body {
       public static Body create() {
@@ -126,7 +314,11 @@ public interface Interactions {
     }
 
     @Serdeable
-    public record Failed(String type, Detail error) implements Body {}
+    public record Failed(String type, Detail error) implements Body {
+      public static Failed of(String errorType, String message) {
+        return new Failed("error", new Detail(errorType, message));
+      }
+    }
 
     @Serdeable
     public record Detail(String type, String message) {}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.client;
+
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.MediaType;
+import io.micronaut.http.MutableHttpRequest;
+import io.micronaut.http.client.HttpClient;
+import io.micronaut.http.client.annotation.Client;
+import io.micronaut.http.client.exceptions.HttpClientResponseException;
+import io.micronaut.http.uri.UriBuilder;
+import io.micronaut.json.JsonMapper;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import org.example.gcp.bqclaude.ClaudeConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.*;
+import org.example.gcp.bqclaude.exceptions.TokenExhaustedException;
+import org.example.gcp.bqclaude.tokens.TokenDispatcher;
+
+/**
+ * Interacts with the Claude Message Batches API, which processes large groups of messages
+ * asynchronously with higher throughput than the interactive messages endpoint.
+ */
+@Singleton
+public class MessageBatchesClient {
+
+  public static final String CLAUDE_BATCHES_PATH = "/v1/messages/batches";
+
+  private static final String ANTHROPIC_VERSION_KEY = "anthropic-version";
+  private static final String API_HEADER_KEY = "x-api-key";
+
+  @Inject
+  @Client(id = "claude", errorType = Body.Failed.class)
+  HttpClient client;
+
+  @Inject TokenDispatcher tokens;
+  @Inject ClaudeConfiguration configuration;
+  @Inject JsonMapper jsonMapper;
+  @Inject UsageStats usageStats;
+
+  /** Submits the requests, identified by their custom ids, using one of the available tokens. */
+  public SubmittedBatch submit(List<BatchItem> items) {
+    var token = tokens.dispatchToken();
+    var batch =
+        execute(
+            () ->
+                client
+                    .toBlocking()
+                    .retrieve(
+                        authorized(
+                            HttpRequest.POST(
+                                UriBuilder.of(CLAUDE_BATCHES_PATH).build(),
+                                new BatchRequest(items)),
+                            token),
+                        MessageBatch.class));
+    return new SubmittedBatch(token, batch);
+  }
+
+  /** Retrieves the current state of a batch, it needs to use the token that submitted it. */
+  public MessageBatch retrieve(String token, String batchId) {
+    return execute(
+        () ->
+            client
+                .toBlocking()
+                .retrieve(
+                    authorized(HttpRequest.GET(batchUri(batchId, "")), token),
+                    MessageBatch.class));
+  }
+
+  /** Downloads and parses the JSONL results of an ended batch. */
+  public List<BatchResult> results(String token, MessageBatch batch) {
+    var uri =
+        batch.resultsUrl() != null
+            ? URI.create(batch.resultsUrl())
+            : batchUri(batch.id(), "/results");
+    var lines =
+        execute(
+            () ->
+                client
+                    .toBlocking()
+                    .retrieve(
+                        authorized(HttpRequest.GET(uri), token).accept(MediaType.ALL_TYPE),
+                        String.class));
+    var results = new ArrayList<BatchResult>();
+    for (var line : lines.split("\n")) {
+      if (line.isBlank()) {
+        continue;
+      }
+      try {
+        var result = jsonMapper.readValue(line, BatchResult.class);
+        if (result.result() != null && result.result().message() != null) {
+          usageStats.record(result.result().message().usage());
+        }
+        results.add(result);
+      } catch (IOException ex) {
+        throw new UncheckedIOException("Problems parsing message batch results.", ex);
+      }
+    }
+    return results;
+  }
+
+  <T> MutableHttpRequest<T> authorized(MutableHttpRequest<T> request, String token) {
+    return request
+        .accept(MediaType.APPLICATION_JSON)
+        .header(API_HEADER_KEY, token)
+        .header(ANTHROPIC_VERSION_KEY, configuration.version());
+  }
+
+  static URI batchUri(String batchId, String suffix) {
+    return UriBuilder.of(CLAUDE_BATCHES_PATH).path(batchId + suffix).build();
+  }
+
+  static <T> T execute(Supplier<T> call) {
+    try {
+      return call.get();
+    } catch (HttpClientResponseException ex) {
+      if (ex.getStatus() == HttpStatus.TOO_MANY_REQUESTS) {
+        throw new TokenExhaustedException("Too many requests on Claude Message Batches API.", ex);
+      }
+      throw ex;
+    }
+  }
+
+  /** A batch along with the token that created it. */
+  public record SubmittedBatch(String token, MessageBatch batch) {}
+}
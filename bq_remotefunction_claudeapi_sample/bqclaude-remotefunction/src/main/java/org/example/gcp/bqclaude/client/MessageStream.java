@@ -0,0 +1,194 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.client;
+
+import io.micronaut.json.JsonMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.example.gcp.bqclaude.client.Interactions.Body;
+import org.example.gcp.bqclaude.client.Interactions.StreamEvent;
+
+/**
+ * Assembles a message from the server sent events of a streamed reply as the bytes arrive, only
+ * the text generated so far is kept in memory. Chunks of a reply are delivered sequentially, so
+ * this class is not thread safe.
+ */
+final class MessageStream {
+
+  static final String DEADLINE_STOP_REASON = "deadline";
+  static final String CHARACTER_BUDGET_STOP_REASON = "character_budget";
+
+  private static final String DATA_PREFIX = "data:";
+
+  private final JsonMapper jsonMapper;
+  private final int maxCharacters;
+  private final long startNanos = System.nanoTime();
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+  private final List<StringBuilder> texts = new ArrayList<>();
+  private final List<String> types = new ArrayList<>();
+  private Body.OK started;
+  private String stopReason;
+  private String stopSequence;
+  private int outputTokens;
+  private Body.Detail error;
+  private boolean stopped = false;
+  private int characters = 0;
+  private long firstTokenNanos = -1;
+
+  /** Replies cut short are fine to be returned, but not to be reused for other requests. */
+  static boolean isCutOff(Body.OK reply) {
+    return DEADLINE_STOP_REASON.equals(reply.stopReason())
+        || CHARACTER_BUDGET_STOP_REASON.equals(reply.stopReason());
+  }
+
+  MessageStream(JsonMapper jsonMapper, int maxCharacters) {
+    this.jsonMapper = jsonMapper;
+    this.maxCharacters = maxCharacters > 0 ? maxCharacters : Integer.MAX_VALUE;
+  }
+
+  /** Consumes a chunk of the response, events are handled as soon as their line is complete. */
+  void feed(byte[] bytes) {
+    for (var value : bytes) {
+      if (value == '\n') {
+        handleLine(line.toString(StandardCharsets.UTF_8));
+        line.reset();
+      } else {
+        line.write(value);
+      }
+    }
+  }
+
+  void handleLine(String raw) {
+    var text = raw.endsWith("\r") ? raw.substring(0, raw.length() - 1) : raw;
+    // event names are repeated as the type of the data payload, so only data lines matter
+    if (!text.startsWith(DATA_PREFIX)) {
+      return;
+    }
+    try {
+      handle(
+          jsonMapper.readValue(text.substring(DATA_PREFIX.length()).strip(), StreamEvent.class));
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Malformed event received from Claude API.", ex);
+    }
+  }
+
+  void handle(StreamEvent event) {
+    switch (event.type()) {
+      case "message_start" -> started = event.message();
+      case "content_block_start" -> {
+        var block = block(event.index());
+        if (event.contentBlock() != null) {
+          types.set(event.index(), event.contentBlock().type());
+          append(block, event.contentBlock().text());
+        }
+      }
+      case "content_block_delta" -> {
+        if (event.delta() != null && "text_delta".equals(event.delta().type())) {
+          append(block(event.index()), event.delta().text());
+        }
+      }
+      case "message_delta" -> {
+        if (event.delta() != null) {
+          stopReason = event.delta().stopReason();
+          stopSequence = event.delta().stopSequence();
+        }
+        if (event.usage() != null) {
+          outputTokens = event.usage().outputTokens();
+        }
+      }
+      case "message_stop" -> stopped = true;
+      case "error" -> {
+        error = event.error();
+        stopped = true;
+      }
+      // pings and event types we do not know about
+      default -> {}
+    }
+  }
+
+  StringBuilder block(int index) {
+    while (texts.size() <= index) {
+      texts.add(new StringBuilder());
+      types.add("text");
+    }
+    return texts.get(index);
+  }
+
+  void append(StringBuilder block, String text) {
+    if (text == null || text.isEmpty()) {
+      return;
+    }
+    if (firstTokenNanos < 0) {
+      firstTokenNanos = System.nanoTime() - startNanos;
+    }
+    // a single chunk may carry several deltas, the budget is honored to the character
+    var kept = text.substring(0, Math.min(text.length(), maxCharacters - characters));
+    block.append(kept);
+    characters += kept.length();
+  }
+
+  boolean stopped() {
+    return stopped;
+  }
+
+  int characters() {
+    return characters;
+  }
+
+  Optional<Duration> timeToFirstToken() {
+    return firstTokenNanos < 0 ? Optional.empty() : Optional.of(Duration.ofNanos(firstTokenNanos));
+  }
+
+  /**
+   * The message assembled so far. When the stream was cut before the message was complete the
+   * cutoff is informed as the stop reason.
+   */
+  Body body(String cutoff) {
+    if (error != null) {
+      return new Body.Failed("error", error);
+    }
+    if (started == null || (!stopped && cutoff == null)) {
+      return Body.Failed.of(
+          cutoff != null ? "timeout_error" : "api_error",
+          "Claude API stream ended before the message was complete.");
+    }
+    var content = new ArrayList<Body.Content>(texts.size());
+    for (int i = 0; i < texts.size(); i++) {
+      content.add(new Body.Content(texts.get(i).toString(), types.get(i)));
+    }
+    var usage = started.usage() != null ? started.usage() : new Body.Usage(0, 0, 0, 0);
+    return new Body.OK(
+        content,
+        started.id(),
+        started.model(),
+        started.role(),
+        stopped ? stopReason : cutoff,
+        stopped ? stopSequence : null,
+        started.type(),
+        new Body.Usage(
+            usage.inputTokens(),
+            Math.max(usage.outputTokens(), outputTokens),
+            usage.cacheCreationInputTokens(),
+            usage.cacheReadInputTokens()));
+  }
+}
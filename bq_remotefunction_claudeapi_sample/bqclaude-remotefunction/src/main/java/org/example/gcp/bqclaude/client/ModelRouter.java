@@ -0,0 +1,143 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.example.gcp.bqclaude.client;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.example.gcp.bqclaude.RoutingConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.example.gcp.bqclaude.tokens.TokenDispatcher;
+
+/**
+ * Decides which model answers each attempt of a request. The model asked for is kept while its
+ * tokens are usable and its replies are fast enough, otherwise the first fallback model that can
+ * take the request right away answers it, so a row is answered now by a smaller model instead of
+ * backing off until the limits of the larger one reset. When no model can take it the request
+ * stays on the model it asked for and waits as usual.
+ */
+@Singleton
+public class ModelRouter {
+
+  // weight of the latest reply on the latency average of a model
+  private static final double LATENCY_WEIGHT = 0.2;
+
+  @Inject TokenDispatcher tokens;
+  @Inject RoutingConfiguration configuration;
+
+  private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+
+  /** The configured fallback models, used when the request does not inform its own. */
+  public List<String> fallbackModels() {
+    return Optional.ofNullable(configuration.fallbackModels())
+        .map(ModelRouter::models)
+        .orElse(List.of());
+  }
+
+  /**
+   * The models rows can be sent to, the state and the meters kept per model are bounded by them.
+   */
+  public Set<String> allowedModels(String configured) {
+    var models = new HashSet<String>();
+    models.add(configured);
+    models.addAll(fallbackModels());
+    Optional.ofNullable(configuration.models()).map(ModelRouter::models).ifPresent(models::addAll);
+    return Set.copyOf(models);
+  }
+
+  /** The request as it should be sent to the first model able to take it right away. */
+  public ClaudeRequest route(ClaudeRequest request, List<String> fallbackModels) {
+    if (fallbackModels.isEmpty()) {
+      return request;
+    }
+    var now = System.nanoTime();
+    if (usable(request.model(), now)) {
+      return request;
+    }
+    for (var model : fallbackModels) {
+      if (!model.equals(request.model()) && usable(model, now)) {
+        return request.withModel(model);
+      }
+    }
+    return request;
+  }
+
+  /** Millis until one of the models can be used again, zero when one is usable right now. */
+  public long availableIn(String model, List<String> fallbackModels) {
+    var next = tokens.nextAvailableIn(model);
+    for (var fallback : fallbackModels) {
+      if (next == 0) {
+        break;
+      }
+      next = Math.min(next, tokens.nextAvailableIn(fallback));
+    }
+    return next;
+  }
+
+  /** Records the latency of a reply of the model. */
+  public void recordLatency(String model, long latencyNanos) {
+    latencies.computeIfAbsent(model, __ -> new Latency()).record(latencyNanos, System.nanoTime());
+  }
+
+  boolean usable(String model, long now) {
+    return tokens.nextAvailableIn(model) == 0 && !slow(model, now);
+  }
+
+  boolean slow(String model, long now) {
+    var threshold = configuration.latencyThreshold();
+    if (threshold.isZero()) {
+      return false;
+    }
+    var latency = latencies.get(model);
+    return latency != null
+        && latency.exceeds(threshold.toNanos(), now - configuration.probeInterval().toNanos());
+  }
+
+  /** Parses a comma separated list of models, ignoring the blank entries. */
+  public static List<String> models(String models) {
+    return models(List.of(models.split(",")));
+  }
+
+  static List<String> models(List<String> models) {
+    return models.stream().map(String::trim).filter(model -> !model.isEmpty()).toList();
+  }
+
+  /** Moving average of the latency of the replies of a model, along with when it last changed. */
+  static final class Latency {
+
+    private double average = 0;
+    private long lastNanos = 0;
+    private boolean sampled = false;
+
+    synchronized void record(long latencyNanos, long now) {
+      average = sampled ? average + LATENCY_WEIGHT * (latencyNanos - average) : latencyNanos;
+      lastNanos = now;
+      sampled = true;
+    }
+
+    /** Whether the average is over the threshold, only while it has been updated since then. */
+    synchronized boolean exceeds(long thresholdNanos, long since) {
+      return sampled && lastNanos - since > 0 && average > thresholdNanos;
+    }
+  }
+}
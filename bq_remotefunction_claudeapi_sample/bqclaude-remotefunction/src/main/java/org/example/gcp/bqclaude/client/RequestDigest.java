@@ -0,0 +1,78 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.client;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.example.gcp.bqclaude.client.Interactions.SystemBlock;
+
+/** Computes a digest identifying the requests that would get the same reply from Claude API. */
+final class RequestDigest {
+
+  private RequestDigest() {}
+
+  /**
+   * Digests the fields that determine the reply of a request. Every field is length prefixed so
+   * different splits of the same characters do not collide.
+   */
+  static String of(ClaudeRequest request) {
+    var digest = sha256();
+    update(digest, request.model());
+    update(digest, String.valueOf(request.maxTokens()));
+    // cache control marks do not change the reply, only the text of the system prompt matters
+    var system = Objects.requireNonNullElse(request.system(), List.<SystemBlock>of());
+    update(digest, String.valueOf(system.size()));
+    system.forEach(block -> update(digest, block.text()));
+    update(digest, String.valueOf(request.temperature()));
+    update(digest, Objects.toString(request.topK(), ""));
+    update(digest, Objects.toString(request.topP(), ""));
+    var stopSequences = Objects.requireNonNullElse(request.stopSequences(), List.<String>of());
+    update(digest, String.valueOf(stopSequences.size()));
+    stopSequences.forEach(stop -> update(digest, stop));
+    update(digest, String.valueOf(request.messages().size()));
+    for (var message : request.messages()) {
+      update(digest, message.role().name());
+      update(digest, message.content());
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  static void update(MessageDigest digest, String value) {
+    var bytes = value.getBytes(StandardCharsets.UTF_8);
+    digest.update(
+        new byte[] {
+          (byte) (bytes.length >>> 24),
+          (byte) (bytes.length >>> 16),
+          (byte) (bytes.length >>> 8),
+          (byte) bytes.length
+        });
+    digest.update(bytes);
+  }
+
+  static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 should always be available.", ex);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.client;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import org.example.gcp.bqclaude.ResponseCacheConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeResponse;
+
+/**
+ * Bounded cache of successful Claude API responses, keyed by a digest of the request. Eviction is
+ * driven by size, using Caffeine's W-TinyLFU policy, and by the time since the response was
+ * captured. A hit is served locally and does not consume any rate limit budget.
+ */
+@Singleton
+public class ResponseCache {
+
+  private final ResponseCacheConfiguration configuration;
+  private final Cache<String, ClaudeResponse> cache;
+
+  public ResponseCache(ResponseCacheConfiguration configuration) {
+    this.configuration = configuration;
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumSize(configuration.maxEntries())
+            .expireAfterWrite(configuration.ttl())
+            .recordStats()
+            .build();
+  }
+
+  public boolean enabled() {
+    return configuration.enabled();
+  }
+
+  /**
+   * Returns the cached response for an equivalent request if present, otherwise sends it and keeps
+   * the response when successful and complete.
+   */
+  public CompletableFuture<ClaudeResponse> getOrSend(
+      ClaudeRequest request, Function<ClaudeRequest, CompletableFuture<ClaudeResponse>> send) {
+    var key = RequestDigest.of(request);
+    var cached = cache.getIfPresent(key);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+    return send.apply(request)
+        .thenApply(
+            response -> {
+              if (response.isOk() && !MessageStream.isCutOff(response.okResponse())) {
+                cache.put(key, response);
+              }
+              return response;
+            });
+  }
+
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  public long hits() {
+    return cache.stats().hitCount();
+  }
+
+  public long misses() {
+    return cache.stats().missCount();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.client;
+
+import jakarta.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeResponse;
+
+/**
+ * Deduplicates identical requests while they are in flight, so concurrent rows with the same
+ * content, from the same batch or from concurrent invocations, share a single Claude API call.
+ */
+@Singleton
+public class SingleFlight {
+
+  private final Map<String, CompletableFuture<ClaudeResponse>> inFlight =
+      new ConcurrentHashMap<>();
+  private final LongAdder shared = new LongAdder();
+
+  public CompletableFuture<ClaudeResponse> send(
+      ClaudeRequest request, Function<ClaudeRequest, CompletableFuture<ClaudeResponse>> send) {
+    var key = RequestDigest.of(request);
+    var leader = new CompletableFuture<ClaudeResponse>();
+    var existing = inFlight.putIfAbsent(key, leader);
+    if (existing != null) {
+      shared.increment();
+      // callers get their own copy, cancelling it must not affect the others waiting on the call
+      return existing.copy();
+    }
+    try {
+      send.apply(request)
+          .whenComplete(
+              (response, error) -> {
+                inFlight.remove(key, leader);
+                if (error != null) {
+                  leader.completeExceptionally(error);
+                } else {
+                  leader.complete(response);
+                }
+              });
+    } catch (RuntimeException ex) {
+      inFlight.remove(key, leader);
+      leader.completeExceptionally(ex);
+    }
+    return leader.copy();
+  }
+
+  /** Number of requests that were served by joining an in flight call. */
+  public long sharedCount() {
+    return shared.sum();
+  }
+}
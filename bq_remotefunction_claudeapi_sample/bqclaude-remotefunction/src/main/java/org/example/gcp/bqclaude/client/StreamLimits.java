@@ -0,0 +1,33 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.client;
+
+import java.time.Duration;
+
+/**
+ * Bounds a streamed reply, once the deadline passes or the amount of generated characters reaches
+ * the budget the stream is cut and the content received so far is returned. A null deadline or a
+ * non positive budget disables the corresponding bound.
+ */
+public record StreamLimits(Duration deadline, int maxCharacters) {
+
+  public static final StreamLimits NONE = new StreamLimits(null, 0);
+
+  boolean exceeded(int characters) {
+    return maxCharacters > 0 && characters >= maxCharacters;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.client;
+
+import jakarta.inject.Singleton;
+import java.util.concurrent.atomic.LongAdder;
+import org.example.gcp.bqclaude.client.Interactions.Body;
+
+/**
+ * Accumulates the tokens consumed by the successful replies, including the input tokens written to
+ * and read from the prompt cache.
+ */
+@Singleton
+public class UsageStats {
+
+  private final LongAdder inputTokens = new LongAdder();
+  private final LongAdder outputTokens = new LongAdder();
+  private final LongAdder cacheCreationInputTokens = new LongAdder();
+  private final LongAdder cacheReadInputTokens = new LongAdder();
+
+  void record(Body.Usage usage) {
+    if (usage == null) {
+      return;
+    }
+    inputTokens.add(usage.inputTokens());
+    outputTokens.add(usage.outputTokens());
+    cacheCreationInputTokens.add(usage.cacheCreationInputTokens());
+    cacheReadInputTokens.add(usage.cacheReadInputTokens());
+  }
+
+  public long inputTokens() {
+    return inputTokens.sum();
+  }
+
+  public long outputTokens() {
+    return outputTokens.sum();
+  }
+
+  public long cacheCreationInputTokens() {
+    return cacheCreationInputTokens.sum();
+  }
+
+  public long cacheReadInputTokens() {
+    return cacheReadInputTokens.sum();
+  }
+
+  /** Fraction of the prompt input tokens that were served from the prompt cache. */
+  public double cacheReadRatio() {
+    var read = cacheReadInputTokens();
+    var total = inputTokens() + cacheCreationInputTokens() + read;
+    return total == 0 ? 0.0 : (double) read / total;
+  }
+}
@@ -0,0 +1,28 @@
+package org.example.gcp.bqclaude.exceptions;
+
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Signals that the results of a Message Batches API job are not ready yet. As any other token
+ * exhaustion it gets translated into a 429 response, so BigQuery retries the batch later.
+ */
+public class BatchPendingException extends TokenExhaustedException {
+
+  public BatchPendingException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,30 @@
+package org.example.gcp.bqclaude.exceptions;
+
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Signals that no token has room left on its tokens budgets for a request. Nothing was sent to
+ * Claude API, so the request can wait for the budgets to refill without spending a retry; when it
+ * can not wait before the deadline it gets translated into a 429 response as any other token
+ * exhaustion.
+ */
+public class BudgetExhaustedException extends TokenExhaustedException {
+
+  public BudgetExhaustedException(String message) {
+    super(message);
+  }
+}
@@ -27,7 +27,7 @@ import jakarta.inject.Singleton;
  * Translates those errors related with rate limiting, encountered on a Claude API interaction, into
  * 429 responses so the caller can back off an retry in a while. This solution should internally
  * manage backoffs and retries but in the case of all of those being exhausted we need to propagate
- * to the caller.
+ * to the caller. Batches rejected for being over the quota of their caller get the same response.
  */
 @Produces
 @Singleton
@@ -0,0 +1,29 @@
+package org.example.gcp.bqclaude.exceptions;
+
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Signals that the BigQuery caller of a batch already consumed its quota of tokens for the current
+ * window. The batch is rejected before any of its rows is sent, and gets translated into a 429
+ * response so BigQuery retries it later.
+ */
+public class QuotaExceededException extends TokenExhaustedException {
+
+  public QuotaExceededException(String message) {
+    super(message);
+  }
+}
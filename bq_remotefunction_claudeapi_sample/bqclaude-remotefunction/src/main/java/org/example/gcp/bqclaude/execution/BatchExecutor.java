@@ -0,0 +1,155 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.execution;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.example.gcp.bqclaude.ExecutionConfiguration;
+import org.example.gcp.bqclaude.exceptions.TokenExhaustedException;
+
+/**
+ * Fans out the rows of a batch so the batch completes in roughly the time of its slowest row
+ * instead of the sum of all of them. Results are always returned in the same order of the provided
+ * items, as BigQuery matches replies with calls by position.
+ */
+@Singleton
+public class BatchExecutor {
+
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+  @Inject ExecutionConfiguration configuration;
+
+  /**
+   * Computes the parallelism for a batch, the requested value can only lower the configured
+   * maximum.
+   */
+  public int parallelism(int requested) {
+    if (!configuration.concurrent()) {
+      return 1;
+    }
+    return Math.max(1, Math.min(requested, configuration.maxConcurrentRows()));
+  }
+
+  /** Runs a blocking action on its own virtual thread, cancelling the result interrupts it. */
+  public <R> CompletableFuture<R> onVirtualThread(Supplier<R> action) {
+    var result = new CompletableFuture<R>();
+    var task =
+        executor.submit(
+            () -> {
+              try {
+                result.complete(action.get());
+              } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+              }
+            });
+    result.whenComplete(
+        (__, error) -> {
+          if (result.isCancelled()) {
+            task.cancel(true);
+          }
+        });
+    return result;
+  }
+
+  /**
+   * Streams the items through the action, taking the next item only when there is room for it
+   * among the items in flight, and hands the results to the consumer in the order of the items as
+   * soon as all the previous ones are done. Both the items and the consumer are only used from the
+   * calling thread, which waits until the last result is consumed. The first failure is propagated
+   * to the caller without waiting for the items in flight: their futures get cancelled, which only
+   * stops the work behind them when the action ties it to the returned future. Claude API requests
+   * already sent keep running until they complete. Returns the number of items taken.
+   */
+  public <T, R> int streamInOrder(
+      Iterator<T> items,
+      int parallelism,
+      Function<T, CompletableFuture<R>> action,
+      Consumer<R> consumer) {
+    var pending = new ArrayDeque<CompletableFuture<R>>();
+    var running = new AtomicInteger();
+    var completions = new Semaphore(0);
+    var failure = new CompletableFuture<Void>();
+    var taken = 0;
+    try {
+      while (true) {
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+          consumer.accept(pending.poll().join());
+        }
+        if (failure.isDone()) {
+          failure.join();
+        }
+        if (running.get() < Math.max(1, parallelism) && items.hasNext()) {
+          var item = items.next();
+          taken++;
+          CompletableFuture<R> launched;
+          try {
+            launched = action.apply(item);
+          } catch (RuntimeException ex) {
+            launched = CompletableFuture.failedFuture(ex);
+          }
+          running.incrementAndGet();
+          pending.add(launched);
+          launched.whenComplete(
+              (__, error) -> {
+                running.decrementAndGet();
+                if (error != null) {
+                  failure.completeExceptionally(error);
+                }
+                completions.release();
+              });
+          continue;
+        }
+        if (pending.isEmpty()) {
+          return taken;
+        }
+        completions.acquire();
+      }
+    } catch (CompletionException ex) {
+      // propagate the original failure so the exception handlers can translate it
+      throw ex.getCause() instanceof RuntimeException runtime
+          ? runtime
+          : new IllegalStateException("Problems while executing the batch.", ex.getCause());
+    } catch (CancellationException ex) {
+      throw new TokenExhaustedException("Batch execution was cancelled.", ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new TokenExhaustedException("Batch execution was interrupted.", ex);
+    } finally {
+      // nobody waits for the rest of the rows once the batch failed, the requests behind them
+      // still complete on their own
+      pending.forEach(future -> future.cancel(true));
+    }
+  }
+
+  @PreDestroy
+  void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.execution;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.inject.Singleton;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import org.example.gcp.bqclaude.MessageBatchesConfiguration;
+
+/**
+ * Remembers the Message Batches API jobs submitted for each BigQuery request id, so the retries of
+ * the same request check on the submitted job instead of submitting it again. The jobs are kept in
+ * the memory of each instance, a retry taken by another instance of the function submits the batch
+ * again.
+ */
+@Singleton
+public class BatchJobStore {
+
+  private final AsyncCache<String, BatchJob> jobs;
+
+  public BatchJobStore(MessageBatchesConfiguration configuration) {
+    this.jobs =
+        Caffeine.newBuilder()
+            .maximumSize(configuration.maxJobs())
+            .expireAfterWrite(configuration.jobTtl())
+            .buildAsync();
+  }
+
+  /**
+   * Submits the job of a request unless one is already tracked, concurrent invocations for the
+   * same request id wait for the submission instead of submitting the batch again. The submission
+   * runs outside of the cache, which only holds a placeholder for it meanwhile, and a failed one is
+   * not tracked.
+   */
+  public BatchJob trackIfAbsent(String requestId, Supplier<BatchJob> submit) {
+    var placeholder = new CompletableFuture<BatchJob>();
+    var tracked = jobs.asMap().putIfAbsent(requestId, placeholder);
+    if (tracked != null) {
+      try {
+        return tracked.join();
+      } catch (CompletionException ex) {
+        throw ex.getCause() instanceof RuntimeException cause ? cause : ex;
+      }
+    }
+    try {
+      var job = submit.get();
+      placeholder.complete(job);
+      return job;
+    } catch (RuntimeException ex) {
+      // failed futures are removed from the cache
+      placeholder.completeExceptionally(ex);
+      throw ex;
+    }
+  }
+
+  public void track(String requestId, BatchJob job) {
+    jobs.put(requestId, CompletableFuture.completedFuture(job));
+  }
+
+  public void forget(String requestId) {
+    jobs.synchronous().invalidate(requestId);
+  }
+
+  /**
+   * A submitted job along with the token that created it, only that token can be used to check on
+   * its status and results.
+   */
+  public record BatchJob(String batchId, String token, int rows, long lastPolledMillis) {
+
+    BatchJob polledAt(long millis) {
+      return new BatchJob(batchId, token, rows, millis);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.execution;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.inject.Singleton;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.example.gcp.bqclaude.QuotaConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.Body;
+import org.example.gcp.bqclaude.exceptions.QuotaExceededException;
+
+/**
+ * Accounts the Claude API requests and the tokens consumed by every BigQuery query and session
+ * user, and admits their batches while they are within their quotas. Counters are kept per caller
+ * and fixed window, and recording on them is a lookup plus the update of striped counters, so rows
+ * completing at the same time for the same caller do not contend. Windows that passed are evicted,
+ * while the counters of the current window are kept for as long as it lasts: once there are too
+ * many callers to count, the batches of the callers without counters are rejected.
+ *
+ * <p>Quotas are only checked when a batch arrives: a batch admitted within the quota runs to
+ * completion, and the next batches of its caller are rejected until the window passes.
+ */
+@Singleton
+public class CallerUsage {
+
+  /** Counters per query, the caller of the BigQuery request. */
+  public static final String CALLER = "caller";
+
+  /** Counters per session user of the BigQuery request. */
+  public static final String SESSION_USER = "session-user";
+
+  private final QuotaConfiguration configuration;
+  private final Map<String, Long> limits;
+  private final Cache<Key, Counters> counters;
+  private final LongAdder rejected = new LongAdder();
+
+  public CallerUsage(QuotaConfiguration configuration) {
+    this.configuration = configuration;
+    this.limits = limits(configuration);
+    this.counters =
+        Caffeine.newBuilder()
+            // the counters of a window are no longer read once the next one started
+            .expireAfterWrite(configuration.window().multipliedBy(2))
+            .build();
+  }
+
+  static Map<String, Long> limits(QuotaConfiguration configuration) {
+    var limits = new HashMap<String, Long>();
+    if (configuration.limits() != null) {
+      for (var entry : configuration.limits()) {
+        var separator = entry.lastIndexOf('=');
+        if (separator <= 0) {
+          throw new IllegalArgumentException(
+              "Quotas are expected as name=tokens, got: " + entry);
+        }
+        limits.put(
+            entry.substring(0, separator).trim(),
+            Long.parseLong(entry.substring(separator + 1).trim()));
+      }
+    }
+    return limits;
+  }
+
+  public boolean enabled() {
+    return configuration.enabled();
+  }
+
+  /**
+   * Counts a Claude API request sent for the query and its session user, along with the tokens
+   * consumed by its reply when it got one.
+   */
+  public void record(String caller, String sessionUser, Body.Usage usage) {
+    record(caller, sessionUser, usage, 1);
+  }
+
+  /** Counts the requests sent for a row, each one consuming the tokens of the reply it got. */
+  public void record(String caller, String sessionUser, Body.Usage usage, int requests) {
+    if (!configuration.enabled()) {
+      return;
+    }
+    var window = window(System.currentTimeMillis());
+    counters(CALLER, caller, window).add(usage, requests);
+    counters(SESSION_USER, sessionUser, window).add(usage, requests);
+  }
+
+  Counters counters(String type, String name, long window) {
+    return counters.get(new Key(type, nonNull(name), window), __ -> new Counters());
+  }
+
+  /** What the query or session user consumed in the current window. */
+  public Usage usage(String type, String name) {
+    var current =
+        counters.getIfPresent(new Key(type, nonNull(name), window(System.currentTimeMillis())));
+    return current == null ? Usage.NONE : current.usage();
+  }
+
+  /**
+   * Rejects the batch when its session user, or its query with the {@code caller} key, already
+   * consumed its quota of tokens for the current window, or when it has no counters yet and there
+   * is no room left for them. The counters of an admitted batch are created up front.
+   */
+  public void admit(String caller, String sessionUser) {
+    if (!configuration.enabled()) {
+      return;
+    }
+    var window = window(System.currentTimeMillis());
+    var callerKey = new Key(CALLER, nonNull(caller), window);
+    var sessionUserKey = new Key(SESSION_USER, nonNull(sessionUser), window);
+    if ((counters.getIfPresent(callerKey) == null || counters.getIfPresent(sessionUserKey) == null)
+        && !hasRoom()) {
+      rejected.increment();
+      throw new QuotaExceededException(
+          "Usage of "
+              + configuration.maxEntries()
+              + " callers already counted, retry once the window passes.");
+    }
+    counters.get(callerKey, __ -> new Counters());
+    counters.get(sessionUserKey, __ -> new Counters());
+    var type = CALLER.equals(configuration.key()) ? CALLER : SESSION_USER;
+    var name = nonNull(CALLER.equals(type) ? caller : sessionUser);
+    var limit = limits.getOrDefault(name, configuration.defaultLimit());
+    if (limit > 0 && usage(type, name).tokens() >= limit) {
+      rejected.increment();
+      throw new QuotaExceededException(
+          "Quota of "
+              + limit
+              + " tokens per "
+              + configuration.window()
+              + " consumed, retry once the window passes.");
+    }
+  }
+
+  boolean hasRoom() {
+    if (counters.estimatedSize() + 2 <= configuration.maxEntries()) {
+      return true;
+    }
+    // the estimate still holds the windows that passed until they get cleaned up
+    counters.cleanUp();
+    return counters.estimatedSize() + 2 <= configuration.maxEntries();
+  }
+
+  /** Batches rejected for being over their quota. */
+  public long rejected() {
+    return rejected.sum();
+  }
+
+  long window(long nowMillis) {
+    return nowMillis / Math.max(1, configuration.window().toMillis());
+  }
+
+  static String nonNull(String name) {
+    return name == null ? "" : name;
+  }
+
+  /** Requests and tokens consumed in a window. */
+  public record Usage(long requests, long inputTokens, long outputTokens) {
+
+    static final Usage NONE = new Usage(0, 0, 0);
+
+    public long tokens() {
+      return inputTokens + outputTokens;
+    }
+  }
+
+  record Key(String type, String name, long window) {}
+
+  static final class Counters {
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder inputTokens = new LongAdder();
+    private final LongAdder outputTokens = new LongAdder();
+
+    void add(Body.Usage usage, int count) {
+      requests.add(count);
+      if (usage != null) {
+        // prompt cache writes are billed as input tokens, cache reads are not
+        inputTokens.add((long) count * (usage.inputTokens() + usage.cacheCreationInputTokens()));
+        outputTokens.add((long) count * usage.outputTokens());
+      }
+    }
+
+    Usage usage() {
+      return new Usage(requests.sum(), inputTokens.sum(), outputTokens.sum());
+    }
+  }
+}
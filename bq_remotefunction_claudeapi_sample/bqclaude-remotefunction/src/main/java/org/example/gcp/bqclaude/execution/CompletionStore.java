@@ -0,0 +1,76 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.execution;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.inject.Singleton;
+import java.util.Optional;
+import org.example.gcp.bqclaude.CompletionStoreConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeResponse;
+
+/**
+ * Keeps the successful responses of the rows of a batch, keyed by the BigQuery request id and the
+ * row index. When BigQuery retries a failed batch with the same request id, the rows completed on
+ * a previous attempt are served from here and only the rest get executed again.
+ */
+@Singleton
+public class CompletionStore {
+
+  private final CompletionStoreConfiguration configuration;
+  private final Cache<String, ClaudeResponse> completed;
+
+  public CompletionStore(CompletionStoreConfiguration configuration) {
+    this.configuration = configuration;
+    this.completed =
+        Caffeine.newBuilder()
+            .maximumSize(configuration.maxEntries())
+            .expireAfterWrite(configuration.ttl())
+            .build();
+  }
+
+  public Optional<ClaudeResponse> lookup(String requestId, int row) {
+    if (!usable(requestId)) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(completed.getIfPresent(key(requestId, row)));
+  }
+
+  public ClaudeResponse record(String requestId, int row, ClaudeResponse response) {
+    if (usable(requestId) && response.isOk()) {
+      completed.put(key(requestId, row), response);
+    }
+    return response;
+  }
+
+  /** Drops the rows of a batch once it has been fully answered. */
+  public void forget(String requestId, int rows) {
+    if (usable(requestId)) {
+      for (int row = 0; row < rows; row++) {
+        completed.invalidate(key(requestId, row));
+      }
+    }
+  }
+
+  boolean usable(String requestId) {
+    return configuration.enabled() && requestId != null && !requestId.isBlank();
+  }
+
+  static String key(String requestId, int row) {
+    return requestId + "#" + row;
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.execution;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import org.example.gcp.bqclaude.FairnessConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.example.gcp.bqclaude.tokens.TokenDispatcher;
+import org.example.gcp.bqclaude.tokens.TokenEstimator;
+
+/**
+ * Shares the API tokens between the BigQuery callers sending rows at the same time, so a large
+ * query can not starve the interactive ones. Every caller gets its own queue of rows, and while
+ * there is room for more rows in flight they are started by deficit round robin: in its turn a
+ * caller earns its weight times the quantum, in estimated tokens, and starts the queued rows that
+ * fit in what it has earned, keeping the rest for its next turn. A caller with a few rows gets them
+ * started in its first turn, while the callers with many rows take the rest of the capacity.
+ *
+ * <p>The room for rows in flight follows the sum of the in flight limits of the tokens, so rows
+ * wait here, where they are ordered by caller, instead of on the tokens. Callers without rows
+ * queued or in flight are forgotten, along with what they earned.
+ */
+@Singleton
+public class FairScheduler {
+
+  private final Map<String, Flow> flows = new HashMap<>();
+  // callers with rows queued, in the order of their turns
+  private final Deque<Flow> active = new ArrayDeque<>();
+  private final Map<String, Integer> weights;
+  private final FairnessConfiguration configuration;
+  private int inFlight = 0;
+  private int queued = 0;
+
+  @Inject TokenDispatcher tokens;
+  @Inject TokenEstimator estimator;
+
+  @Inject
+  public FairScheduler(FairnessConfiguration configuration) {
+    this.configuration = configuration;
+    this.weights = weights(configuration);
+  }
+
+  static Map<String, Integer> weights(FairnessConfiguration configuration) {
+    var weights = new HashMap<String, Integer>();
+    if (configuration.weights() != null) {
+      for (var entry : configuration.weights()) {
+        var separator = entry.lastIndexOf('=');
+        if (separator <= 0) {
+          throw new IllegalArgumentException(
+              "Fairness weights are expected as name=weight, got: " + entry);
+        }
+        weights.put(
+            entry.substring(0, separator).trim(),
+            Math.max(1, Integer.parseInt(entry.substring(separator + 1).trim())));
+      }
+    }
+    return weights;
+  }
+
+  public boolean enabled() {
+    return configuration.enabled();
+  }
+
+  /** The session user or the query sending the rows, depending on the configured key. */
+  public String caller(String caller, String sessionUser) {
+    var key = "caller".equals(configuration.key()) ? caller : sessionUser;
+    return key == null ? "" : key;
+  }
+
+  int weight(String caller) {
+    return weights.getOrDefault(caller, Math.max(1, configuration.defaultWeight()));
+  }
+
+  /** Rows waiting for room to be started. */
+  public synchronized int queued() {
+    return queued;
+  }
+
+  /**
+   * Starts the send of the request once it is the turn of its caller, the returned future
+   * completes with the result of the send. Cancelling it before the turn comes drops the request.
+   */
+  public <R> CompletableFuture<R> submit(
+      String caller, ClaudeRequest request, Supplier<CompletableFuture<R>> send) {
+    var result = new CompletableFuture<R>();
+    var cost = cost(request);
+    synchronized (this) {
+      var flow = flows.computeIfAbsent(caller, name -> new Flow(name, weight(name)));
+      if (flow.queue.isEmpty()) {
+        active.add(flow);
+      }
+      flow.queue.add(new Task(cost, () -> start(flow, result, send)));
+      queued++;
+    }
+    dispatch();
+    return result;
+  }
+
+  /** Rows cost their estimated tokens, or a whole quantum when estimates are disabled. */
+  long cost(ClaudeRequest request) {
+    var estimate = estimator.estimate(request);
+    var cost = estimate.inputTokens() + estimate.outputTokens();
+    return cost > 0 ? cost : Math.max(1, configuration.quantum());
+  }
+
+  int capacity() {
+    return configuration.maxInFlight() > 0
+        ? configuration.maxInFlight()
+        : Math.max(1, tokens.concurrencyLimit());
+  }
+
+  <R> void start(Flow flow, CompletableFuture<R> result, Supplier<CompletableFuture<R>> send) {
+    if (result.isDone()) {
+      // cancelled while queued
+      release(flow);
+      return;
+    }
+    CompletableFuture<R> sent;
+    try {
+      sent = send.get();
+    } catch (RuntimeException ex) {
+      sent = CompletableFuture.failedFuture(ex);
+    }
+    var running = sent;
+    running.whenComplete(
+        (value, error) -> {
+          release(flow);
+          if (error != null) {
+            result.completeExceptionally(error);
+          } else {
+            result.complete(value);
+          }
+        });
+    // cancelling the result cancels the send
+    result.whenComplete(
+        (__, error) -> {
+          if (result.isCancelled()) {
+            running.cancel(true);
+          }
+        });
+  }
+
+  /** Starts the rows that fit in the room left, in the turns of their callers. */
+  void dispatch() {
+    while (true) {
+      Task next;
+      synchronized (this) {
+        next = inFlight < capacity() ? next() : null;
+        if (next == null) {
+          return;
+        }
+        inFlight++;
+      }
+      next.start().run();
+    }
+  }
+
+  /** Picks the next row of the caller on its turn, moving to the next turn when it runs short. */
+  Task next() {
+    while (!active.isEmpty()) {
+      var flow = active.peek();
+      if (!flow.onTurn) {
+        flow.onTurn = true;
+        flow.deficit += flow.weight * Math.max(1, configuration.quantum());
+      }
+      var task = flow.queue.peek();
+      if (task.cost() <= flow.deficit) {
+        flow.queue.poll();
+        queued--;
+        flow.deficit -= task.cost();
+        flow.inFlight++;
+        if (flow.queue.isEmpty()) {
+          // nothing left to spend what was earned on
+          active.poll();
+          flow.onTurn = false;
+          flow.deficit = 0;
+        }
+        return task;
+      }
+      flow.onTurn = false;
+      active.poll();
+      active.add(flow);
+    }
+    return null;
+  }
+
+  /** Frees the room of a row, which is taken right away by the next one. */
+  void release(Flow flow) {
+    synchronized (this) {
+      inFlight--;
+      flow.inFlight--;
+      if (flow.inFlight == 0 && flow.queue.isEmpty()) {
+        flows.remove(flow.caller, flow);
+      }
+    }
+    dispatch();
+  }
+
+  /** A row waiting for its turn, and how it is started. */
+  record Task(long cost, Runnable start) {}
+
+  /** The rows of a caller waiting for their turn and what it has earned to start them. */
+  static final class Flow {
+
+    final String caller;
+    final int weight;
+    final Deque<Task> queue = new ArrayDeque<>();
+    long deficit = 0;
+    boolean onTurn = false;
+    int inFlight = 0;
+
+    Flow(String caller, int weight) {
+      this.caller = caller;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.execution;
+
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.example.gcp.bqclaude.MessageBatchesConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.BatchItem;
+import org.example.gcp.bqclaude.client.Interactions.BatchResult;
+import org.example.gcp.bqclaude.client.Interactions.Body;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeResponse;
+import org.example.gcp.bqclaude.client.MessageBatchesClient;
+import org.example.gcp.bqclaude.exceptions.BatchPendingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes whole BigQuery batches through the Message Batches API. The first invocation for a
+ * request id submits the job and answers with a 429, and the BigQuery retries of the same request
+ * keep getting a 429 until the job ends and its results can be returned.
+ */
+@Singleton
+public class MessageBatchEngine {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MessageBatchEngine.class);
+  private static final String ROW_PREFIX = "row-";
+
+  @Inject MessageBatchesClient client;
+  @Inject BatchJobStore jobs;
+  @Inject MessageBatchesConfiguration configuration;
+
+  public List<ClaudeResponse> execute(String requestId, List<ClaudeRequest> requests) {
+    if (requestId == null || requestId.isBlank()) {
+      throw new HttpStatusException(
+          HttpStatus.BAD_REQUEST, "Message batches execution needs a request id.");
+    }
+    var submitted = new AtomicBoolean();
+    var job =
+        jobs.trackIfAbsent(
+            requestId,
+            () -> {
+              submitted.set(true);
+              return submit(requestId, requests);
+            });
+    if (submitted.get()) {
+      throw new BatchPendingException("Message batch submitted, retry later for results.");
+    }
+    var now = System.currentTimeMillis();
+    if (now - job.lastPolledMillis() < configuration.pollInterval().toMillis()) {
+      throw new BatchPendingException("Message batch still in progress.");
+    }
+    var batch = client.retrieve(job.token(), job.batchId());
+    if (!batch.ended()) {
+      jobs.track(requestId, job.polledAt(now));
+      throw new BatchPendingException("Message batch still in progress.");
+    }
+    var responses = collect(job.token(), requests.size(), client.results(job.token(), batch));
+    jobs.forget(requestId);
+    return responses;
+  }
+
+  BatchJobStore.BatchJob submit(String requestId, List<ClaudeRequest> requests) {
+    var items =
+        IntStream.range(0, requests.size())
+            .mapToObj(row -> new BatchItem(ROW_PREFIX + row, requests.get(row)))
+            .toList();
+    var submitted = client.submit(items);
+    LOG.atInfo().log(
+        "Submitted message batch {} for request {} with {} rows.",
+        submitted.batch().id(),
+        requestId,
+        requests.size());
+    // no poll is needed until the first retry
+    return new BatchJobStore.BatchJob(
+        submitted.batch().id(), submitted.token(), requests.size(), 0);
+  }
+
+  /** Places every result in the slot of its row, rows without a result are reported as failed. */
+  static List<ClaudeResponse> collect(String token, int rows, List<BatchResult> results) {
+    Map<String, BatchResult> byRow =
+        results.stream()
+            .collect(Collectors.toMap(BatchResult::customId, Function.identity(), (a, b) -> a));
+    var responses = new ArrayList<ClaudeResponse>(rows);
+    for (int row = 0; row < rows; row++) {
+      var result = byRow.get(ROW_PREFIX + row);
+      Body body =
+          result == null
+              ? Body.Failed.of("api_error", "Missing result in message batch.")
+              : result.result().body();
+      responses.add(new ClaudeResponse(token, body, Map.of()));
+    }
+    return responses;
+  }
+}
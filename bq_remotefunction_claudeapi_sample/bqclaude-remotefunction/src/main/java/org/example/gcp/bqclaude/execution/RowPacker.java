@@ -0,0 +1,170 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.execution;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.micronaut.core.annotation.ReflectiveAccess;
+import io.micronaut.core.type.Argument;
+import io.micronaut.json.JsonMapper;
+import io.micronaut.serde.annotation.Serdeable;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import org.example.gcp.bqclaude.PackingConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.Body;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeResponse;
+import org.example.gcp.bqclaude.client.Interactions.Message;
+import org.example.gcp.bqclaude.client.Interactions.Role;
+import org.example.gcp.bqclaude.client.Interactions.SystemBlock;
+
+/**
+ * Packs several short rows into a single Claude API request and splits its reply back into the
+ * rows. Rows are numbered in the request and Claude is asked to answer with a JSON array holding
+ * one answer per row, the reply is started with the opening bracket so it can only continue the
+ * array. Replies that do not hold exactly one answer per row are rejected, so those rows can be
+ * executed on their own.
+ */
+@Singleton
+public class RowPacker {
+
+  static final String ARRAY_START = "[";
+
+  @Inject JsonMapper jsonMapper;
+  @Inject PackingConfiguration configuration;
+
+  /** Rows per packed request, the requested value can not go over the configured maximum. */
+  public int packSize(int requested) {
+    return Math.max(1, Math.min(requested, configuration.maxRows()));
+  }
+
+  /** Builds one request for all the rows, they all share the model and the system prompt. */
+  public ClaudeRequest pack(List<ClaudeRequest> rows) {
+    var first = rows.getFirst();
+    var system =
+        new ArrayList<>(Objects.requireNonNullElse(first.system(), List.<SystemBlock>of()));
+    // appended after the shared prompt so a cached prompt keeps being a prefix of the request
+    system.add(new SystemBlock("text", instruction(rows.size()), null));
+    var inputs = new StringBuilder();
+    for (int i = 0; i < rows.size(); i++) {
+      inputs
+          .append("<input id=\"")
+          .append(i + 1)
+          .append("\">\n")
+          .append(content(rows.get(i)))
+          .append("\n</input>\n");
+    }
+    var maxTokens =
+        Math.min(
+            configuration.maxTokens(), rows.stream().mapToInt(ClaudeRequest::maxTokens).sum());
+    return new ClaudeRequest(
+        first.model(),
+        List.of(
+            new Message(Role.USER, inputs.toString()), new Message(Role.ASSISTANT, ARRAY_START)),
+        maxTokens,
+        system);
+  }
+
+  static String instruction(int rows) {
+    return "The user message holds "
+        + rows
+        + " independent inputs, each one between <input id=\"N\"> and </input> tags. Follow the"
+        + " instructions above for every input on its own and reply only with a JSON array of "
+        + rows
+        + " objects, one per input in the same order, each one with the \"id\" of the input and"
+        + " the complete \"answer\" for it as a string. Do not add anything else to the reply.";
+  }
+
+  static String content(ClaudeRequest row) {
+    return row.messages().stream().map(Message::content).collect(Collectors.joining("\n"));
+  }
+
+  /**
+   * Splits the reply of a packed request into the replies of its rows, in the order of the rows.
+   * Nothing is returned when the reply failed or does not hold one answer for every row.
+   */
+  public Optional<List<ClaudeResponse>> unpack(ClaudeResponse packed, int rows) {
+    if (!packed.isOk()) {
+      return Optional.empty();
+    }
+    var reply = packed.okResponse();
+    var text =
+        reply.content().stream()
+            .filter(content -> "text".equals(content.type()))
+            .map(Body.Content::text)
+            .collect(Collectors.joining());
+    List<PackedAnswer> answers;
+    try {
+      answers = jsonMapper.readValue(ARRAY_START + text, Argument.listOf(PackedAnswer.class));
+    } catch (IOException | RuntimeException ex) {
+      return Optional.empty();
+    }
+    var byRow = new String[rows];
+    for (var answer : answers) {
+      if (answer == null
+          || answer.answer() == null
+          || answer.id() < 1
+          || answer.id() > rows
+          || byRow[answer.id() - 1] != null) {
+        return Optional.empty();
+      }
+      byRow[answer.id() - 1] = answer.answer();
+    }
+    var usage = split(reply.usage(), rows);
+    var responses = new ArrayList<ClaudeResponse>(rows);
+    for (var answer : byRow) {
+      if (answer == null) {
+        return Optional.empty();
+      }
+      responses.add(
+          new ClaudeResponse(
+              packed.tokenId(),
+              new Body.OK(
+                  List.of(new Body.Content(answer, "text")),
+                  reply.id(),
+                  reply.model(),
+                  reply.role(),
+                  reply.stopReason(),
+                  reply.stopSequence(),
+                  reply.type(),
+                  usage),
+              packed.headers()));
+    }
+    return Optional.of(responses);
+  }
+
+  /** Each row gets an even share of the usage of the packed request. */
+  static Body.Usage split(Body.Usage usage, int rows) {
+    if (usage == null) {
+      return null;
+    }
+    return new Body.Usage(
+        usage.inputTokens() / rows,
+        usage.outputTokens() / rows,
+        usage.cacheCreationInputTokens() / rows,
+        usage.cacheReadInputTokens() / rows);
+  }
+
+  @Serdeable
+  @ReflectiveAccess
+  record PackedAnswer(@JsonProperty("id") int id, @JsonProperty("answer") String answer) {}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micronaut.core.annotation.Nullable;
+import jakarta.inject.Singleton;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the operational signals of the function: the latency and result of every Claude API
+ * request per token and model, the retries along with the time spent backing off, and the size
+ * and latency of every BigQuery request. Meters are created once and cached, so recording is a
+ * lookup on a concurrent map plus the lock free update of the meter. When metrics are disabled
+ * everything is recorded on a registry without children, which discards it.
+ */
+@Singleton
+public class ClaudeMetrics {
+
+  public static final String REQUESTS = "claude.requests";
+  public static final String RETRIES = "claude.retries";
+  public static final String BATCH_ROWS = "bqclaude.batch.rows";
+  public static final String BATCH_DURATION = "bqclaude.batch.duration";
+
+  /** Result of the requests that got a reply. */
+  public static final String OK_RESULT = "ok";
+
+  private static final Duration MIN_EXPECTED_LATENCY = Duration.ofMillis(50);
+  private static final Duration MAX_EXPECTED_LATENCY = Duration.ofMinutes(10);
+
+  private final MeterRegistry registry;
+  private final Map<RequestKey, Timer> requests = new ConcurrentHashMap<>();
+  private final Map<String, Timer> batches = new ConcurrentHashMap<>();
+  private final Timer retries;
+  private final DistributionSummary batchRows;
+
+  public ClaudeMetrics(@Nullable MeterRegistry registry) {
+    this.registry = registry != null ? registry : new CompositeMeterRegistry();
+    this.retries =
+        Timer.builder(RETRIES)
+            .description("Retried Claude API requests and the time spent backing off before them.")
+            .register(this.registry);
+    this.batchRows =
+        DistributionSummary.builder(BATCH_ROWS)
+            .description("Rows on each BigQuery request.")
+            .baseUnit("rows")
+            .register(this.registry);
+  }
+
+  public MeterRegistry registry() {
+    return registry;
+  }
+
+  /**
+   * Records a Claude API request made with the token of the alias for the model. The result is
+   * {@link #OK_RESULT} or the type of the error, like {@code rate_limit_error} for 429 or {@code
+   * api_error} and {@code overloaded_error} for 5xx responses.
+   */
+  public void recordRequest(String alias, String model, String result, long latencyNanos) {
+    requests
+        .computeIfAbsent(
+            new RequestKey(alias, model, result),
+            key ->
+                Timer.builder(REQUESTS)
+                    .description("Latency of the Claude API requests per token, model and result.")
+                    .tag("token", key.alias())
+                    .tag("model", key.model())
+                    .tag("result", key.result())
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(MIN_EXPECTED_LATENCY)
+                    .maximumExpectedValue(MAX_EXPECTED_LATENCY)
+                    .register(registry))
+        .record(latencyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void recordRetry(Duration backoff) {
+    retries.record(backoff);
+  }
+
+  /** Records a BigQuery request answered with the given execution mode. */
+  public void recordBatch(String mode, int rows, long latencyNanos) {
+    batchRows.record(rows);
+    batches
+        .computeIfAbsent(
+            mode,
+            key ->
+                Timer.builder(BATCH_DURATION)
+                    .description("End to end latency of the BigQuery requests.")
+                    .tag("mode", key)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(MIN_EXPECTED_LATENCY)
+                    .maximumExpectedValue(MAX_EXPECTED_LATENCY)
+                    .register(registry))
+        .record(latencyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  record RequestKey(String alias, String model, String result) {}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.metrics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micronaut.configuration.metrics.micrometer.MeterRegistryFactory;
+import io.micronaut.context.annotation.Factory;
+import io.micronaut.context.annotation.Requires;
+import io.micronaut.core.util.StringUtils;
+import jakarta.inject.Singleton;
+
+/**
+ * Keeps the meters in memory, so they can be read from the metrics endpoint. Logging the meters
+ * periodically, or exporting them elsewhere, only needs the configuration of the matching registry.
+ */
+@Factory
+public class MetricsFactory {
+
+  @Singleton
+  @Requires(
+      property = MeterRegistryFactory.MICRONAUT_METRICS_ENABLED,
+      notEquals = StringUtils.FALSE)
+  SimpleMeterRegistry simpleMeterRegistry() {
+    return new SimpleMeterRegistry();
+  }
+}
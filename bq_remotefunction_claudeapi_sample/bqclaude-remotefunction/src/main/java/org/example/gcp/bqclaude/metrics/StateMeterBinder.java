@@ -0,0 +1,120 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.inject.Inject;
+import jakarta.inject.Provider;
+import jakarta.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import org.example.gcp.bqclaude.client.ClaudeClient;
+import org.example.gcp.bqclaude.client.Hedger;
+import org.example.gcp.bqclaude.client.UsageStats;
+import org.example.gcp.bqclaude.execution.CallerUsage;
+import org.example.gcp.bqclaude.execution.FairScheduler;
+import org.example.gcp.bqclaude.tokens.TokenDispatcher;
+
+/**
+ * Exposes the state kept by the function as meters read when the metrics are collected: the
+ * consumed tokens, the state, the concurrency limit and the reserved tokens of every API token, and
+ * the time to the first token of streamed replies, the rows waiting for the turn of their caller,
+ * the hedged requests sent and won and the batches rejected by the quotas. Nothing is recorded on
+ * the request path.
+ */
+@Singleton
+public class StateMeterBinder implements MeterBinder {
+
+  public static final String USAGE = "claude.usage.tokens";
+  public static final String TOKEN_STATE = "claude.token.state";
+  public static final String TOKEN_LIMIT = "claude.token.concurrency.limit";
+  public static final String TOKEN_RESERVED = "claude.token.budget.reserved";
+  public static final String TIME_TO_FIRST_TOKEN = "claude.stream.time.to.first.token";
+  public static final String FAIRNESS_QUEUED = "bqclaude.fairness.queued";
+  public static final String HEDGES = "claude.hedges";
+  public static final String QUOTA_REJECTED = "bqclaude.quota.rejected";
+
+  @Inject TokenDispatcher tokens;
+  @Inject UsageStats usageStats;
+  @Inject FairScheduler fairScheduler;
+  @Inject Hedger hedger;
+  @Inject CallerUsage callerUsage;
+  // resolved when read, as the HTTP client needs the executors instrumented by the registry
+  @Inject Provider<ClaudeClient> claudeClient;
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    usage(registry, "input", UsageStats::inputTokens);
+    usage(registry, "output", UsageStats::outputTokens);
+    usage(registry, "cache_creation", UsageStats::cacheCreationInputTokens);
+    usage(registry, "cache_read", UsageStats::cacheReadInputTokens);
+    for (var alias : tokens.concurrencyLimits().keySet()) {
+      Gauge.builder(TOKEN_LIMIT, tokens, dispatcher -> dispatcher.concurrencyLimits().get(alias))
+          .description("Current limit of requests in flight for the token.")
+          .tag("token", alias)
+          .register(registry);
+      Gauge.builder(TOKEN_RESERVED, tokens, dispatcher -> dispatcher.reservedTokens().get(alias))
+          .description("Input and output tokens reserved by the requests in flight on the token.")
+          .tag("token", alias)
+          .register(registry);
+      // one series per state, set to 1 for the current state of the token
+      for (var state : List.of(TokenDispatcher.STATES)) {
+        Gauge.builder(
+                TOKEN_STATE,
+                tokens,
+                dispatcher -> state.equals(dispatcher.tokenStates().get(alias)) ? 1 : 0)
+            .description("Latest known state of the token.")
+            .tag("token", alias)
+            .tag("state", state)
+            .register(registry);
+      }
+    }
+    TimeGauge.builder(
+            TIME_TO_FIRST_TOKEN,
+            claudeClient,
+            TimeUnit.MILLISECONDS,
+            client -> client.get().averageTimeToFirstToken().toMillis())
+        .description("Average time until the first content of streamed replies arrived.")
+        .register(registry);
+    Gauge.builder(FAIRNESS_QUEUED, fairScheduler, FairScheduler::queued)
+        .description("Rows waiting for the turn of their caller to be sent.")
+        .register(registry);
+    FunctionCounter.builder(HEDGES, hedger, Hedger::hedgesSent)
+        .description("Requests sent again with another token after being slow to reply.")
+        .tag("outcome", "sent")
+        .register(registry);
+    FunctionCounter.builder(HEDGES, hedger, Hedger::hedgesWon)
+        .description("Requests sent again with another token after being slow to reply.")
+        .tag("outcome", "won")
+        .register(registry);
+    FunctionCounter.builder(QUOTA_REJECTED, callerUsage, CallerUsage::rejected)
+        .description("Batches rejected for their caller being over its quota of tokens.")
+        .register(registry);
+  }
+
+  void usage(MeterRegistry registry, String type, ToLongFunction<UsageStats> count) {
+    FunctionCounter.builder(USAGE, usageStats, stats -> count.applyAsLong(stats))
+        .description("Tokens consumed by the successful replies.")
+        .tag("type", type)
+        .register(registry);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import org.example.gcp.bqclaude.ConcurrencyConfiguration;
+
+/**
+ * Bounds the number of requests in flight for a token without blocking threads, waiters get a
+ * future that completes when a permit is handed to them.
+ *
+ * <p>When adaptive, the limit follows an additive increase and multiplicative decrease scheme
+ * driven by the outcome of each request: successes with stable latency grow it by one request per
+ * limit worth of successes, rate limiting or overload responses cut it by the backoff ratio. Only
+ * requests started after the last cut can cut it again, so a burst of rejections from requests
+ * already in flight counts as a single signal.
+ */
+final class InFlightLimiter {
+
+  // weights of the fast moving latency average and of the slow moving baseline
+  private static final double RECENT_WEIGHT = 0.2;
+  private static final double BASELINE_WEIGHT = 0.02;
+
+  private final ConcurrencyConfiguration configuration;
+  private final Deque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+  // only modified while holding the lock, but readable without it when picking tokens
+  private volatile int inFlight = 0;
+  private volatile int limit;
+  private double estimate;
+  private double recentLatency = 0;
+  private double baselineLatency = 0;
+  private long lastDecreaseNanos = Long.MIN_VALUE;
+
+  InFlightLimiter(int initialLimit, ConcurrencyConfiguration configuration) {
+    this.configuration = configuration;
+    this.estimate = clamp(initialLimit);
+    this.limit = (int) estimate;
+  }
+
+  synchronized CompletableFuture<Void> acquire() {
+    if (inFlight < limit) {
+      inFlight++;
+      return CompletableFuture.completedFuture(null);
+    }
+    var waiter = new CompletableFuture<Void>();
+    waiting.add(waiter);
+    return waiter;
+  }
+
+  void release() {
+    while (true) {
+      CompletableFuture<Void> next;
+      synchronized (this) {
+        // after the limit shrinks the permits are retired instead of handed over
+        next = inFlight <= limit ? waiting.poll() : null;
+        if (next == null) {
+          inFlight--;
+          return;
+        }
+      }
+      // the permit is transferred to the waiter, unless it has been cancelled in the meantime
+      if (next.complete(null)) {
+        return;
+      }
+    }
+  }
+
+  /** Adjusts the limit with the outcome of a request that started at the given nano time. */
+  void record(long startNanos, long endNanos, TokenDispatcher.Outcome outcome) {
+    if (!configuration.adaptive() || outcome == TokenDispatcher.Outcome.FAILED) {
+      return;
+    }
+    var granted = new ArrayList<CompletableFuture<Void>>();
+    synchronized (this) {
+      if (outcome == TokenDispatcher.Outcome.OVERLOADED) {
+        if (startNanos > lastDecreaseNanos) {
+          estimate = clamp(estimate * configuration.backoffRatio());
+          lastDecreaseNanos = endNanos;
+        }
+      } else {
+        var latency = (double) (endNanos - startNanos);
+        recentLatency =
+            recentLatency == 0
+                ? latency
+                : recentLatency + RECENT_WEIGHT * (latency - recentLatency);
+        baselineLatency =
+            baselineLatency == 0
+                ? latency
+                : baselineLatency + BASELINE_WEIGHT * (latency - baselineLatency);
+        if (recentLatency > baselineLatency * configuration.latencyTolerance()) {
+          if (startNanos > lastDecreaseNanos) {
+            estimate = clamp(estimate - 1);
+            lastDecreaseNanos = endNanos;
+          }
+        } else {
+          estimate = clamp(estimate + 1.0 / limit);
+        }
+      }
+      limit = (int) estimate;
+      // a grown limit lets the waiters in right away
+      while (inFlight < limit && !waiting.isEmpty()) {
+        inFlight++;
+        granted.add(waiting.poll());
+      }
+    }
+    for (var waiter : granted) {
+      if (!waiter.complete(null)) {
+        release();
+      }
+    }
+  }
+
+  double clamp(double value) {
+    return Math.max(
+        Math.max(1, configuration.minLimit()), Math.min(configuration.maxLimit(), value));
+  }
+
+  int inFlight() {
+    return inFlight;
+  }
+
+  int limit() {
+    return limit;
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import jakarta.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Keeps the resets on the instance, which is all a single instance deployment needs. */
+@Singleton
+public class InMemoryTokenStateStore implements TokenStateStore {
+
+  private final Map<String, KeyReset> resets = new ConcurrentHashMap<>();
+
+  @Override
+  public void publish(KeyReset reset) {
+    resets.merge(
+        reset.model() + "|" + reset.fingerprint(),
+        reset,
+        (current, update) ->
+            update.untilEpochMillis() > current.untilEpochMillis() ? update : current);
+  }
+
+  @Override
+  public CompletableFuture<List<KeyReset>> resets(long nowEpochMillis) {
+    resets.values().removeIf(reset -> reset.untilEpochMillis() <= nowEpochMillis);
+    return CompletableFuture.completedFuture(List.copyOf(resets.values()));
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Numeric view of the rate limit headers returned by Claude API for a token. Unknown values are
+ * represented with {@link #UNKNOWN} and reset marks are kept as epoch millis. The tokens budget is
+ * the most restrictive of the informed ones, while the input and output tokens budgets are also
+ * kept on their own for the token budgets of each token.
+ */
+record RateLimits(
+    long requestsLimit,
+    long requestsRemaining,
+    long requestsReset,
+    long tokensLimit,
+    long tokensRemaining,
+    long tokensReset,
+    Budget inputTokens,
+    Budget outputTokens,
+    long retryAfterMillis,
+    boolean shouldRetry) {
+
+  static final long UNKNOWN = -1;
+  static final RateLimits NONE =
+      new RateLimits(
+          UNKNOWN,
+          UNKNOWN,
+          UNKNOWN,
+          UNKNOWN,
+          UNKNOWN,
+          UNKNOWN,
+          Budget.NONE,
+          Budget.NONE,
+          UNKNOWN,
+          false);
+
+  /** Limit, remaining amount and full replenishment mark of one of the budgets. */
+  record Budget(long limit, long remaining, long reset) {
+
+    static final Budget NONE = new Budget(UNKNOWN, UNKNOWN, UNKNOWN);
+
+    boolean known() {
+      return limit > 0 && remaining != UNKNOWN;
+    }
+  }
+
+  private static final String PREFIX = "anthropic-ratelimit-";
+
+  /** Fraction of the requests budget still available, 1 if we know nothing about it. */
+  double requestsHeadroom(long now) {
+    return headroom(requestsLimit, requestsRemaining, requestsReset, now);
+  }
+
+  /** Fraction of the tokens budget still available, 1 if we know nothing about it. */
+  double tokensHeadroom(long now) {
+    return headroom(tokensLimit, tokensRemaining, tokensReset, now);
+  }
+
+  /** The moment in which the currently exhausted budgets get replenished. */
+  long exhaustedUntil(long now) {
+    var until = now;
+    if (requestsRemaining == 0 && requestsReset != UNKNOWN) {
+      until = Math.max(until, requestsReset);
+    }
+    if (tokensRemaining == 0 && tokensReset != UNKNOWN) {
+      until = Math.max(until, tokensReset);
+    }
+    if (retryAfterMillis != UNKNOWN) {
+      until = Math.max(until, now + retryAfterMillis);
+    }
+    return until;
+  }
+
+  static double headroom(long limit, long remaining, long reset, long now) {
+    if (limit <= 0 || remaining == UNKNOWN || (reset != UNKNOWN && now >= reset)) {
+      return 1.0;
+    }
+    return (double) remaining / limit;
+  }
+
+  /**
+   * Walks the response headers once, capturing the request and token budgets. When Claude API
+   * informs input and output token budgets separately, the most restrictive is kept.
+   */
+  static RateLimits fromHeaders(Map<String, List<String>> headers) {
+    long requestsLimit = UNKNOWN, requestsRemaining = UNKNOWN, requestsReset = UNKNOWN;
+    long tokensLimit = UNKNOWN, tokensRemaining = UNKNOWN, tokensReset = UNKNOWN;
+    long inputLimit = UNKNOWN, inputRemaining = UNKNOWN, inputReset = UNKNOWN;
+    long outputLimit = UNKNOWN, outputRemaining = UNKNOWN, outputReset = UNKNOWN;
+    long retryAfter = UNKNOWN;
+    var shouldRetry = false;
+    for (var entry : headers.entrySet()) {
+      if (entry.getValue() == null || entry.getValue().isEmpty()) {
+        continue;
+      }
+      var name = entry.getKey().toLowerCase(Locale.ROOT);
+      var value = entry.getValue().getFirst();
+      if (name.equals("x-should-retry")) {
+        shouldRetry = Boolean.parseBoolean(value);
+      } else if (name.equals("retry-after")) {
+        retryAfter = parseSeconds(value);
+      } else if (name.startsWith(PREFIX)) {
+        var budget = name.substring(PREFIX.length());
+        switch (budget) {
+          case "requests-limit" -> requestsLimit = parseLong(value);
+          case "requests-remaining" -> requestsRemaining = parseLong(value);
+          case "requests-reset" -> requestsReset = parseInstant(value);
+          case "input-tokens-limit" -> inputLimit = parseLong(value);
+          case "input-tokens-remaining" -> inputRemaining = parseLong(value);
+          case "input-tokens-reset" -> inputReset = parseInstant(value);
+          case "output-tokens-limit" -> outputLimit = parseLong(value);
+          case "output-tokens-remaining" -> outputRemaining = parseLong(value);
+          case "output-tokens-reset" -> outputReset = parseInstant(value);
+          default -> {}
+        }
+        switch (budget) {
+          case "tokens-limit", "input-tokens-limit", "output-tokens-limit" ->
+              tokensLimit = minKnown(tokensLimit, parseLong(value));
+          case "tokens-remaining", "input-tokens-remaining", "output-tokens-remaining" ->
+              tokensRemaining = minKnown(tokensRemaining, parseLong(value));
+          case "tokens-reset", "input-tokens-reset", "output-tokens-reset" ->
+              tokensReset = Math.max(tokensReset, parseInstant(value));
+          default -> {}
+        }
+      }
+    }
+    return new RateLimits(
+        requestsLimit,
+        requestsRemaining,
+        requestsReset,
+        tokensLimit,
+        tokensRemaining,
+        tokensReset,
+        // a single tokens budget is what bounds the input tokens when they are not informed apart
+        inputLimit == UNKNOWN && outputLimit == UNKNOWN
+            ? new Budget(tokensLimit, tokensRemaining, tokensReset)
+            : new Budget(inputLimit, inputRemaining, inputReset),
+        new Budget(outputLimit, outputRemaining, outputReset),
+        retryAfter,
+        shouldRetry);
+  }
+
+  static long minKnown(long current, long candidate) {
+    if (current == UNKNOWN) {
+      return candidate;
+    }
+    return candidate == UNKNOWN ? current : Math.min(current, candidate);
+  }
+
+  static long parseLong(String value) {
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException ex) {
+      return UNKNOWN;
+    }
+  }
+
+  static long parseSeconds(String value) {
+    var seconds = parseLong(value);
+    return seconds == UNKNOWN ? UNKNOWN : seconds * 1000;
+  }
+
+  static long parseInstant(String value) {
+    try {
+      return Instant.parse(value.trim()).toEpochMilli();
+    } catch (DateTimeParseException ex) {
+      return UNKNOWN;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScoredValue;
+import io.lettuce.core.ZAddArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.StringCodec;
+import io.micronaut.context.annotation.Replaces;
+import io.micronaut.context.annotation.Requires;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.example.gcp.bqclaude.TokenStoreConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares the resets through a sorted set on a server speaking the Redis protocol, scored by the
+ * time each token can be used again, so reading the resets still pending is a single range query.
+ * Publishing keeps the latest reset of a token. The connection is opened on first use and opened
+ * again after failing, meanwhile the instance keeps going on what it learned by itself.
+ */
+@Singleton
+@Replaces(InMemoryTokenStateStore.class)
+@Requires(property = "claude.token-store.type", value = "redis")
+public class RedisTokenStateStore implements TokenStateStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RedisTokenStateStore.class);
+  private static final String SEPARATOR = "|";
+
+  private final RedisClient client;
+  private final RedisURI uri;
+  private final String key;
+  private volatile CompletableFuture<StatefulRedisConnection<String, String>> connection;
+
+  public RedisTokenStateStore(TokenStoreConfiguration configuration) {
+    if (configuration.uri() == null || configuration.uri().isBlank()) {
+      throw new IllegalArgumentException("The redis token store needs the uri of the server.");
+    }
+    this.uri = RedisURI.create(configuration.uri());
+    this.client = RedisClient.create();
+    this.key = configuration.key();
+  }
+
+  CompletableFuture<StatefulRedisConnection<String, String>> connection() {
+    var current = connection;
+    if (current != null && !current.isCompletedExceptionally()) {
+      return current;
+    }
+    synchronized (this) {
+      if (connection == null || connection.isCompletedExceptionally()) {
+        connection = client.connectAsync(StringCodec.UTF8, uri).toCompletableFuture();
+      }
+      return connection;
+    }
+  }
+
+  @Override
+  public void publish(KeyReset reset) {
+    connection()
+        .thenCompose(
+            redis ->
+                redis
+                    .async()
+                    .zadd(
+                        key,
+                        ZAddArgs.Builder.gt(),
+                        (double) reset.untilEpochMillis(),
+                        reset.model() + SEPARATOR + reset.fingerprint())
+                    .toCompletableFuture())
+        .whenComplete(
+            (__, error) -> {
+              if (error != null) {
+                LOG.atWarn().setCause(error).log("Could not publish the token reset.");
+              }
+            });
+  }
+
+  @Override
+  public CompletableFuture<List<KeyReset>> resets(long nowEpochMillis) {
+    return connection()
+        .thenCompose(
+            redis -> {
+              var commands = redis.async();
+              // the resets already passed are of no use to anyone
+              commands.zremrangebyscore(
+                  key,
+                  Range.from(Range.Boundary.unbounded(), Range.Boundary.including(nowEpochMillis)));
+              return commands
+                  .zrangebyscoreWithScores(
+                      key,
+                      Range.from(
+                          Range.Boundary.excluding(nowEpochMillis), Range.Boundary.unbounded()))
+                  .toCompletableFuture();
+            })
+        .thenApply(resets -> resets.stream().map(RedisTokenStateStore::reset).toList());
+  }
+
+  static KeyReset reset(ScoredValue<String> scored) {
+    var member = scored.getValue();
+    var separator = member.lastIndexOf(SEPARATOR);
+    return new KeyReset(
+        member.substring(0, separator),
+        member.substring(separator + 1),
+        (long) scored.getScore());
+  }
+
+  @PreDestroy
+  void close() {
+    client.shutdown();
+  }
+}
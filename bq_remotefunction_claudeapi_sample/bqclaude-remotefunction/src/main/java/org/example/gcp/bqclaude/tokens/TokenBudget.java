@@ -0,0 +1,165 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import org.example.gcp.bqclaude.TokenBudgetConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.Body;
+import org.example.gcp.bqclaude.tokens.TokenEstimator.TokenEstimate;
+
+/**
+ * Input and output tokens budgets of a token, modelled as buckets that Claude API refills
+ * continuously up to their limits. Requests reserve their estimated tokens while in flight and
+ * only go out when the budgets have room for them, so the function paces itself instead of
+ * learning about an exhausted budget from rejected requests.
+ *
+ * <p>The level of a bucket comes from the last rate limit headers informed for the token, which
+ * already account for the tokens consumed by the requests that completed. Until Claude API informs
+ * a budget, the configured per minute amount applies and the reported usage of every completed
+ * request is taken from it.
+ */
+final class TokenBudget {
+
+  static final long WINDOW_MILLIS = 60_000;
+
+  private final Bucket input;
+  private final Bucket output;
+
+  TokenBudget(TokenBudgetConfiguration configuration, long now) {
+    this.input = new Bucket(configuration.inputTokensPerMinute(), now);
+    this.output = new Bucket(configuration.outputTokensPerMinute(), now);
+  }
+
+  synchronized boolean tryReserve(TokenEstimate estimate, long now) {
+    if (!input.fits(estimate.inputTokens(), now) || !output.fits(estimate.outputTokens(), now)) {
+      return false;
+    }
+    input.reserved += estimate.inputTokens();
+    output.reserved += estimate.outputTokens();
+    return true;
+  }
+
+  /** Gives back the reservation of a completed request, reconciled with its reported usage. */
+  synchronized void release(TokenEstimate estimate, Body.Usage usage, long now) {
+    input.reserved -= estimate.inputTokens();
+    output.reserved -= estimate.outputTokens();
+    if (usage != null) {
+      // prompt cache reads do not count towards the input tokens rate limits
+      input.consume(usage.inputTokens() + usage.cacheCreationInputTokens(), now);
+      output.consume(usage.outputTokens(), now);
+    }
+  }
+
+  /**
+   * Turns the reservation of a request cancelled after being sent into consumed tokens, Claude API
+   * may bill it while no rate limit headers come back to account for it.
+   */
+  synchronized void consume(TokenEstimate estimate, long now) {
+    input.reserved -= estimate.inputTokens();
+    output.reserved -= estimate.outputTokens();
+    input.take(estimate.inputTokens(), now);
+    output.take(estimate.outputTokens(), now);
+  }
+
+  synchronized void update(RateLimits limits, long now) {
+    input.observe(limits.inputTokens(), now);
+    output.observe(limits.outputTokens(), now);
+  }
+
+  /** Millis until the budgets have room for the estimated tokens, zero when they have it now. */
+  synchronized long availableIn(TokenEstimate estimate, long now) {
+    return Math.max(
+        input.waitFor(estimate.inputTokens(), now), output.waitFor(estimate.outputTokens(), now));
+  }
+
+  synchronized long inputReserved() {
+    return input.reserved;
+  }
+
+  synchronized long outputReserved() {
+    return output.reserved;
+  }
+
+  static final class Bucket {
+
+    private long limit;
+    private double level;
+    private double refillPerMilli;
+    private long updatedMillis;
+    private boolean informed = false;
+    long reserved = 0;
+
+    Bucket(long perMinute, long now) {
+      this.limit = perMinute > 0 ? perMinute : RateLimits.UNKNOWN;
+      this.level = Math.max(0, perMinute);
+      this.refillPerMilli = (double) Math.max(0, perMinute) / WINDOW_MILLIS;
+      this.updatedMillis = now;
+    }
+
+    double available(long now) {
+      return Math.min(limit, level + refillPerMilli * Math.max(0, now - updatedMillis));
+    }
+
+    /**
+     * Requests larger than the whole budget can not wait for more than a full bucket, Claude API
+     * decides on them.
+     */
+    long needed(long amount) {
+      return Math.min(amount, limit);
+    }
+
+    boolean fits(long amount, long now) {
+      return limit <= 0 || amount <= 0 || available(now) - reserved >= needed(amount);
+    }
+
+    long waitFor(long amount, long now) {
+      if (fits(amount, now)) {
+        return 0;
+      }
+      var missing = needed(amount) + reserved - available(now);
+      return refillPerMilli > 0 ? (long) Math.ceil(missing / refillPerMilli) : WINDOW_MILLIS;
+    }
+
+    void observe(RateLimits.Budget budget, long now) {
+      if (!budget.known()) {
+        return;
+      }
+      limit = budget.limit();
+      level = Math.min(limit, budget.remaining());
+      // the reset mark tells when the bucket is full again, which gives its refill rate
+      var untilFull = budget.reset() != RateLimits.UNKNOWN ? budget.reset() - now : 0;
+      refillPerMilli =
+          untilFull > 0 && level < limit
+              ? (limit - level) / untilFull
+              : (double) limit / WINDOW_MILLIS;
+      updatedMillis = now;
+      informed = true;
+    }
+
+    void consume(long amount, long now) {
+      if (!informed) {
+        take(amount, now);
+      }
+    }
+
+    void take(long amount, long now) {
+      if (limit <= 0) {
+        return;
+      }
+      level = available(now) - amount;
+      updatedMillis = now;
+    }
+  }
+}
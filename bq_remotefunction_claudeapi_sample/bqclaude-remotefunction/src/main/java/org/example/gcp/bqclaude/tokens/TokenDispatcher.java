@@ -17,16 +17,33 @@ package org.example.gcp.bqclaude.tokens;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
-import java.time.Instant;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 import org.example.gcp.bqclaude.ClaudeConfiguration;
+import org.example.gcp.bqclaude.ConcurrencyConfiguration;
+import org.example.gcp.bqclaude.ExecutionConfiguration;
+import org.example.gcp.bqclaude.RetryConfiguration;
+import org.example.gcp.bqclaude.TokenBudgetConfiguration;
+import org.example.gcp.bqclaude.TokenStoreConfiguration;
 import org.example.gcp.bqclaude.client.Interactions.*;
+import org.example.gcp.bqclaude.exceptions.BudgetExhaustedException;
 import org.example.gcp.bqclaude.exceptions.TokenExhaustedException;
+import org.example.gcp.bqclaude.tokens.TokenEstimator.TokenEstimate;
+import org.example.gcp.bqclaude.tokens.TokenStateStore.KeyReset;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,42 +51,358 @@ import org.slf4j.LoggerFactory;
  * In charge of keeping track of the available tokens and dispatch them to callers. The tokens
  * associated with the same account, at least in the free tier, would have the same limits applied
  * to them so is better to use tokens from different accounts provisioned for this.
+ *
+ * <p>The rate limit headers of every response are captured as numeric budgets per token, and each
+ * dispatch picks the token with most headroom left, discounting the requests already in flight on
+ * it. Tokens known to be exhausted are skipped until their budgets get replenished, so load is
+ * spread across tokens before Claude API has to reject requests. Dispatching does not lock nor
+ * allocate, it only reads the latest published state of each token.
+ *
+ * <p>Requests dispatched with a token estimate also reserve it on the input and output tokens
+ * budgets of the picked token, skipping tokens without room for it, and give it back once they
+ * complete. Only those budgets are guarded by a lock. When no token has room the caller is told to
+ * retry once the budgets refill.
+ *
+ * <p>Claude API rate limits each model on its own, so the state and budgets of the tokens are kept
+ * per model, while the requests in flight on a token are bounded across all of them. The methods
+ * without a model refer to the configured one.
+ *
+ * <p>Tokens getting rate limited are published to the {@link TokenStateStore}, and the resets
+ * published by other instances are read from it in the background once per refresh interval, so a
+ * token known to be rate limited by one instance is skipped by all of them.
  */
 @Singleton
 public class TokenDispatcher {
 
   private static final Logger LOG = LoggerFactory.getLogger(TokenDispatcher.class);
-  private static final String CLAUDE_REQUEST_RESET_KEY = "anthropic-ratelimit-requests-reset";
-  private static final String CLAUDE_REQUEST_SHOULDRETRY_KEY = "x-should-retry";
-  private static final String CLAUDE_REQUEST_RETRYAFTER_KEY = "retry-after";
+
+  /** The states a token can be in, as informed by {@link #tokenStates()}. */
+  public static final String[] STATES = {"NotInitialized", "Valid", "Expired"};
 
   @Inject ClaudeConfiguration configuration;
+  @Inject ExecutionConfiguration executionConfiguration;
+  @Inject RetryConfiguration retryConfiguration;
+  @Inject ConcurrencyConfiguration concurrencyConfiguration;
+  @Inject TokenBudgetConfiguration budgetConfiguration;
+  @Inject TokenStoreConfiguration storeConfiguration;
+  @Inject TokenStateStore stateStore;
+
+  private final AtomicInteger cursor = new AtomicInteger();
+  private final Map<String, ModelKeys> models = new ConcurrentHashMap<>();
+  private volatile InFlightLimiter[] permits;
+  private final AtomicLong lastRefresh = new AtomicLong();
+
+  KeyState[] maybeInit(List<String> configuredTokens) {
+    return maybeInit(configuration.model(), configuredTokens).keys();
+  }
 
-  private Map<String, Token> tokens = new ConcurrentHashMap<>();
+  ModelKeys maybeInit(String model, List<String> configuredTokens) {
+    var current = models.get(model);
+    if (current != null) {
+      return current;
+    }
+    var limiters = permits(configuredTokens);
+    return models.computeIfAbsent(
+        model,
+        __ -> {
+          var now = System.currentTimeMillis();
+          var initialized =
+              IntStream.range(0, configuredTokens.size())
+                  .mapToObj(
+                      i ->
+                          new KeyState(
+                              i,
+                              configuredTokens.get(i),
+                              limiters[i],
+                              new TokenBudget(budgetConfiguration, now)))
+                  .toArray(KeyState[]::new);
+          return new ModelKeys(
+              initialized,
+              Arrays.stream(initialized)
+                  .collect(Collectors.toMap(key -> key.id, Function.identity(), (a, b) -> a)));
+        });
+  }
 
-  Stream<Token> maybeInit(List<String> configuredTokens) {
-    if (tokens.isEmpty()) {
-      tokens.putAll(
-          configuredTokens.stream()
-              .map(token -> new Token.NotInitialized(token))
-              .collect(Collectors.toMap(Token::id, Function.identity())));
+  InFlightLimiter[] permits(List<String> configuredTokens) {
+    var current = permits;
+    if (current != null) {
+      return current;
+    }
+    synchronized (this) {
+      if (permits == null) {
+        var perToken = executionConfiguration.maxConcurrentRowsPerToken();
+        permits =
+            IntStream.range(0, configuredTokens.size())
+                .mapToObj(__ -> new InFlightLimiter(perToken, concurrencyConfiguration))
+                .toArray(InFlightLimiter[]::new);
+      }
+      return permits;
     }
-    return tokens.values().stream();
   }
 
   public String dispatchToken() {
-    return maybeInit(configuration.tokens())
-        .filter(t -> decideIfTokenUsable(t))
-        .findAny()
-        .map(Token::id)
-        .orElseThrow(() -> new TokenExhaustedException("No tokens available."));
+    return dispatchToken(TokenEstimate.NONE);
+  }
+
+  public String dispatchToken(TokenEstimate estimate) {
+    return dispatchToken(configuration.model(), estimate);
+  }
+
+  /**
+   * Picks the token with most headroom for the model among the ones with room for the estimated
+   * tokens, which are reserved on it until {@link #releaseBudget} is called.
+   */
+  public String dispatchToken(String model, TokenEstimate estimate) {
+    return dispatchToken(model, estimate, null);
+  }
+
+  /** Same as {@link #dispatchToken(String, TokenEstimate)}, never picking the excluded token. */
+  public String dispatchToken(String model, TokenEstimate estimate, String excluded) {
+    var available = maybeInit(model, configuration.tokens()).keys();
+    maybeRefresh(System.currentTimeMillis());
+    var count = available.length;
+    // another dispatch may take the room left on the picked token before reserving it
+    for (int attempt = 0; attempt < Math.max(1, count); attempt++) {
+      var now = System.currentTimeMillis();
+      // rotating the starting point breaks ties between tokens with the same headroom
+      var start = Math.floorMod(cursor.getAndIncrement(), Math.max(1, count));
+      KeyState selected = null;
+      var usable = false;
+      var bestScore = KeyState.UNUSABLE;
+      for (int i = 0; i < count; i++) {
+        var key = available[(start + i) % count];
+        if (key.id.equals(excluded)) {
+          continue;
+        }
+        var score = key.score(now);
+        if (score <= KeyState.UNUSABLE) {
+          continue;
+        }
+        usable = true;
+        if (score > bestScore && key.hasRoomFor(estimate, now)) {
+          bestScore = score;
+          selected = key;
+        }
+      }
+      if (!usable) {
+        throw new TokenExhaustedException("No tokens available.");
+      }
+      if (selected == null) {
+        for (var key : available) {
+          key.budgetWaitUntil = now + key.budget.availableIn(estimate, now);
+        }
+        throw new BudgetExhaustedException("No tokens with budget left for the request.");
+      }
+      if (selected.reserve(estimate, now)) {
+        if (selected.budgetWaitUntil != 0) {
+          selected.budgetWaitUntil = 0;
+        }
+        return selected.id;
+      }
+    }
+    throw new BudgetExhaustedException("No tokens with budget left for the request.");
+  }
+
+  /** Reads the resets published by the other instances, once per refresh interval at most. */
+  void maybeRefresh(long now) {
+    var last = lastRefresh.get();
+    if (now - last < storeConfiguration.refreshInterval().toMillis()
+        || !lastRefresh.compareAndSet(last, now)) {
+      return;
+    }
+    refresh(now);
+  }
+
+  CompletableFuture<Void> refresh(long now) {
+    return stateStore
+        .resets(now)
+        .thenAccept(resets -> resets.forEach(this::applyReset))
+        .exceptionally(
+            error -> {
+              LOG.atWarn().setCause(error).log("Could not read the shared token resets.");
+              return null;
+            });
+  }
+
+  /** Takes a reset learned by another instance, unless this one already knows a later one. */
+  void applyReset(KeyReset reset) {
+    var modelKeys = models.get(reset.model());
+    if (modelKeys == null) {
+      return;
+    }
+    for (var key : modelKeys.keys()) {
+      if (key.fingerprint.equals(reset.fingerprint())
+          && !(key.state instanceof Token.Expired expired
+              && expired.retryAfterEpochMillis() >= reset.untilEpochMillis())) {
+        LOG.atDebug()
+            .log("Token {} for {} rate limited by another instance.", key.alias, reset.model());
+        key.state = new Token.Expired(key.id, reset.untilEpochMillis());
+      }
+    }
+  }
+
+  /**
+   * Gives back the tokens reserved for a request on its completion, with the usage it reported
+   * when it succeeded.
+   */
+  public void releaseBudget(String tokenId, TokenEstimate estimate, Body.Usage usage) {
+    releaseBudget(configuration.model(), tokenId, estimate, usage);
+  }
+
+  public void releaseBudget(
+      String model, String tokenId, TokenEstimate estimate, Body.Usage usage) {
+    if (estimate != TokenEstimate.NONE) {
+      key(model, tokenId).budget.release(estimate, usage, System.currentTimeMillis());
+    }
+  }
+
+  /** Keeps the estimated tokens of a request cancelled after being sent as used. */
+  public void consumeBudget(String model, String tokenId, TokenEstimate estimate) {
+    if (estimate != TokenEstimate.NONE) {
+      key(model, tokenId).budget.consume(estimate, System.currentTimeMillis());
+    }
+  }
+
+  public long nextAvailableIn() {
+    return nextAvailableIn(configuration.model());
+  }
+
+  /**
+   * Millis to wait until one of the tokens can be used again for the model, zero when one of them
+   * is usable right now.
+   */
+  public long nextAvailableIn(String model) {
+    var now = System.currentTimeMillis();
+    var next = Long.MAX_VALUE;
+    for (var key : maybeInit(model, configuration.tokens()).keys()) {
+      next = Math.min(next, key.availableIn(now));
+      if (next == 0) {
+        return 0;
+      }
+    }
+    return next == Long.MAX_VALUE ? 0 : next;
+  }
+
+  /**
+   * Blocks until the token has room for one more in flight request, callers are expected to run
+   * on virtual threads so waiting here is cheap.
+   */
+  public void acquirePermit(String tokenId) {
+    var permit = acquirePermitAsync(tokenId);
+    try {
+      permit.get();
+    } catch (InterruptedException ex) {
+      // if the permit was granted while being interrupted we need to give it back
+      if (!permit.cancel(false)) {
+        releasePermit(tokenId);
+      }
+      Thread.currentThread().interrupt();
+      throw new TokenExhaustedException("Interrupted while waiting for token availability.", ex);
+    } catch (ExecutionException ex) {
+      throw new IllegalStateException("Unexpected failure waiting for a token permit.", ex);
+    }
+  }
+
+  /** Returns a future completed when the token has room for one more in flight request. */
+  public CompletableFuture<Void> acquirePermitAsync(String tokenId) {
+    return key(tokenId).permits.acquire();
+  }
+
+  public void releasePermit(String tokenId) {
+    key(tokenId).permits.release();
+  }
+
+  /**
+   * Releases the permit informing the outcome of the request, which drives the adaptive limit of
+   * requests in flight for the token.
+   */
+  public void releasePermit(String tokenId, long startNanos, Outcome outcome) {
+    var permits = key(tokenId).permits;
+    permits.record(startNanos, System.nanoTime(), outcome);
+    permits.release();
+  }
+
+  /** Current limit of requests in flight summed over the tokens. */
+  public int concurrencyLimit() {
+    var total = 0;
+    for (var limiter : permits(configuration.tokens())) {
+      total += limiter.limit();
+    }
+    return total;
+  }
+
+  /** Current limit of requests in flight per token, keyed by the token alias. */
+  public Map<String, Integer> concurrencyLimits() {
+    var limits = new LinkedHashMap<String, Integer>();
+    for (var key : maybeInit(configuration.tokens())) {
+      limits.put(key.alias, key.permits.limit());
+    }
+    return limits;
+  }
+
+  /** Latest known state of each token, keyed by the token alias. */
+  public Map<String, String> tokenStates() {
+    var states = new LinkedHashMap<String, String>();
+    for (var key : maybeInit(configuration.tokens())) {
+      states.put(key.alias, key.state.getClass().getSimpleName());
+    }
+    return states;
+  }
+
+  /** The alias used to refer to the token on logs and metrics. */
+  public String alias(String tokenId) {
+    return key(tokenId).alias;
+  }
+
+  KeyState key(String tokenId) {
+    return key(configuration.model(), tokenId);
+  }
+
+  KeyState key(String model, String tokenId) {
+    var key = maybeInit(model, configuration.tokens()).byId().get(tokenId);
+    if (key == null) {
+      throw new IllegalArgumentException("Unknown token.");
+    }
+    return key;
+  }
+
+  /** Input and output tokens reserved by the requests in flight, keyed by the token alias. */
+  public Map<String, Long> reservedTokens() {
+    var reserved = new LinkedHashMap<String, Long>();
+    for (var key : maybeInit(configuration.tokens())) {
+      reserved.put(key.alias, key.budget.inputReserved() + key.budget.outputReserved());
+    }
+    return reserved;
   }
 
   public ClaudeResponse informTokenUsage(ClaudeResponse response) {
-    var token = Token.captureTokenFromHeaders(response.tokenId(), response.headers());
-    LOG.atDebug().log("Token info after request {}", token);
+    return informTokenUsage(configuration.model(), response);
+  }
+
+  /** Captures the state of the token for the model from the rate limit headers of its response. */
+  public ClaudeResponse informTokenUsage(String model, ClaudeResponse response) {
+    var limits = RateLimits.fromHeaders(response.headers());
+    var token = Token.captureToken(response.tokenId(), limits);
+    if (response.response() instanceof Body.RateLimited && !(token instanceof Token.Expired)) {
+      // rejected without telling for how long, so the token rests for a while
+      token =
+          new Token.Expired(
+              token.id(),
+              System.currentTimeMillis() + retryConfiguration.fallbackDelay().toMillis());
+    }
+    var key = key(model, token.id());
+    LOG.atDebug().log("Token {} info for {} after request {}", key.alias, model, limits);
     // update token with most recent known state
-    tokens.computeIfPresent(token.id(), (key, tk) -> token);
+    var previous = key.state;
+    key.state = token;
+    if (token instanceof Token.Expired expired
+        && !(previous instanceof Token.Expired known
+            && known.retryAfterEpochMillis() >= expired.retryAfterEpochMillis())) {
+      stateStore.publish(new KeyReset(model, key.fingerprint, expired.retryAfterEpochMillis()));
+    }
+    if (budgetConfiguration.enabled()) {
+      key.budget.update(limits, System.currentTimeMillis());
+    }
     if (!decideIfTokenUsable(token) && !response.isOk()) {
       throw new TokenExhaustedException("Token exhausted, retry.");
     }
@@ -80,44 +413,132 @@ public class TokenDispatcher {
     return switch (token) {
       case Token.NotInitialized __ -> true;
       case Token.Valid __ -> true;
-      case Token.Expired exp when exp.canRetry() -> true;
+      case Token.Expired exp when exp.canRetry(System.currentTimeMillis()) -> true;
       default -> false;
     };
   }
 
+  /** How a request ended, as far as the concurrency of its token is concerned. */
+  public enum Outcome {
+    SUCCESS,
+    OVERLOADED,
+    FAILED
+  }
+
+  /** The state of the tokens for a model, along with their lookup by id. */
+  record ModelKeys(KeyState[] keys, Map<String, KeyState> byId) {}
+
+  /**
+   * Mutable holder of the latest known state of a token for a model, published through a volatile
+   * field. The permits are shared by the states of the same token for every model.
+   */
+  static final class KeyState {
+
+    final String id;
+    final String alias;
+    // identifies the token on the shared store without exposing it
+    final String fingerprint;
+    final InFlightLimiter permits;
+    final TokenBudget budget;
+    volatile Token state;
+    // when the budgets had room again for the last request that found none
+    volatile long budgetWaitUntil = 0;
+
+    KeyState(int index, String id, InFlightLimiter permits, TokenBudget budget) {
+      this.id = id;
+      this.alias = "token-" + index;
+      this.fingerprint = fingerprint(id);
+      this.permits = permits;
+      this.budget = budget;
+      this.state = new Token.NotInitialized(id);
+    }
+
+    static final double UNUSABLE = -1.0;
+
+    static String fingerprint(String id) {
+      try {
+        var digest =
+            MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest, 0, 8);
+      } catch (NoSuchAlgorithmException ex) {
+        throw new IllegalStateException("SHA-256 should always be available.", ex);
+      }
+    }
+
+    long availableIn(long now) {
+      var budgetWait = Math.max(0, budgetWaitUntil - now);
+      return state instanceof Token.Expired expired
+          ? Math.max(budgetWait, expired.retryAfterEpochMillis() - now)
+          : budgetWait;
+    }
+
+    boolean hasRoomFor(TokenEstimate estimate, long now) {
+      return estimate == TokenEstimate.NONE || budget.availableIn(estimate, now) == 0;
+    }
+
+    boolean reserve(TokenEstimate estimate, long now) {
+      return estimate == TokenEstimate.NONE || budget.tryReserve(estimate, now);
+    }
+
+    /**
+     * Headroom of the token in the [0, 1] range, or {@link #UNUSABLE} when the token is exhausted.
+     * The budget reported by the last response is discounted with the requests in flight after it.
+     */
+    double score(long now) {
+      var limits =
+          switch (state) {
+            case Token.NotInitialized __ -> RateLimits.NONE;
+            case Token.Valid valid -> valid.limits();
+            case Token.Expired expired -> {
+              if (!expired.canRetry(now)) {
+                yield null;
+              }
+              yield RateLimits.NONE;
+            }
+          };
+      if (limits == null) {
+        return UNUSABLE;
+      }
+      var headroom = Math.min(limits.requestsHeadroom(now), limits.tokensHeadroom(now));
+      var busy = (double) permits.inFlight() / permits.limit();
+      if (limits.requestsLimit() > 0 && limits.requestsRemaining() >= 0) {
+        busy = Math.max(busy, (double) permits.inFlight() / limits.requestsLimit());
+      }
+      return Math.max(0.0, headroom - busy);
+    }
+  }
+
   sealed interface Token {
 
     String id();
 
+    default RateLimits limits() {
+      return RateLimits.NONE;
+    }
+
     record NotInitialized(String id) implements Token {}
 
-    record Expired(String id, String retryAfterTimestamp) implements Token {
-      boolean canRetry() {
+    record Expired(String id, long retryAfterEpochMillis) implements Token {
+      boolean canRetry(long now) {
         // current time is after the retry after mark from the claude response headers
-        return Instant.now().toString().compareTo(retryAfterTimestamp) > 0;
+        return now >= retryAfterEpochMillis;
       }
     }
 
-    record Valid(String id) implements Token {}
+    record Valid(String id, RateLimits limits) implements Token {}
 
     static Token captureTokenFromHeaders(String tokenId, Map<String, List<String>> headers) {
-      var expired =
-          headers.entrySet().stream()
-                  .filter(entry -> entry.getKey().equals(CLAUDE_REQUEST_SHOULDRETRY_KEY))
-                  .flatMap(entry -> entry.getValue().stream())
-                  .map(Boolean::parseBoolean)
-                  .anyMatch(should -> should)
-              // we want to check on both headers retrying may not be related with token limits
-              && headers.containsKey(CLAUDE_REQUEST_RETRYAFTER_KEY);
-      return expired
-          ? new Token.Expired(
-              tokenId,
-              headers.get(CLAUDE_REQUEST_RESET_KEY).stream()
-                  .findFirst()
-                  // shouldn't happend but we assume the reset not being set is because we can use
-                  // the token again
-                  .orElse(Instant.now().toString()))
-          : new Token.Valid(tokenId);
+      return captureToken(tokenId, RateLimits.fromHeaders(headers));
+    }
+
+    static Token captureToken(String tokenId, RateLimits limits) {
+      var now = System.currentTimeMillis();
+      // we want to check on both headers retrying may not be related with token limits
+      var expired = limits.shouldRetry() && limits.retryAfterMillis() != RateLimits.UNKNOWN;
+      var exhausted = limits.requestsRemaining() == 0 || limits.tokensRemaining() == 0;
+      return expired || exhausted
+          ? new Token.Expired(tokenId, limits.exhaustedUntil(now))
+          : new Token.Valid(tokenId, limits);
     }
   }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import org.example.gcp.bqclaude.TokenBudgetConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.*;
+
+/**
+ * Estimates locally the tokens a request will consume, so they can be reserved on the budgets of
+ * a token before sending it. Input tokens come from the length of the system prompt and messages,
+ * output tokens from the max tokens of the request, which bounds them.
+ *
+ * <p>The characters per token start at the configured ratio and follow the one observed on the
+ * usage of the replies, so the estimates adjust to the language and contents of the prompts.
+ */
+@Singleton
+public class TokenEstimator {
+
+  // tokens added by Claude API for the role and delimiters of every message
+  static final int MESSAGE_OVERHEAD = 4;
+  // weight of every observed ratio on the moving average of characters per token
+  static final double OBSERVED_WEIGHT = 0.1;
+  static final double MIN_CHARACTERS_PER_TOKEN = 1.0;
+  static final double MAX_CHARACTERS_PER_TOKEN = 10.0;
+
+  private final TokenBudgetConfiguration configuration;
+  private volatile double charactersPerToken;
+
+  @Inject
+  public TokenEstimator(TokenBudgetConfiguration configuration) {
+    this.configuration = configuration;
+    this.charactersPerToken = clamp(configuration.charactersPerToken());
+  }
+
+  public TokenEstimate estimate(ClaudeRequest request) {
+    if (!configuration.enabled()) {
+      return TokenEstimate.NONE;
+    }
+    long characters = 0;
+    long messages = 0;
+    if (request.system() != null) {
+      for (var block : request.system()) {
+        characters += block.text() != null ? block.text().length() : 0;
+      }
+    }
+    if (request.messages() != null) {
+      for (var message : request.messages()) {
+        characters += message.content() != null ? message.content().length() : 0;
+        messages++;
+      }
+    }
+    var inputTokens =
+        (long) Math.ceil(characters / charactersPerToken) + messages * MESSAGE_OVERHEAD;
+    return new TokenEstimate(characters, inputTokens, Math.max(0, request.maxTokens()));
+  }
+
+  /** Moves the characters per token towards the ratio observed on the usage of a reply. */
+  public void calibrate(TokenEstimate estimate, Body.Usage usage) {
+    if (usage == null || estimate.characters() == 0) {
+      return;
+    }
+    var inputTokens =
+        usage.inputTokens() + usage.cacheCreationInputTokens() + usage.cacheReadInputTokens();
+    if (inputTokens <= 0) {
+      return;
+    }
+    var observed = (double) estimate.characters() / inputTokens;
+    synchronized (this) {
+      charactersPerToken =
+          clamp(charactersPerToken + OBSERVED_WEIGHT * (observed - charactersPerToken));
+    }
+  }
+
+  public double charactersPerToken() {
+    return charactersPerToken;
+  }
+
+  static double clamp(double ratio) {
+    return Math.max(MIN_CHARACTERS_PER_TOKEN, Math.min(MAX_CHARACTERS_PER_TOKEN, ratio));
+  }
+
+  /** Characters of the prompts of a request and the tokens it is expected to consume. */
+  public record TokenEstimate(long characters, long inputTokens, long outputTokens) {
+
+    public static final TokenEstimate NONE = new TokenEstimate(0, 0, 0);
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where the rate limited tokens are shared between the instances of the function. Tokens are
+ * identified by a fingerprint of the key, never by the key itself. Implementations must not block
+ * the callers, publishing is fire and forget and reading completes once the store answers.
+ */
+public interface TokenStateStore {
+
+  /** Publishes that the token can not be used for the model until the given time. */
+  void publish(KeyReset reset);
+
+  /** The resets published by every instance which did not pass yet at the given time. */
+  CompletableFuture<List<KeyReset>> resets(long nowEpochMillis);
+
+  /** A token rate limited for a model until the given epoch millis. */
+  record KeyReset(String model, String fingerprint, long untilEpochMillis) {}
+}
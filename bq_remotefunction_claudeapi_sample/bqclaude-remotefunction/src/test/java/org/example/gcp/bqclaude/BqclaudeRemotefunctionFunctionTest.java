@@ -21,28 +21,70 @@ import io.micronaut.context.ApplicationContext;
 import io.micronaut.context.annotation.Requires;
 import io.micronaut.http.*;
 import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import io.micronaut.gcp.function.http.*;
+import io.micronaut.http.annotation.Body;
 import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Get;
 import io.micronaut.http.annotation.Post;
 import io.micronaut.http.annotation.Produces;
 import io.micronaut.runtime.server.EmbeddedServer;
+import io.micronaut.scheduling.TaskExecutors;
+import io.micronaut.scheduling.annotation.ExecuteOn;
 import io.micronaut.test.extensions.junit5.annotation.MicronautTest;
+import jakarta.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
 import org.example.gcp.bqclaude.client.ClaudeClient;
+import org.example.gcp.bqclaude.client.ConnectionWarmer;
 import org.example.gcp.bqclaude.client.Interactions;
+import org.example.gcp.bqclaude.client.MessageBatchesClient;
+import org.example.gcp.bqclaude.client.StreamLimits;
+import org.example.gcp.bqclaude.client.UsageStats;
+import org.example.gcp.bqclaude.execution.CallerUsage;
+import org.example.gcp.bqclaude.execution.CompletionStore;
+import org.example.gcp.bqclaude.metrics.ClaudeMetrics;
+import org.example.gcp.bqclaude.metrics.StateMeterBinder;
 
 @MicronautTest
 public class BqclaudeRemotefunctionFunctionTest {
 
-  @Test
-  public void testPost() throws Exception {
-    ObjectMapper objectMapper = new ObjectMapper();
-    var fakeClaudeServer =
+  static EmbeddedServer fakeClaudeServer;
+
+  @Inject ClaudeClient claudeClient;
+  @Inject UsageStats usageStats;
+  @Inject ClaudeMetrics metrics;
+
+  @BeforeAll
+  static void startFakeClaude() {
+    fakeClaudeServer =
         ApplicationContext.run(
             EmbeddedServer.class,
             Map.of("spec.name", "FakeClaudeTest", "micronaut.server.port", 20001));
+  }
+
+  @AfterAll
+  static void stopFakeClaude() {
+    fakeClaudeServer.close();
+  }
+
+  @Test
+  public void testPost() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
 
     assertTrue(fakeClaudeServer.isRunning());
     assertTrue(fakeClaudeServer.getPort() == 20001);
@@ -57,28 +99,868 @@ public class BqclaudeRemotefunctionFunctionTest {
       GoogleHttpResponse response = function.invoke(request);
       assertEquals(HttpStatus.OK, response.getStatus());
       var maybeResponse =
-          objectMapper.readValue(
-              response.getBodyAsText(), BQClaudeRemoteFunctionController.RemoteFunctionResponse.class);
+          objectMapper.readValue(response.getBodyAsText(), OkReplies.class);
       assertEquals("hi", maybeResponse.replies().getFirst().content().getFirst().text());
     }
   }
 
+  @Test
+  public void testPostKeepsRowOrder() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var calls = IntStream.range(0, 20).mapToObj(i -> List.of("echo:" + i)).toList();
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "somereqid", "somecaller", "someprincipal", Map.of("max-concurrency", "5"), calls);
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      var maybeResponse =
+          objectMapper.readValue(response.getBodyAsText(), OkReplies.class);
+      assertEquals(
+          IntStream.range(0, 20).mapToObj(String::valueOf).toList(),
+          maybeResponse.replies().stream().map(ok -> ok.content().getFirst().text()).toList());
+    }
+  }
+
+  @Test
+  public void testPostWithPerRowErrors() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "perrowreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("per-row-errors", "true"),
+              List.of(List.of("echo:a"), List.of("fail:b"), List.of("echo:c")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      var replies = objectMapper.readTree(response.getBodyAsText()).get("replies");
+      assertEquals("a", replies.get(0).get("content").get(0).get("text").asText());
+      assertEquals("error", replies.get(1).get("type").asText());
+      assertEquals("invalid_request_error", replies.get(1).get("error").get("type").asText());
+      assertEquals("c", replies.get(2).get("content").get(0).get("text").asText());
+    }
+  }
+
+  @Test
+  public void testProjectedRepliesAreCompressed() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var calls =
+          IntStream.range(0, 50).mapToObj(i -> List.of("echo:" + i + "x".repeat(100))).toList();
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "projectedreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("reply-fields", " text, "),
+              calls);
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest)
+              .contentType(MediaType.APPLICATION_JSON_TYPE)
+              .header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      assertEquals("gzip", response.getHttpHeaders().get(HttpHeaders.CONTENT_ENCODING));
+      try (var body = new GZIPInputStream(new ByteArrayInputStream(response.getBodyAsBytes()))) {
+        var replies = objectMapper.readTree(body).get("replies");
+        assertEquals(50, replies.size());
+        assertEquals("7" + "x".repeat(100), replies.get(7).get("text").asText());
+        assertEquals(1, replies.get(7).size());
+      }
+    }
+  }
+
+  @Test
+  public void testUnknownReplyFieldFailsBeforeSending() throws Exception {
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "unknownfieldreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("reply-fields", "text,answer"),
+              List.of(List.of("echo:a")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      GoogleHttpResponse response = function.invoke(request);
+      // a bad request, BigQuery does not retry it
+      assertEquals(HttpStatus.BAD_REQUEST, response.getStatus());
+      assertTrue(response.getBodyAsText().contains("Unknown reply field answer"));
+    }
+  }
+
+  @Test
+  public void testBatchOverQuotaIsRejected() throws Exception {
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "quotareqid",
+              "somecaller",
+              "quota-user",
+              Map.of(),
+              List.of(List.of("echo:a")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      assertEquals(HttpStatus.OK, function.invoke(request).getStatus());
+
+      var usage = function.getApplicationContext().getBean(CallerUsage.class);
+      usage.record("somecaller", "quota-user", new Interactions.Body.Usage(4, 1, 0, 0));
+      assertEquals(HttpStatus.TOO_MANY_REQUESTS, function.invoke(request).getStatus());
+      assertEquals(2, usage.usage(CallerUsage.SESSION_USER, "quota-user").requests());
+      assertEquals(1, usage.rejected());
+    }
+  }
+
+  @Test
+  public void testSharedRequestsAreChargedToEveryRow() throws Exception {
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "sharedreqid",
+              "somecaller",
+              "shared-user",
+              Map.of(),
+              List.of(List.of("echo:shared"), List.of("echo:shared")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      assertEquals(HttpStatus.OK, function.invoke(request).getStatus());
+
+      var usage = function.getApplicationContext().getBean(CallerUsage.class);
+      assertEquals(2, usage.usage(CallerUsage.SESSION_USER, "shared-user").requests());
+    }
+  }
+
+  @Test
+  public void testRetriedBatchOnlyExecutesPendingRows() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "retriedreqid",
+              "somecaller",
+              "someprincipal",
+              // one row at a time, so the first one completes before the batch gets rejected
+              Map.of("deadline-seconds", "1", "max-concurrency", "1"),
+              List.of(List.of("echo:retried"), List.of("limited:retried-twice")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      // both tokens get rate limited for longer than the deadline
+      assertEquals(HttpStatus.TOO_MANY_REQUESTS, function.invoke(request).getStatus());
+
+      Thread.sleep(2100);
+      var secondAttempt =
+          objectMapper.readValue(function.invoke(request).getBodyAsText(), OkReplies.class);
+      assertNull(secondAttempt.errorMessage());
+      assertEquals(
+          List.of("retried", "limited:retried-twice"),
+          secondAttempt.replies().stream().map(ok -> ok.content().getFirst().text()).toList());
+      assertEquals(1, FakeClaude.RECEIVED.get("echo:retried").get());
+      assertEquals(3, FakeClaude.RECEIVED.get("limited:retried-twice").get());
+    }
+  }
+
+  @Test
+  public void testRowsInFlightWhenTheBatchFailsAreNotSentAgain() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "inflightreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("deadline-seconds", "1"),
+              List.of(List.of("delayed:in flight"), List.of("limited:in-flight-twice")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      var start = System.nanoTime();
+      assertEquals(HttpStatus.TOO_MANY_REQUESTS, function.invoke(request).getStatus());
+      // the batch got rejected while the delayed row was still waiting for its reply
+      assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 1000);
+
+      Thread.sleep(2100);
+      var secondAttempt =
+          objectMapper.readValue(function.invoke(request).getBodyAsText(), OkReplies.class);
+      assertNull(secondAttempt.errorMessage());
+      assertEquals(
+          List.of("in flight", "limited:in-flight-twice"),
+          secondAttempt.replies().stream().map(ok -> ok.content().getFirst().text()).toList());
+      assertEquals(1, FakeClaude.RECEIVED.get("delayed:in flight").get());
+    }
+  }
+
+  @Test
+  public void testAnsweredBatchForgetsItsRows() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "answeredreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("per-row-errors", "true"),
+              List.of(List.of("echo:answered"), List.of("fail:answered")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      assertEquals(HttpStatus.OK, function.invoke(request).getStatus());
+      var store = function.getApplicationContext().getBean(CompletionStore.class);
+      assertTrue(store.lookup("answeredreqid", 0).isEmpty());
+    }
+  }
+
+  @Test
+  public void testPostWithMessageBatches() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "batchreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("execution-mode", "message-batches"),
+              List.of(List.of("echo:first"), List.of("echo:second")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      // the job gets submitted and BigQuery is asked to retry later
+      assertEquals(HttpStatus.TOO_MANY_REQUESTS, function.invoke(request).getStatus());
+      assertEquals(1, FakeClaude.BATCHES.size());
+
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      var replies = objectMapper.readValue(response.getBodyAsText(), OkReplies.class).replies();
+      assertEquals(
+          List.of("first", "second"),
+          replies.stream().map(ok -> ok.content().getFirst().text()).toList());
+      assertEquals(1, FakeClaude.BATCHES.size());
+    }
+  }
+
+  @Test
+  public void testMessageBatchesWithoutRequestIdAreRejected() throws Exception {
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              null,
+              "somecaller",
+              "someprincipal",
+              Map.of("execution-mode", "message-batches"),
+              List.of(List.of("echo:no request id")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      assertEquals(HttpStatus.BAD_REQUEST, function.invoke(request).getStatus());
+    }
+  }
+
+  @Test
+  public void testWarmsUpConnectionsOnStartup() {
+    var before = FakeClaude.WARMUPS.get();
+    try (var context =
+        ApplicationContext.run(
+            Map.of("claude.transport.warmup", true, "claude.transport.warmup-connections", 2))) {
+      assertTrue(context.containsBean(ConnectionWarmer.class));
+      assertEquals(before + 2, FakeClaude.WARMUPS.get());
+    }
+  }
+
+  @Test
+  public void testSendMessageAsync() {
+    var response =
+        claudeClient
+            .sendMessageAsync(
+                Interactions.ClaudeRequest.parse("some-model", 10, "", List.of("Say hi.")))
+            .join();
+    assertTrue(response.isOk());
+    assertEquals("hi", response.okResponse().content().getFirst().text());
+  }
+
+  @Test
+  public void testPostWithStreaming() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "streamreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("stream", "true"),
+              List.of(List.of("echo:streamed reply"), List.of("echo:another one")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      var replies = objectMapper.readValue(response.getBodyAsText(), OkReplies.class).replies();
+      assertEquals(
+          List.of("streamed reply", "another one"),
+          replies.stream().map(ok -> ok.content().getFirst().text()).toList());
+      assertEquals("end_turn", replies.getFirst().stopReason());
+    }
+  }
+
+  @Test
+  public void testStreamedRowsAreNotShared() throws Exception {
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "streamtwinsreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("stream", "true", "stream-max-characters", "3"),
+              List.of(List.of("echo:streamed twins"), List.of("echo:streamed twins")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      assertEquals(2, FakeClaude.RECEIVED.get("echo:streamed twins").get());
+    }
+  }
+
+  @Test
+  public void testStreamingCutsAtCharacterBudget() {
+    var response =
+        claudeClient
+            .sendMessageStreaming(
+                Interactions.ClaudeRequest.parse("some-model", 10, "", List.of("echo:abcdefghij")),
+                new StreamLimits(null, 5))
+            .join();
+    assertTrue(response.isOk());
+    assertEquals("abcde", response.okResponse().content().getFirst().text());
+    assertEquals("character_budget", response.okResponse().stopReason());
+    assertTrue(claudeClient.averageTimeToFirstToken().toNanos() > 0);
+  }
+
+  @Test
+  public void testStreamingCutsAtDeadline() {
+    var response =
+        claudeClient
+            .sendMessageStreaming(
+                Interactions.ClaudeRequest.parse("some-model", 10, "", List.of("slow:abcdefghij")),
+                new StreamLimits(Duration.ofMillis(350), 0))
+            .join();
+    assertTrue(response.isOk());
+    var text = response.okResponse().content().getFirst().text();
+    assertFalse(text.isEmpty());
+    assertTrue("abcdefghij".startsWith(text) && text.length() < 10);
+    assertEquals("deadline", response.okResponse().stopReason());
+  }
+
+  @Test
+  public void testRateLimitedRowMovesToAnotherToken() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "limitedreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of(),
+              List.of(List.of("limited:once")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      var replies = objectMapper.readValue(response.getBodyAsText(), OkReplies.class).replies();
+      assertEquals("limited:once", replies.getFirst().content().getFirst().text());
+      assertEquals(2, FakeClaude.RECEIVED.get("limited:once").get());
+    }
+  }
+
+  @Test
+  public void testRowsThatCanNotMeetTheDeadlineAreRejected() throws Exception {
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "deadlinereqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("deadline-seconds", "1"),
+              List.of(List.of("limited:always")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      var start = System.nanoTime();
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatus());
+      // both tokens asked to wait longer than the deadline, so nothing waits for them
+      assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 1000);
+    }
+  }
+
+  @Test
+  public void testRateLimitedModelFallsBack() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "fallbackreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("model", FakeClaude.LIMITED_MODEL, "fallback-models", "fallback-model"),
+              List.of(List.of("echo:first fallback"), List.of("echo:second fallback")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      var start = System.nanoTime();
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      var replies = objectMapper.readValue(response.getBodyAsText(), OkReplies.class).replies();
+      assertEquals(
+          List.of("first fallback", "second fallback"),
+          replies.stream().map(ok -> ok.content().getFirst().text()).toList());
+      assertTrue(replies.stream().allMatch(ok -> "fallback-model".equals(ok.model())));
+      // the rows did not wait for the limited model to reset
+      assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 2000);
+    }
+  }
+
+  @Test
+  public void testUnknownModelIsRejected() throws Exception {
+    try (HttpFunction function = new HttpFunction(); ) {
+      for (var context :
+          List.of(
+              Map.of("model", "unknown-model"),
+              Map.of("model", FakeClaude.LIMITED_MODEL, "fallback-models", "unknown-model"))) {
+        var functionRequest =
+            new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+                "unknownmodelreqid",
+                "somecaller",
+                "someprincipal",
+                context,
+                List.of(List.of("echo:unknown model")));
+        HttpRequest request =
+            HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+        assertEquals(HttpStatus.BAD_REQUEST, function.invoke(request).getStatus());
+      }
+      assertNull(FakeClaude.RECEIVED.get("echo:unknown model"));
+    }
+  }
+
+  @Test
+  public void testPostWithPromptCaching() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "promptcachingreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("system-prompt", "Long shared instructions.", "prompt-caching", "true"),
+              List.of(List.of("echo:one"), List.of("echo:two"), List.of("echo:three")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      var usages =
+          objectMapper.readValue(response.getBodyAsText(), OkReplies.class).replies().stream()
+              .map(Interactions.Body.OK::usage)
+              .toList();
+      // only the first row to reach Claude API writes the prompt to the cache
+      assertEquals(
+          1, usages.stream().filter(usage -> usage.cacheCreationInputTokens() > 0).count());
+      assertEquals(2, usages.stream().filter(usage -> usage.cacheReadInputTokens() > 0).count());
+    }
+  }
+
+  @Test
+  public void testUsageStatsCountCachedTokens() {
+    var readBefore = usageStats.cacheReadInputTokens();
+    for (var text : List.of("echo:first", "echo:second")) {
+      var response =
+          claudeClient
+              .sendMessageAsync(
+                  Interactions.ClaudeRequest.parse(
+                      "some-model", 10, "Other shared instructions.", true, List.of(text)))
+              .join();
+      assertTrue(response.isOk());
+    }
+    assertEquals(FakeClaude.PROMPT_TOKENS, usageStats.cacheReadInputTokens() - readBefore);
+    assertTrue(usageStats.cacheReadRatio() > 0);
+  }
+
+  @Test
+  public void testPostWithPackedRows() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var packedBefore = FakeClaude.PACKED.get();
+      var rows = IntStream.range(0, 5).mapToObj(i -> "packed" + i).toList();
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "packedrowsreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("pack-rows", "2"),
+              rows.stream().map(row -> List.of(FakeClaude.ECHO_PREFIX + row)).toList());
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      var replies =
+          objectMapper.readValue(response.getBodyAsText(), OkReplies.class).replies().stream()
+              .map(reply -> reply.content().getFirst().text())
+              .toList();
+      assertEquals(rows, replies);
+      // the last pack holds a single row, which is sent on its own
+      assertEquals(2, FakeClaude.PACKED.get() - packedBefore);
+      assertEquals(1, FakeClaude.RECEIVED.get(FakeClaude.ECHO_PREFIX + "packed4").get());
+    }
+  }
+
+  @Test
+  public void testPackedRowsFallBackToSingleRows() throws Exception {
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "packedfallbackreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of("pack-rows", "10", "cache", "false"),
+              List.of(List.of("echo:unbroken"), List.of("echo:broken")));
+      HttpRequest request =
+          HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE);
+      GoogleHttpResponse response = function.invoke(request);
+      assertEquals(HttpStatus.OK, response.getStatus());
+      var replies =
+          objectMapper.readValue(response.getBodyAsText(), OkReplies.class).replies().stream()
+              .map(reply -> reply.content().getFirst().text())
+              .toList();
+      assertEquals(List.of("unbroken", "broken"), replies);
+      assertEquals(1, FakeClaude.RECEIVED.get("echo:broken").get());
+    }
+  }
+
+  @Test
+  public void testMetricsTrackRequestsPerToken() {
+    var registry = metrics.registry();
+    assertTrue(
+        claudeClient
+            .sendMessageAsync(
+                Interactions.ClaudeRequest.parse("some-model", 10, "", List.of("echo:metrics")))
+            .join()
+            .isOk());
+    assertFalse(
+        claudeClient
+            .sendMessageAsync(
+                Interactions.ClaudeRequest.parse("some-model", 10, "", List.of("fail:metrics")))
+            .join()
+            .isOk());
+    var ok = registry.find(ClaudeMetrics.REQUESTS).tag("result", ClaudeMetrics.OK_RESULT).timers();
+    assertTrue(ok.stream().mapToLong(timer -> timer.count()).sum() >= 1);
+    assertTrue(ok.stream().allMatch(timer -> timer.getId().getTag("token").startsWith("token-")));
+    assertNotNull(
+        registry
+            .find(ClaudeMetrics.REQUESTS)
+            .tag("result", "invalid_request_error")
+            .timer());
+    // after answering, the tokens are known to be valid
+    assertTrue(
+        registry.find(StateMeterBinder.TOKEN_STATE).tag("state", "Valid").gauges().stream()
+            .anyMatch(gauge -> gauge.value() == 1));
+    assertTrue(
+        registry.find(StateMeterBinder.USAGE).tag("type", "output").functionCounter().count() > 0);
+  }
+
+  @Test
+  public void testMetricsEndpoint() throws Exception {
+    try (HttpFunction function = new HttpFunction(); ) {
+      var functionRequest =
+          new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+              "metricsreqid",
+              "somecaller",
+              "someprincipal",
+              Map.of(),
+              List.of(List.of("echo:measured"), List.of("echo:measured too")));
+      var response =
+          function.invoke(
+              HttpRequest.POST("/", functionRequest).contentType(MediaType.APPLICATION_JSON_TYPE));
+      assertEquals(HttpStatus.OK, response.getStatus());
+      var rows = function.invoke(HttpRequest.GET("/metrics/" + ClaudeMetrics.BATCH_ROWS));
+      assertEquals(HttpStatus.OK, rows.getStatus());
+      var measurements = new ObjectMapper().readTree(rows.getBodyAsText()).get("measurements");
+      var total = 0.0;
+      for (var measurement : measurements) {
+        if ("TOTAL".equals(measurement.get("statistic").asText())) {
+          total = measurement.get("value").asDouble();
+        }
+      }
+      assertTrue(total >= 2);
+    }
+  }
+
+  /** Typed view of the replies, when all of them are expected to be successful. */
+  record OkReplies(List<Interactions.Body.OK> replies, String errorMessage) {}
+
   @Requires(property = "spec.name", value = "FakeClaudeTest")
   @Controller
   static class FakeClaude {
 
+    static final String ECHO_PREFIX = "echo:";
+    static final String FAIL_PREFIX = "fail:";
+    static final String FLAKY_PREFIX = "flaky:";
+    static final String SLOW_PREFIX = "slow:";
+    static final String DELAYED_PREFIX = "delayed:";
+    static final String LIMITED_PREFIX = "limited:";
+    static final String LIMITED_MODEL = "limited-model";
+    static final Map<String, AtomicInteger> RECEIVED = new ConcurrentHashMap<>();
+    static final Map<String, List<Interactions.BatchItem>> BATCHES = new ConcurrentHashMap<>();
+    static final Set<String> CACHED_PROMPTS = ConcurrentHashMap.newKeySet();
+    static final int PROMPT_TOKENS = 2000;
+    static final String PACKED_PREFIX = "<input id=";
+    static final Pattern PACKED_INPUT =
+        Pattern.compile("<input id=\"(\\d+)\">\n(.*?)\n</input>", Pattern.DOTALL);
+    static final AtomicInteger PACKED = new AtomicInteger();
+    static final AtomicInteger WARMUPS = new AtomicInteger();
+
     @Produces(MediaType.APPLICATION_JSON)
     @Post(ClaudeClient.CLAUDE_MESSAGES_PATH)
-    Interactions.Body.OK messages() {
+    @ExecuteOn(TaskExecutors.BLOCKING)
+    HttpResponse<?> messages(
+        @Body Interactions.ClaudeRequest request,
+        com.google.cloud.functions.HttpResponse functionResponse)
+        throws Exception {
+      // echoed messages complete in random order to exercise the reply ordering
+      var message = request.messages().getFirst().content();
+      if (message.startsWith(PACKED_PREFIX)) {
+        return HttpResponse.ok(packed(message));
+      }
+      if (LIMITED_MODEL.equals(request.model())) {
+        return limited();
+      }
+      var received = RECEIVED.computeIfAbsent(message, __ -> new AtomicInteger()).incrementAndGet();
+      var text = "hi";
+      if (message.startsWith(ECHO_PREFIX)) {
+        Thread.sleep(ThreadLocalRandom.current().nextLong(50));
+        text = message.substring(ECHO_PREFIX.length());
+      } else if (message.startsWith(SLOW_PREFIX)) {
+        text = message.substring(SLOW_PREFIX.length());
+      } else if (message.startsWith(DELAYED_PREFIX)) {
+        Thread.sleep(1000);
+        text = message.substring(DELAYED_PREFIX.length());
+      } else if (message.startsWith(LIMITED_PREFIX)
+          && (message.endsWith("always")
+              || received == 1
+              || (message.endsWith("twice") && received == 2))) {
+        return limited();
+      } else if (message.startsWith(FAIL_PREFIX)
+          || (message.startsWith(FLAKY_PREFIX) && received == 1)) {
+        return HttpResponse.badRequest(
+            Interactions.Body.Failed.of("invalid_request_error", "Failing on purpose."));
+      } else if (message.startsWith(FLAKY_PREFIX) || message.startsWith(LIMITED_PREFIX)) {
+        text = message;
+      }
+      if (request.stream()) {
+        stream(text, message.startsWith(SLOW_PREFIX), functionResponse);
+        return HttpResponse.ok();
+      }
+      if (request.system() != null
+          && request.system().stream().anyMatch(block -> block.cacheControl() != null)) {
+        return HttpResponse.ok(ok(text, cachedPromptUsage(request.system().getFirst().text())));
+      }
+      return HttpResponse.ok(answeredBy(request.model(), ok(text)));
+    }
+
+    static HttpResponse<?> limited() {
+      return HttpResponse.status(HttpStatus.TOO_MANY_REQUESTS)
+          .header("retry-after", "2")
+          .header("x-should-retry", "true")
+          .body(Interactions.Body.Failed.of("rate_limit_error", "Limited on purpose."));
+    }
+
+    static Interactions.Body.OK answeredBy(String model, Interactions.Body.OK ok) {
+      return new Interactions.Body.OK(
+          ok.content(),
+          ok.id(),
+          model,
+          ok.role(),
+          ok.stopReason(),
+          ok.stopSequence(),
+          ok.type(),
+          ok.usage());
+    }
+
+    /**
+     * Answers every input of a packed request with its echoed text, continuing the array opened by
+     * the prefilled reply. Inputs asking for a broken reply get one that can not be parsed.
+     */
+    static Interactions.Body.OK packed(String message) throws Exception {
+      PACKED.incrementAndGet();
+      var matcher = PACKED_INPUT.matcher(message);
+      var answers = new ArrayList<Map<String, Object>>();
+      while (matcher.find()) {
+        var input = matcher.group(2);
+        if (input.contains("broken")) {
+          return ok("{\"id\": 1, \"answer\": ");
+        }
+        answers.add(
+            Map.of(
+                "id",
+                Integer.parseInt(matcher.group(1)),
+                "answer",
+                input.substring(ECHO_PREFIX.length())));
+      }
+      return ok(new ObjectMapper().writeValueAsString(answers).substring(1));
+    }
+
+    /** The first request with a cached prompt writes it to the cache, the rest read it. */
+    static Interactions.Body.Usage cachedPromptUsage(String prompt) {
+      return CACHED_PROMPTS.add(prompt)
+          ? new Interactions.Body.Usage(5, 1, PROMPT_TOKENS, 0)
+          : new Interactions.Body.Usage(5, 1, 0, PROMPT_TOKENS);
+    }
+
+    /**
+     * Writes the text as server sent events in deltas of two characters, slowly if requested. The
+     * frames are written and flushed by hand, as reactive bodies are buffered by the function
+     * invoker.
+     */
+    static void stream(
+        String text, boolean slow, com.google.cloud.functions.HttpResponse functionResponse)
+        throws Exception {
+      functionResponse.setContentType(MediaType.TEXT_EVENT_STREAM);
+      var writer = functionResponse.getOutputStream();
+      var started = ok("");
+      write(
+          writer,
+          event(
+              "message_start",
+              null,
+              new Interactions.Body.OK(
+                  List.of(),
+                  started.id(),
+                  started.model(),
+                  Interactions.Role.ASSISTANT,
+                  null,
+                  null,
+                  "message",
+                  new Interactions.Body.Usage(10, 1, 0, 0)),
+              null,
+              null,
+              null));
+      write(
+          writer,
+          event(
+              "content_block_start",
+              0,
+              null,
+              new Interactions.Body.Content("", "text"),
+              null,
+              null));
+      for (int i = 0; i < text.length(); i += 2) {
+        if (slow) {
+          Thread.sleep(100);
+        }
+        write(
+            writer,
+            event(
+                "content_block_delta",
+                0,
+                null,
+                null,
+                new Interactions.Delta(
+                    "text_delta", text.substring(i, Math.min(text.length(), i + 2)), null, null),
+                null));
+      }
+      write(writer, event("content_block_stop", 0, null, null, null, null));
+      write(
+          writer,
+          event(
+              "message_delta",
+              null,
+              null,
+              null,
+              new Interactions.Delta(null, null, "end_turn", null),
+              new Interactions.Body.Usage(0, text.length(), 0, 0)));
+      write(writer, event("message_stop", null, null, null, null, null));
+    }
+
+    static void write(OutputStream writer, Interactions.StreamEvent event) throws Exception {
+      writer.write(
+          ("event: "
+                  + event.type()
+                  + "\ndata: "
+                  + new ObjectMapper().writeValueAsString(event)
+                  + "\n\n")
+              .getBytes(StandardCharsets.UTF_8));
+      writer.flush();
+    }
+
+    static Interactions.StreamEvent event(
+        String type,
+        Integer index,
+        Interactions.Body.OK message,
+        Interactions.Body.Content contentBlock,
+        Interactions.Delta delta,
+        Interactions.Body.Usage usage) {
+      return new Interactions.StreamEvent(type, index, message, contentBlock, delta, usage, null);
+    }
+
+    @Produces(MediaType.APPLICATION_JSON)
+    @Post(MessageBatchesClient.CLAUDE_BATCHES_PATH)
+    Interactions.MessageBatch createBatch(@Body Interactions.BatchRequest request) {
+      var id = "msgbatch_" + BATCHES.size();
+      BATCHES.put(id, request.requests());
+      return new Interactions.MessageBatch(id, "message_batch", "in_progress", null, null);
+    }
+
+    /** Connection warm ups are unauthenticated requests expected to be rejected. */
+    @Get(ClaudeClient.CLAUDE_MESSAGES_PATH)
+    HttpResponse<?> warmup() {
+      WARMUPS.incrementAndGet();
+      return HttpResponse.status(HttpStatus.METHOD_NOT_ALLOWED);
+    }
+
+    @Produces(MediaType.APPLICATION_JSON)
+    @Get(MessageBatchesClient.CLAUDE_BATCHES_PATH + "/{id}")
+    Interactions.MessageBatch batch(String id) {
+      return new Interactions.MessageBatch(id, "message_batch", "ended", null, null);
+    }
+
+    @Produces("application/x-jsonl")
+    @Get(MessageBatchesClient.CLAUDE_BATCHES_PATH + "/{id}/results")
+    String batchResults(String id) throws Exception {
+      var objectMapper = new ObjectMapper();
+      var lines = new StringBuilder();
+      for (var item : BATCHES.get(id)) {
+        var message = item.params().messages().getFirst().content();
+        var result =
+            new Interactions.BatchResult(
+                item.customId(),
+                new Interactions.BatchOutcome(
+                    "succeeded", ok(message.substring(ECHO_PREFIX.length())), null));
+        lines.append(objectMapper.writeValueAsString(result)).append("\n");
+      }
+      return lines.toString();
+    }
+
+    static Interactions.Body.OK ok(String text) {
+      return ok(text, null);
+    }
+
+    static Interactions.Body.OK ok(String text, Interactions.Body.Usage usage) {
       return new Interactions.Body.OK(
-          List.of(new Interactions.Body.Content("hi", "text")),
+          List.of(new Interactions.Body.Content(text, "text")),
           "some-id",
           "some-model",
           Interactions.Role.USER,
           "",
           "",
           "some-type",
-          null);
+          usage);
     }
   }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import io.micronaut.gcp.function.http.HttpFunction;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.MediaType;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.example.gcp.bqclaude.BQClaudeRemoteFunctionController.RemoteFunctionRequest;
+import org.example.gcp.bqclaude.load.ClaudeSimulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures a cold start of the function: the time from creating the {@link HttpFunction}, which
+ * starts the application context, until it answers its first BigQuery request, against a local
+ * Claude API simulator answering right away. Every measurement runs on a fresh JVM, so the score
+ * includes class loading and the interpreted first execution of the code, as on a new instance.
+ *
+ * <p>The function runs with the classes of the build, so packaging it with {@code
+ * -Dmicronaut.aot.enabled=true} before running the benchmarks measures the AOT optimized startup:
+ * {@code ./mvnw clean -Pbenchmarks verify -DskipTests -Dmicronaut.aot.enabled=true
+ * -Djmh.includes=HttpFunctionStartup}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class HttpFunctionStartupBenchmark {
+
+  static final String KEY = "startup-key";
+
+  ClaudeSimulator simulator;
+  HttpRequest<RemoteFunctionRequest> request;
+  HttpFunction function;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    simulator =
+        new ClaudeSimulator(
+            new ClaudeSimulator.Settings(
+                1000,
+                1_000_000,
+                Duration.ofMinutes(1),
+                Duration.ofMillis(1),
+                Duration.ofMillis(1),
+                0,
+                0,
+                50),
+            List.of(KEY));
+    // the function reads its configuration from the environment as it starts
+    System.setProperty("micronaut.http.services.claude.url", simulator.url());
+    System.setProperty("claude.tokens", KEY);
+    // the client tracing enabled for the tests would dominate the measurement
+    System.setProperty("logger.levels.io.micronaut.http.client", "INFO");
+    request =
+        HttpRequest.POST(
+                "/",
+                new RemoteFunctionRequest(
+                    "startupreqid",
+                    "somecaller",
+                    "someprincipal",
+                    Map.of(),
+                    List.of(List.of("Say hi."))))
+            .contentType(MediaType.APPLICATION_JSON_TYPE);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    if (function != null) {
+      function.close();
+    }
+    simulator.close();
+  }
+
+  @Benchmark
+  public HttpStatus firstResponse() {
+    function = new HttpFunction();
+    var response = function.invoke(request);
+    if (response.getStatus() != HttpStatus.OK) {
+      throw new IllegalStateException("Unexpected status " + response.getStatus());
+    }
+    return response.getStatus();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(HttpFunctionStartupBenchmark.class.getSimpleName())
+                .build())
+        .run();
+  }
+}
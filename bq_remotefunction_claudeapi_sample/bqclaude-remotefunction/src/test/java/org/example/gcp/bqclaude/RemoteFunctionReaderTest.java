@@ -0,0 +1,128 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.exceptions.HttpStatusException;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+public class RemoteFunctionReaderTest {
+
+  final ObjectMapper objectMapper = new ObjectMapper();
+
+  @Test
+  public void testReadsCallsOnDemand() throws Exception {
+    var text = "x".repeat(64 * 1024);
+    var body =
+        objectMapper.writeValueAsBytes(
+            new BQClaudeRemoteFunctionController.RemoteFunctionRequest(
+                "somereqid",
+                "somecaller",
+                "someprincipal",
+                Map.of("max-tokens", "10"),
+                IntStream.range(0, 10).mapToObj(i -> List.of(i + text)).toList()));
+    var stream = new ByteArrayInputStream(body);
+
+    try (var reader = RemoteFunctionReader.read(objectMapper, stream)) {
+      assertEquals("somereqid", reader.request().requestId());
+      assertEquals(10, reader.request().getMaxTokens());
+      assertEquals("0" + text, reader.next().getFirst());
+      // the rest of the rows are still waiting in the request
+      assertTrue(stream.available() > body.length / 2);
+      var rows = new ArrayList<String>();
+      reader.forEachRemaining(row -> rows.add(row.getFirst().substring(0, 1)));
+      assertEquals(List.of("1", "2", "3", "4", "5", "6", "7", "8", "9"), rows);
+      assertEquals(10, reader.rows());
+    }
+  }
+
+  @Test
+  public void testStreamsCallsWithoutContext() throws Exception {
+    var text = "x".repeat(64 * 1024);
+    var body =
+        ("{\"requestId\": \"somereqid\", \"calls\": "
+                + objectMapper.writeValueAsString(
+                    IntStream.range(0, 10).mapToObj(i -> List.of(i + text)).toList())
+                + "}")
+            .getBytes(StandardCharsets.UTF_8);
+    var stream = new ByteArrayInputStream(body);
+
+    try (var reader = RemoteFunctionReader.read(objectMapper, stream)) {
+      assertEquals(Map.of(), reader.request().userDefinedContext());
+      assertEquals("0" + text, reader.next().getFirst());
+      assertTrue(stream.available() > body.length / 2);
+    }
+  }
+
+  @Test
+  public void testBuffersCallsSentBeforeTheRequestId() {
+    var body =
+        """
+        {"calls": [["a"], [1], [null]], "extra": {"nested": [1, 2]},
+         "requestId": "somereqid", "userDefinedContext": {"max-tokens": "10"}}
+        """;
+
+    try (var reader =
+        RemoteFunctionReader.read(
+            objectMapper, new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)))) {
+      assertEquals("somereqid", reader.request().requestId());
+      assertEquals(10, reader.request().getMaxTokens());
+      var rows = new ArrayList<List<String>>();
+      reader.forEachRemaining(rows::add);
+      assertEquals(List.of("a"), rows.get(0));
+      assertEquals(List.of("1"), rows.get(1));
+      assertNull(rows.get(2).getFirst());
+    }
+  }
+
+  @Test
+  public void testRejectsContextSentAfterStreamedCalls() {
+    var body =
+        """
+        {"requestId": "somereqid", "calls": [["a"]], "userDefinedContext": {"max-tokens": "10"}}
+        """;
+
+    try (var reader =
+        RemoteFunctionReader.read(
+            objectMapper, new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)))) {
+      assertEquals(List.of("a"), reader.next());
+      var error = assertThrows(HttpStatusException.class, reader::hasNext);
+      assertEquals(HttpStatus.BAD_REQUEST, error.getStatus());
+    }
+  }
+
+  @Test
+  public void testRejectsMalformedRequests() {
+    var body =
+        "{\"requestId\": \"somereqid\", \"userDefinedContext\": {}, \"calls\": [[\"a\"], [\"b\"";
+    var reader =
+        RemoteFunctionReader.read(
+            objectMapper, new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    assertEquals(List.of("a"), reader.next());
+    var error = assertThrows(HttpStatusException.class, reader::next);
+    assertEquals(HttpStatus.BAD_REQUEST, error.getStatus());
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.json.JsonMapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.example.gcp.bqclaude.BQClaudeRemoteFunctionController.RemoteFunctionRequest;
+import org.example.gcp.bqclaude.BQClaudeRemoteFunctionController.RemoteFunctionResponse;
+import org.example.gcp.bqclaude.client.Interactions;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the work done for every BigQuery request before and after talking to Claude API:
+ * binding the request with its calls, parsing the calls into Claude requests and writing the
+ * replies, both as whole objects and streamed a row at a time as the function does. Payloads
+ * default to 500 rows of 2 KB texts, and the mapper is the one the function uses. Run it, along
+ * with the rest of the benchmarks, with {@code ./mvnw -Pbenchmarks verify}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RemoteFunctionSerdeBenchmark {
+
+  @Param({"500"})
+  int rows;
+
+  @Param({"2048"})
+  int textBytes;
+
+  ApplicationContext context;
+  JsonMapper jsonMapper;
+  ObjectMapper objectMapper;
+  byte[] requestBody;
+  RemoteFunctionRequest request;
+  RemoteFunctionResponse response;
+
+  @Setup
+  public void setup() throws IOException {
+    context = ApplicationContext.run();
+    jsonMapper = context.getBean(JsonMapper.class);
+    objectMapper = context.getBean(ObjectMapper.class);
+    var random = new SplittableRandom(42);
+    var calls = IntStream.range(0, rows).mapToObj(__ -> List.of(text(random))).toList();
+    request =
+        new RemoteFunctionRequest(
+            "benchmarkreqid",
+            "//bigquery.googleapis.com/projects/some-project/jobs/some-job",
+            "someone@example.com",
+            Map.of("max-tokens", "512", "system-prompt", "Classify the sentiment of the review."),
+            calls);
+    requestBody = jsonMapper.writeValueAsBytes(request);
+    response =
+        RemoteFunctionResponse.OK(
+            calls.stream()
+                .<Interactions.Body>map(
+                    call ->
+                        new Interactions.Body.OK(
+                            List.of(new Interactions.Body.Content(call.getFirst(), "text")),
+                            "msg_01XFDUDYJgAACzvnptvVoYEL",
+                            "claude-3-5-sonnet-20240620",
+                            Interactions.Role.ASSISTANT,
+                            "end_turn",
+                            null,
+                            "message",
+                            new Interactions.Body.Usage(512, 512, 0, 0)))
+                .toList());
+  }
+
+  @TearDown
+  public void tearDown() {
+    context.close();
+  }
+
+  /** Words of random lowercase letters, until the text reaches the configured size. */
+  String text(SplittableRandom random) {
+    var text = new StringBuilder(textBytes);
+    while (text.length() < textBytes) {
+      var word = random.nextInt(2, 10);
+      for (int i = 0; i < word; i++) {
+        text.append((char) ('a' + random.nextInt(26)));
+      }
+      text.append(' ');
+    }
+    return text.substring(0, textBytes);
+  }
+
+  @Benchmark
+  public RemoteFunctionRequest readRequest() throws IOException {
+    return jsonMapper.readValue(requestBody, RemoteFunctionRequest.class);
+  }
+
+  @Benchmark
+  public int streamRequest() {
+    try (var reader =
+        RemoteFunctionReader.read(objectMapper, new ByteArrayInputStream(requestBody))) {
+      var characters = 0;
+      while (reader.hasNext()) {
+        characters += reader.next().getFirst().length();
+      }
+      return characters;
+    }
+  }
+
+  @Benchmark
+  public List<ClaudeRequest> parseCalls() {
+    return request.calls().stream()
+        .map(
+            call ->
+                ClaudeRequest.parse(
+                    "claude-3-5-sonnet-20240620",
+                    request.getMaxTokens(),
+                    request.getSystemPrompt(),
+                    request.isPromptCaching(),
+                    call))
+        .toList();
+  }
+
+  @Benchmark
+  public byte[] writeResponse() throws IOException {
+    return jsonMapper.writeValueAsBytes(response);
+  }
+
+  @Benchmark
+  public int streamResponse() throws IOException {
+    var replies = new RepliesWriter(objectMapper);
+    response.replies().forEach(replies::write);
+    var output = new ByteArrayOutputStream();
+    replies.finish().writeTo(output, StandardCharsets.UTF_8);
+    return output.size();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder()
+                .include(RemoteFunctionSerdeBenchmark.class.getSimpleName())
+                .build())
+        .run();
+  }
+}
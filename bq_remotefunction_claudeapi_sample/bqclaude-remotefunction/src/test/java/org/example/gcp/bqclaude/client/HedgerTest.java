@@ -0,0 +1,131 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.example.gcp.bqclaude.HedgingConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.Body;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeResponse;
+import org.example.gcp.bqclaude.exceptions.TokenExhaustedException;
+import org.junit.jupiter.api.Test;
+
+public class HedgerTest {
+
+  static Hedger hedger(Duration minDelay, double budget) {
+    return new Hedger(new HedgingConfiguration(true, 90, minDelay, budget));
+  }
+
+  static ClaudeResponse ok(String token) {
+    return new ClaudeResponse(
+        token, new Body.OK(List.of(), "id", "model", null, null, null, "message", null), Map.of());
+  }
+
+  @Test
+  public void testDelayIsThePercentileOfRecentReplies() {
+    var hedger = hedger(Duration.ofMillis(10), 0.1);
+    for (int i = 1; i < 64; i++) {
+      hedger.record(Duration.ofMillis(i).toNanos());
+    }
+    // not enough replies to tell what a slow one is
+    assertEquals(Optional.empty(), hedger.delay());
+    hedger.record(Duration.ofMillis(64).toNanos());
+    assertEquals(Optional.of(Duration.ofMillis(58)), hedger.delay());
+
+    var fast = hedger(Duration.ofSeconds(1), 0.1);
+    for (int i = 1; i <= 64; i++) {
+      fast.record(Duration.ofMillis(i).toNanos());
+    }
+    assertEquals(Optional.of(Duration.ofSeconds(1)), fast.delay());
+  }
+
+  @Test
+  public void testHedgesAreBoundedByTheBudget() {
+    var hedger = hedger(Duration.ofMillis(10), 0.25);
+    for (int i = 0; i < 4; i++) {
+      assertFalse(hedger.tryHedge());
+      hedger.requested();
+    }
+    assertTrue(hedger.tryHedge());
+    assertFalse(hedger.tryHedge());
+    hedger.refund();
+    assertTrue(hedger.tryHedge());
+    assertEquals(1, hedger.hedgesSent());
+
+    // the budget saved up while not hedging only pays for a small burst
+    for (int i = 0; i < 1000; i++) {
+      hedger.requested();
+    }
+    var burst = 0;
+    while (hedger.tryHedge()) {
+      burst++;
+    }
+    assertEquals(10, burst);
+  }
+
+  @Test
+  public void testFirstSuccessfulReplyWins() {
+    var winner = new CompletableFuture<ClaudeResponse>();
+    var pending = new AtomicInteger(2);
+    var primary = new CompletableFuture<ClaudeResponse>();
+    var hedge = new CompletableFuture<ClaudeResponse>();
+    var cancelPrimary = new CompletableFuture<Void>();
+    var cancelHedge = new CompletableFuture<Void>();
+    var won = new AtomicInteger();
+    ClaudeClient.race(primary, winner, pending, cancelHedge, () -> {});
+    ClaudeClient.race(hedge, winner, pending, cancelPrimary, won::incrementAndGet);
+
+    // a failed request waits for the other one
+    primary.completeExceptionally(new TokenExhaustedException("limited"));
+    assertFalse(winner.isDone());
+    hedge.complete(ok("hedge"));
+    assertEquals("hedge", winner.join().tokenId());
+    assertEquals(1, won.get());
+
+    winner = new CompletableFuture<>();
+    pending.set(2);
+    var slow = new CompletableFuture<ClaudeResponse>();
+    var fast = new CompletableFuture<ClaudeResponse>();
+    var cancelSlow = new CompletableFuture<Void>();
+    ClaudeClient.race(slow, winner, pending, new CompletableFuture<>(), () -> {});
+    ClaudeClient.race(fast, winner, pending, cancelSlow, () -> {});
+    fast.complete(ok("fast"));
+    assertEquals("fast", winner.join().tokenId());
+    assertTrue(cancelSlow.isDone());
+  }
+
+  @Test
+  public void testLastFailureIsReturnedWhenBothFail() {
+    var winner = new CompletableFuture<ClaudeResponse>();
+    var pending = new AtomicInteger(2);
+    var primary = new CompletableFuture<ClaudeResponse>();
+    var hedge = new CompletableFuture<ClaudeResponse>();
+    ClaudeClient.race(primary, winner, pending, new CompletableFuture<>(), () -> {});
+    ClaudeClient.race(hedge, winner, pending, new CompletableFuture<>(), () -> {});
+    primary.complete(
+        new ClaudeResponse("primary", Body.Failed.of("overloaded_error", "busy"), Map.of()));
+    assertFalse(winner.isDone());
+    hedge.completeExceptionally(new TokenExhaustedException("limited"));
+    var error = assertThrows(Exception.class, winner::join);
+    assertInstanceOf(TokenExhaustedException.class, error.getCause());
+  }
+}
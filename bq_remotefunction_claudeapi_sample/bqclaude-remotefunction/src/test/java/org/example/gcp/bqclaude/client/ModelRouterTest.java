@@ -0,0 +1,50 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.List;
+import org.example.gcp.bqclaude.RoutingConfiguration;
+import org.junit.jupiter.api.Test;
+
+public class ModelRouterTest {
+
+  @Test
+  public void testParsesModels() {
+    assertEquals(List.of("small", "smaller"), ModelRouter.models(" small,,smaller "));
+    assertEquals(List.of(), ModelRouter.models(""));
+  }
+
+  @Test
+  public void testSlowModelsAreProbedAgainAfterTheInterval() {
+    var router = new ModelRouter();
+    router.configuration =
+        new RoutingConfiguration(
+            List.of("small"), null, Duration.ofSeconds(1), Duration.ofMinutes(1));
+    router.recordLatency("large", Duration.ofMillis(500).toNanos());
+    var now = System.nanoTime();
+    assertFalse(router.slow("large", now));
+
+    router.recordLatency("large", Duration.ofSeconds(20).toNanos());
+    now = System.nanoTime();
+    assertTrue(router.slow("large", now));
+    assertFalse(router.slow("small", now));
+    // without replies from it for a while, the model gets tried again
+    assertFalse(router.slow("large", now + Duration.ofMinutes(2).toNanos()));
+  }
+}
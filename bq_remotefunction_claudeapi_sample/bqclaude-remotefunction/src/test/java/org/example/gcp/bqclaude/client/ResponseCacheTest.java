@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.example.gcp.bqclaude.ResponseCacheConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeResponse;
+import org.junit.jupiter.api.Test;
+
+public class ResponseCacheTest {
+
+  static ClaudeResponse ok(String text) {
+    return new ClaudeResponse(
+        "token",
+        new Interactions.Body.OK(
+            List.of(new Interactions.Body.Content(text, "text")),
+            "id",
+            "some-model",
+            Interactions.Role.ASSISTANT,
+            null,
+            null,
+            "message",
+            null),
+        Map.of());
+  }
+
+  @Test
+  public void testKeyDependsOnRequestContent() {
+    var request = ClaudeRequest.parse("some-model", 100, "be brief", List.of("hello"));
+    // whitespace is sent as is and can change the reply
+    assertNotEquals(
+        RequestDigest.of(request),
+        RequestDigest.of(ClaudeRequest.parse("some-model", 100, "be brief", List.of("hello "))));
+    // caching the system prompt does not change the reply
+    assertEquals(
+        RequestDigest.of(request),
+        RequestDigest.of(
+            ClaudeRequest.parse("some-model", 100, "be brief", true, List.of("hello"))));
+    assertNotEquals(
+        RequestDigest.of(request),
+        RequestDigest.of(ClaudeRequest.parse("some-model", 200, "be brief", List.of("hello"))));
+    assertNotEquals(
+        RequestDigest.of(request),
+        RequestDigest.of(ClaudeRequest.parse("some-model", 100, "be brie", List.of("fhello"))));
+  }
+
+  @Test
+  public void testServesRepeatedRequestsFromCache() {
+    var cache = new ResponseCache(new ResponseCacheConfiguration(true, 10, Duration.ofMinutes(1)));
+    var sent = new AtomicInteger();
+    var request = ClaudeRequest.parse("some-model", 100, "", List.of("hello"));
+    for (int i = 0; i < 3; i++) {
+      var response =
+          cache
+              .getOrSend(
+                  request,
+                  __ -> {
+                    sent.incrementAndGet();
+                    return CompletableFuture.completedFuture(ok("hi"));
+                  })
+              .join();
+      assertEquals("hi", response.okResponse().content().getFirst().text());
+    }
+    assertEquals(1, sent.get());
+    assertEquals(2, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeResponse;
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+
+  @Test
+  public void testSharesInFlightCalls() {
+    var singleFlight = new SingleFlight();
+    var sent = new AtomicInteger();
+    var upstream = new CompletableFuture<ClaudeResponse>();
+    var request = ClaudeRequest.parse("some-model", 100, "", List.of("hello"));
+
+    var first =
+        singleFlight.send(
+            request,
+            __ -> {
+              sent.incrementAndGet();
+              return upstream;
+            });
+    var second =
+        singleFlight.send(
+            request,
+            __ -> {
+              sent.incrementAndGet();
+              return upstream;
+            });
+    // a cancelled caller does not affect the rest
+    second.cancel(true);
+    var third = singleFlight.send(request, __ -> CompletableFuture.failedFuture(new Exception()));
+
+    upstream.complete(ResponseCacheTest.ok("hi"));
+    assertEquals("hi", first.join().okResponse().content().getFirst().text());
+    assertEquals("hi", third.join().okResponse().content().getFirst().text());
+    assertEquals(1, sent.get());
+    assertEquals(2, singleFlight.sharedCount());
+
+    // once completed the next identical request goes upstream again
+    singleFlight.send(
+        request, __ -> CompletableFuture.completedFuture(ResponseCacheTest.ok("hey")));
+    assertEquals(2, singleFlight.sharedCount());
+  }
+}
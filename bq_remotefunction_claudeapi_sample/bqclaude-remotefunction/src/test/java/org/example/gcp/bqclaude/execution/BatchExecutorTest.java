@@ -0,0 +1,98 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.execution;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.example.gcp.bqclaude.ExecutionConfiguration;
+import org.example.gcp.bqclaude.exceptions.TokenExhaustedException;
+import org.junit.jupiter.api.Test;
+
+public class BatchExecutorTest {
+
+  @Test
+  public void testStreamsItemsWithinTheParallelism() {
+    var executor = new BatchExecutor();
+    executor.configuration = new ExecutionConfiguration(true, 32, 8, false, true);
+    var taken = new AtomicInteger();
+    var inFlight = new AtomicInteger();
+    var maxInFlight = new AtomicInteger();
+    var items =
+        IntStream.range(0, 20)
+            .peek(__ -> taken.incrementAndGet())
+            .boxed()
+            .iterator();
+    var results = new ArrayList<Integer>();
+
+    var count =
+        executor.streamInOrder(
+            items,
+            3,
+            item ->
+                executor.onVirtualThread(
+                    () -> {
+                      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                      try {
+                        // later items complete first
+                        Thread.sleep(20 - item);
+                      } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                      }
+                      inFlight.decrementAndGet();
+                      return item;
+                    }),
+            result -> {
+              if (results.isEmpty()) {
+                // items are only taken when there is room for them
+                assertTrue(taken.get() < 20);
+              }
+              results.add(result);
+            });
+
+    assertEquals(20, count);
+    assertEquals(IntStream.range(0, 20).boxed().toList(), results);
+    assertTrue(maxInFlight.get() <= 3);
+    executor.close();
+  }
+
+  @Test
+  public void testFirstFailureCancelsTheRest() {
+    var executor = new BatchExecutor();
+    executor.configuration = new ExecutionConfiguration(true, 32, 8, false, true);
+    var blocked = new CompletableFuture<Integer>();
+
+    assertThrows(
+        TokenExhaustedException.class,
+        () ->
+            executor.streamInOrder(
+                List.of(0, 1).iterator(),
+                2,
+                item ->
+                    item == 0
+                        ? blocked
+                        : CompletableFuture.failedFuture(
+                            new TokenExhaustedException("Exhausted.")),
+                result -> fail("No result expected.")));
+    assertTrue(blocked.isCancelled());
+    executor.close();
+  }
+}
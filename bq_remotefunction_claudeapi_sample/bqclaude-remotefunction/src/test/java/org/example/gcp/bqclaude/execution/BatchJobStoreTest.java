@@ -0,0 +1,83 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.execution;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.example.gcp.bqclaude.MessageBatchesConfiguration;
+import org.junit.jupiter.api.Test;
+
+public class BatchJobStoreTest {
+
+  @Test
+  public void testConcurrentRetriesSubmitOnce() throws Exception {
+    var store =
+        new BatchJobStore(
+            new MessageBatchesConfiguration(10, Duration.ofHours(1), Duration.ofSeconds(1)));
+    var submitted = new AtomicInteger();
+    var start = new CountDownLatch(1);
+    try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      var jobs =
+          IntStream.range(0, 8)
+              .mapToObj(
+                  __ ->
+                      CompletableFuture.supplyAsync(
+                          () -> {
+                            try {
+                              start.await();
+                            } catch (InterruptedException ex) {
+                              throw new IllegalStateException(ex);
+                            }
+                            return store.trackIfAbsent(
+                                "reqid",
+                                () ->
+                                    new BatchJobStore.BatchJob(
+                                        "batch-" + submitted.incrementAndGet(), "token", 1, 0));
+                          },
+                          executor))
+              .toList();
+      start.countDown();
+      jobs.forEach(job -> assertEquals("batch-1", job.join().batchId()));
+    }
+    assertEquals(1, submitted.get());
+  }
+
+  @Test
+  public void testFailedSubmissionsAreNotTracked() {
+    var store =
+        new BatchJobStore(
+            new MessageBatchesConfiguration(10, Duration.ofHours(1), Duration.ofSeconds(1)));
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            store.trackIfAbsent(
+                "reqid",
+                () -> {
+                  throw new IllegalStateException("Submission failed.");
+                }));
+    assertEquals(
+        "batch",
+        store
+            .trackIfAbsent("reqid", () -> new BatchJobStore.BatchJob("batch", "token", 1, 0))
+            .batchId());
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.execution;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.List;
+import org.example.gcp.bqclaude.QuotaConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.Body;
+import org.example.gcp.bqclaude.exceptions.QuotaExceededException;
+import org.junit.jupiter.api.Test;
+
+public class CallerUsageTest {
+
+  static CallerUsage usage(String key, List<String> limits, long defaultLimit) {
+    return new CallerUsage(
+        new QuotaConfiguration(true, key, Duration.ofHours(1), limits, defaultLimit, 100));
+  }
+
+  @Test
+  public void testUsageIsCountedPerQueryAndSessionUser() {
+    var usage = usage("session-user", null, 0);
+    usage.record("query-1", "alice", new Body.Usage(100, 10, 0, 0));
+    usage.record("query-2", "alice", new Body.Usage(50, 5, 0, 0));
+    usage.record("query-2", "alice", null);
+
+    assertEquals(
+        new CallerUsage.Usage(3, 150, 15), usage.usage(CallerUsage.SESSION_USER, "alice"));
+    assertEquals(new CallerUsage.Usage(1, 100, 10), usage.usage(CallerUsage.CALLER, "query-1"));
+    assertEquals(new CallerUsage.Usage(2, 50, 5), usage.usage(CallerUsage.CALLER, "query-2"));
+    assertEquals(new CallerUsage.Usage(0, 0, 0), usage.usage(CallerUsage.SESSION_USER, "bob"));
+  }
+
+  @Test
+  public void testBatchesOverTheQuotaAreRejected() {
+    var usage = usage("session-user", List.of("alice=100", " bob = 1000 "), 500);
+    usage.admit("query-1", "alice");
+    usage.record("query-1", "alice", new Body.Usage(90, 10, 0, 0));
+    assertThrows(QuotaExceededException.class, () -> usage.admit("query-2", "alice"));
+
+    // others keep their own quota, the default one when not listed
+    usage.record("query-3", "bob", new Body.Usage(600, 0, 0, 0));
+    usage.admit("query-3", "bob");
+    usage.record("query-4", "carol", new Body.Usage(600, 0, 0, 0));
+    assertThrows(QuotaExceededException.class, () -> usage.admit("query-4", "carol"));
+    assertEquals(2, usage.rejected());
+  }
+
+  @Test
+  public void testQuotasCanApplyPerQuery() {
+    var usage = usage("caller", null, 100);
+    usage.record("query-1", "alice", new Body.Usage(100, 0, 0, 0));
+    assertThrows(QuotaExceededException.class, () -> usage.admit("query-1", "alice"));
+    usage.admit("query-2", "alice");
+  }
+
+  @Test
+  public void testCacheWritesAndHedgeLosersAreCharged() {
+    var usage = usage("session-user", null, 0);
+    usage.record("query-1", "alice", new Body.Usage(100, 10, 50, 1000), 2);
+
+    assertEquals(new CallerUsage.Usage(2, 300, 20), usage.usage(CallerUsage.SESSION_USER, "alice"));
+  }
+
+  @Test
+  public void testNewCallersAreRejectedOnceCountersAreFull() {
+    var usage =
+        new CallerUsage(
+            new QuotaConfiguration(true, "session-user", Duration.ofHours(1), null, 0, 4));
+    usage.admit("query-1", "alice");
+    usage.admit("query-2", "bob");
+    assertThrows(QuotaExceededException.class, () -> usage.admit("query-3", "carol"));
+
+    // the counted callers keep their counters and their batches
+    usage.admit("query-1", "alice");
+    usage.record("query-1", "alice", new Body.Usage(100, 10, 0, 0));
+    assertEquals(new CallerUsage.Usage(1, 100, 10), usage.usage(CallerUsage.CALLER, "query-1"));
+    assertEquals(1, usage.rejected());
+  }
+
+  @Test
+  public void testMalformedQuotasAreRejected() {
+    assertThrows(
+        IllegalArgumentException.class, () -> usage("session-user", List.of("alice"), 0));
+  }
+}
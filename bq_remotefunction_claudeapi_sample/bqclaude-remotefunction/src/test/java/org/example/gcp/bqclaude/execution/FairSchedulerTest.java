@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.execution;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.example.gcp.bqclaude.FairnessConfiguration;
+import org.example.gcp.bqclaude.TokenBudgetConfiguration;
+import org.example.gcp.bqclaude.client.Interactions.ClaudeRequest;
+import org.example.gcp.bqclaude.tokens.TokenEstimator;
+import org.junit.jupiter.api.Test;
+
+public class FairSchedulerTest {
+
+  static final ClaudeRequest REQUEST = ClaudeRequest.parse("some-model", 10, "", List.of("hi"));
+
+  private final List<String> started = new ArrayList<>();
+  private final Map<String, CompletableFuture<String>> sent = new HashMap<>();
+
+  /** Without estimates every row costs a quantum, so a weight of one starts a row per turn. */
+  static FairScheduler scheduler(List<String> weights, int maxInFlight) {
+    var scheduler =
+        new FairScheduler(
+            new FairnessConfiguration(true, "session-user", weights, 1, 1024, maxInFlight));
+    scheduler.estimator = new TokenEstimator(new TokenBudgetConfiguration(false, 4.0, 0, 0));
+    return scheduler;
+  }
+
+  /** Submits rows that complete when told to, recording the order they are started in. */
+  List<CompletableFuture<String>> submit(FairScheduler scheduler, String caller, int rows) {
+    var results = new ArrayList<CompletableFuture<String>>();
+    for (var row = 0; row < rows; row++) {
+      var name = caller + row;
+      var future = new CompletableFuture<String>();
+      sent.put(name, future);
+      results.add(
+          scheduler.submit(
+              caller,
+              REQUEST,
+              () -> {
+                started.add(name);
+                return future;
+              }));
+    }
+    return results;
+  }
+
+  /** Completes the last started row, one at a time, until every row has been started. */
+  void drain() {
+    while (started.size() < sent.size()) {
+      sent.get(started.getLast()).complete(started.getLast());
+    }
+  }
+
+  @Test
+  public void testInteractiveCallerIsNotStarvedByBulkCaller() {
+    var scheduler = scheduler(List.of(), 1);
+
+    var bulk = submit(scheduler, "bulk", 10);
+    var dashboard = submit(scheduler, "dashboard", 2);
+    drain();
+
+    // the bulk rows queued before the dashboard ones took the first turn
+    assertEquals(
+        List.of("bulk0", "bulk1", "dashboard0", "bulk2", "dashboard1", "bulk3"),
+        started.subList(0, 6));
+    assertEquals("dashboard1", dashboard.get(1).join());
+    assertEquals(9, bulk.stream().filter(CompletableFuture::isDone).count());
+    assertEquals(0, scheduler.queued());
+  }
+
+  @Test
+  public void testWeightsShareTheCapacity() {
+    var scheduler = scheduler(List.of("dashboard=3"), 1);
+
+    submit(scheduler, "bulk", 8);
+    submit(scheduler, "dashboard", 8);
+    drain();
+
+    // three dashboard rows per bulk row once both are queued
+    assertEquals(
+        List.of(
+            "bulk0",
+            "bulk1",
+            "dashboard0",
+            "dashboard1",
+            "dashboard2",
+            "bulk2",
+            "dashboard3",
+            "dashboard4",
+            "dashboard5"),
+        started.subList(0, 9));
+  }
+
+  @Test
+  public void testKeepsTheRowsInFlightWithinTheMaximum() {
+    var scheduler = scheduler(List.of(), 3);
+
+    submit(scheduler, "bulk", 10);
+
+    assertEquals(List.of("bulk0", "bulk1", "bulk2"), started);
+    assertEquals(7, scheduler.queued());
+    sent.get("bulk1").complete("done");
+    assertEquals(List.of("bulk0", "bulk1", "bulk2", "bulk3"), started);
+  }
+
+  @Test
+  public void testCancelledRowsAreNotSent() {
+    var scheduler = scheduler(List.of(), 1);
+
+    submit(scheduler, "bulk", 1);
+    var queued = submit(scheduler, "dashboard", 2);
+    queued.get(0).cancel(true);
+    sent.get("bulk0").complete("done");
+
+    assertEquals(List.of("bulk0", "dashboard1"), started);
+    assertEquals(0, scheduler.queued());
+  }
+
+  @Test
+  public void testCostsFollowTheEstimatedTokens() {
+    var scheduler =
+        new FairScheduler(new FairnessConfiguration(true, "session-user", null, 1, 1024, 1));
+    scheduler.estimator = new TokenEstimator(new TokenBudgetConfiguration(true, 4.0, 0, 0));
+
+    // short prompts and 10 max tokens, many of them fit in a single quantum
+    assertTrue(scheduler.cost(REQUEST) < 1024 / 10);
+    assertEquals("dashboard", scheduler.caller("job", "dashboard"));
+    assertEquals(1, scheduler.weight("anyone"));
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.example.gcp.bqclaude.client.ClaudeClient;
+
+/**
+ * A local stand in for Claude API messages endpoint, to see how the function behaves under load
+ * without leaving the machine. Every key gets its own requests and tokens budgets, replenished
+ * continuously over the budget interval like Claude API does, and informed on the rate limit
+ * headers of every response. Requests over budget are rejected with a 429 and the seconds to wait
+ * on {@code retry-after}, the accepted ones reply after a log-normal latency and may fail with the
+ * configured rates of overloaded (529) and server (500) errors.
+ *
+ * <p>Runs on Jetty with a virtual thread per request, so slow replies do not limit the load it can
+ * take. It can also serve over TLS, with a self signed certificate for localhost, to account for
+ * the handshakes of the connections the function opens; then HTTP/2 is offered through ALPN like
+ * Claude API does, while plain connections speak HTTP/1.1.
+ */
+public class ClaudeSimulator implements AutoCloseable {
+
+  // the standard normal quantile of the 99th percentile
+  private static final double Z_99 = 2.326;
+
+  private final Settings settings;
+  private final Map<String, Budget> budgets;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final Server server;
+  private final ServerConnector connector;
+  private final boolean tls;
+  private final Set<String> connections = ConcurrentHashMap.newKeySet();
+  private final LongAdder received = new LongAdder();
+  private final LongAdder answered = new LongAdder();
+  private final LongAdder rateLimited = new LongAdder();
+  private final LongAdder overloaded = new LongAdder();
+  private final LongAdder serverErrors = new LongAdder();
+
+  /**
+   * Budgets are given per interval, a minute on Claude API, for every key. Latency follows a
+   * log-normal distribution with the given median and 99th percentile.
+   */
+  public record Settings(
+      int requestsLimit,
+      int tokensLimit,
+      Duration interval,
+      Duration medianLatency,
+      Duration p99Latency,
+      double overloadedRate,
+      double serverErrorRate,
+      int outputTokens) {
+
+    public static Settings defaults() {
+      return new Settings(
+          50, 40000, Duration.ofMinutes(1), Duration.ofSeconds(2), Duration.ofSeconds(8), 0, 0, 50);
+    }
+  }
+
+  public ClaudeSimulator(Settings settings, List<String> keys) throws IOException {
+    this(settings, keys, false);
+  }
+
+  public ClaudeSimulator(Settings settings, List<String> keys, boolean tls) throws IOException {
+    this.settings = settings;
+    this.tls = tls;
+    this.budgets =
+        keys.stream()
+            .distinct()
+            .collect(Collectors.toMap(Function.identity(), __ -> new Budget(settings)));
+    var threads = new QueuedThreadPool();
+    threads.setVirtualThreadsExecutor(executor);
+    this.server = new Server(threads);
+    var http = new HttpConfiguration();
+    if (tls) {
+      http.addCustomizer(new SecureRequestCustomizer(false));
+      var http2 = new HTTP2ServerConnectionFactory(http);
+      var http1 = new HttpConnectionFactory(http);
+      var alpn = new ALPNServerConnectionFactory();
+      alpn.setDefaultProtocol(http1.getProtocol());
+      var ssl = new SslConnectionFactory(selfSignedContext(), alpn.getProtocol());
+      this.connector = new ServerConnector(server, ssl, alpn, http2, http1);
+    } else {
+      this.connector = new ServerConnector(server, new HttpConnectionFactory(http));
+    }
+    connector.setHost("localhost");
+    server.addConnector(connector);
+    server.setHandler(
+        new AbstractHandler() {
+          @Override
+          public void handle(
+              String target,
+              Request base,
+              HttpServletRequest request,
+              HttpServletResponse response)
+              throws IOException {
+            base.setHandled(true);
+            if (!ClaudeClient.CLAUDE_MESSAGES_PATH.equals(target)) {
+              response.sendError(404);
+              return;
+            }
+            ClaudeSimulator.this.handle(request, response);
+          }
+        });
+    try {
+      server.start();
+    } catch (Exception ex) {
+      throw new IOException("Could not start the simulator.", ex);
+    }
+  }
+
+  /** A certificate for localhost generated by keytool, valid for a day. */
+  static SslContextFactory.Server selfSignedContext() throws IOException {
+    var keystore = Files.createTempFile("simulator", ".p12");
+    try {
+      Files.delete(keystore);
+      var keytool =
+          new ProcessBuilder(
+                  System.getProperty("java.home") + "/bin/keytool",
+                  "-genkeypair",
+                  "-alias",
+                  "simulator",
+                  "-keyalg",
+                  "EC",
+                  "-dname",
+                  "CN=localhost",
+                  "-ext",
+                  "SAN=dns:localhost",
+                  "-validity",
+                  "1",
+                  "-storetype",
+                  "PKCS12",
+                  "-keystore",
+                  keystore.toString(),
+                  "-storepass",
+                  "simulator")
+              .redirectErrorStream(true)
+              .start();
+      if (keytool.waitFor() != 0) {
+        throw new IOException(
+            "Could not generate the certificate: "
+                + new String(keytool.getInputStream().readAllBytes()));
+      }
+      var store = KeyStore.getInstance("PKCS12");
+      try (InputStream in = Files.newInputStream(keystore)) {
+        store.load(in, "simulator".toCharArray());
+      }
+      var context = new SslContextFactory.Server();
+      context.setKeyStore(store);
+      context.setKeyStorePassword("simulator");
+      return context;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while generating the certificate.", ex);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("Could not load the certificate.", ex);
+    } finally {
+      Files.deleteIfExists(keystore);
+    }
+  }
+
+  public String url() {
+    return (tls ? "https" : "http") + "://localhost:" + connector.getLocalPort();
+  }
+
+  public boolean tls() {
+    return tls;
+  }
+
+  public Stats stats() {
+    return new Stats(
+        received.sum(),
+        answered.sum(),
+        rateLimited.sum(),
+        overloaded.sum(),
+        serverErrors.sum(),
+        connections.size());
+  }
+
+  @Override
+  public void close() {
+    try {
+      server.stop();
+    } catch (Exception ex) {
+      throw new IllegalStateException("Could not stop the simulator.", ex);
+    } finally {
+      executor.close();
+    }
+  }
+
+  void handle(HttpServletRequest http, HttpServletResponse response) throws IOException {
+    try {
+      // each connection of the client comes from its own port
+      connections.add(http.getRemoteAddr() + ":" + http.getRemotePort());
+      if (!"POST".equals(http.getMethod())) {
+        // connection warm ups, not calls to the API
+        respond(response, 405, error("invalid_request_error", "method not allowed"));
+        return;
+      }
+      received.increment();
+      var request = objectMapper.readTree(http.getInputStream());
+      var budget = budgets.get(http.getHeader("x-api-key"));
+      if (budget == null) {
+        respond(response, 401, error("authentication_error", "invalid x-api-key"));
+        return;
+      }
+      if (request.path("stream").asBoolean()) {
+        respond(response, 400, error("invalid_request_error", "streaming is not simulated"));
+        return;
+      }
+      var inputTokens = inputTokens(request);
+      var grant = budget.take(inputTokens + settings.outputTokens(), System.currentTimeMillis());
+      budget.headers(response, grant.now());
+      if (!grant.accepted()) {
+        rateLimited.increment();
+        response.addHeader("retry-after", String.valueOf((grant.waitMillis() + 999) / 1000));
+        response.addHeader("x-should-retry", "true");
+        respond(response, 429, error("rate_limit_error", "rate limited by the simulator"));
+        return;
+      }
+      Thread.sleep(latency().toMillis());
+      var random = ThreadLocalRandom.current().nextDouble();
+      if (random < settings.overloadedRate()) {
+        overloaded.increment();
+        respond(response, 529, error("overloaded_error", "overloaded by the simulator"));
+      } else if (random < settings.overloadedRate() + settings.serverErrorRate()) {
+        serverErrors.increment();
+        respond(response, 500, error("api_error", "failed by the simulator"));
+      } else {
+        answered.increment();
+        respond(response, 200, message(request, inputTokens));
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Close enough to Claude API counting, four characters per token. */
+  static int inputTokens(JsonNode request) {
+    var characters = 0;
+    for (var message : request.path("messages")) {
+      characters += message.path("content").asText().length();
+    }
+    for (var block : request.path("system")) {
+      characters += block.path("text").asText().length();
+    }
+    return characters / 4 + 1;
+  }
+
+  Duration latency() {
+    var median = settings.medianLatency().toNanos();
+    if (median == 0) {
+      return Duration.ZERO;
+    }
+    var sigma = Math.log((double) settings.p99Latency().toNanos() / median) / Z_99;
+    var gaussian = ThreadLocalRandom.current().nextGaussian();
+    return Duration.ofNanos((long) (median * Math.exp(sigma * gaussian)));
+  }
+
+  Map<String, Object> message(JsonNode request, int inputTokens) {
+    var text = request.path("messages").path(0).path("content").asText();
+    return Map.of(
+        "id", "msg_simulated",
+        "type", "message",
+        "role", "assistant",
+        "model", request.path("model").asText(),
+        "content", List.of(Map.of("type", "text", "text", text)),
+        "stop_reason", "end_turn",
+        "usage", Map.of("input_tokens", inputTokens, "output_tokens", settings.outputTokens()));
+  }
+
+  static Map<String, Object> error(String type, String message) {
+    return Map.of("type", "error", "error", Map.of("type", type, "message", message));
+  }
+
+  void respond(HttpServletResponse response, int status, Object body) throws IOException {
+    var bytes = objectMapper.writeValueAsBytes(body);
+    response.setStatus(status);
+    response.setContentType("application/json");
+    response.setContentLength(bytes.length);
+    response.getOutputStream().write(bytes);
+  }
+
+  /** Calls received by the simulator, how they were answered and the connections they came in. */
+  public record Stats(
+      long received,
+      long answered,
+      long rateLimited,
+      long overloaded,
+      long serverErrors,
+      int connections) {}
+
+  record Grant(boolean accepted, long waitMillis, long now) {}
+
+  /** Requests and tokens buckets of a key, refilled continuously up to their limits. */
+  static final class Budget {
+
+    private final Settings settings;
+    private double requests;
+    private double tokens;
+    private long updatedMillis = System.currentTimeMillis();
+
+    Budget(Settings settings) {
+      this.settings = settings;
+      this.requests = settings.requestsLimit();
+      this.tokens = settings.tokensLimit();
+    }
+
+    synchronized Grant take(int cost, long now) {
+      var elapsed = (double) (now - updatedMillis) / settings.interval().toMillis();
+      requests = Math.min(settings.requestsLimit(), requests + elapsed * settings.requestsLimit());
+      tokens = Math.min(settings.tokensLimit(), tokens + elapsed * settings.tokensLimit());
+      updatedMillis = now;
+      if (requests >= 1 && tokens >= cost) {
+        requests -= 1;
+        tokens -= cost;
+        return new Grant(true, 0, now);
+      }
+      var wait =
+          Math.max(
+              millisUntil(1 - requests, settings.requestsLimit()),
+              millisUntil(cost - tokens, settings.tokensLimit()));
+      return new Grant(false, wait, now);
+    }
+
+    long millisUntil(double missing, int limit) {
+      return missing <= 0 ? 0 : (long) Math.ceil(missing / limit * settings.interval().toMillis());
+    }
+
+    synchronized void headers(HttpServletResponse headers, long now) {
+      headers.addHeader(
+          "anthropic-ratelimit-requests-limit", String.valueOf(settings.requestsLimit()));
+      headers.addHeader(
+          "anthropic-ratelimit-requests-remaining", String.valueOf((long) requests));
+      headers.addHeader(
+          "anthropic-ratelimit-requests-reset",
+          resetAt(now, settings.requestsLimit() - requests, settings.requestsLimit()));
+      headers.addHeader(
+          "anthropic-ratelimit-tokens-limit", String.valueOf(settings.tokensLimit()));
+      headers.addHeader("anthropic-ratelimit-tokens-remaining", String.valueOf((long) tokens));
+      headers.addHeader(
+          "anthropic-ratelimit-tokens-reset",
+          resetAt(now, settings.tokensLimit() - tokens, settings.tokensLimit()));
+    }
+
+    /** When the bucket gets fully replenished. */
+    String resetAt(long now, double missing, int limit) {
+      return Instant.ofEpochMilli(now + millisUntil(missing, limit)).toString();
+    }
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.gcp.function.http.HttpFunction;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpStatus;
+import io.micronaut.http.MediaType;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import org.example.gcp.bqclaude.BQClaudeRemoteFunctionController.RemoteFunctionRequest;
+import org.example.gcp.bqclaude.metrics.ClaudeMetrics;
+
+/**
+ * Drives BigQuery like load through {@link HttpFunction}: a number of callers send batches of rows
+ * concurrently, and batches rejected with an error status are sent again after a pause, as
+ * BigQuery does. Batches answered with an error message fail without being retried.
+ * The report covers the rows throughput, the batch latency percentiles, the Claude API retries done
+ * by the function, the calls the simulator received that did not end up in a reply, and the
+ * connections they came in. The latency of the first batch shows what a cold instance pays.
+ *
+ * <p>Runs offline against {@link ClaudeSimulator}, sized with system properties:
+ *
+ * <pre>
+ * ./mvnw -Pload-test verify -DskipTests -Dload.batches=200 -Dload.rows=50 \
+ *     -Dsimulator.requests-limit=1000 -Dsimulator.median-latency=PT1S
+ * </pre>
+ *
+ * <p>With {@code -Dsimulator.tls=true} the simulator serves over TLS, trusted by the function for
+ * the run, to compare transport settings like {@code -Dclaude.transport.warmup=false}. Warm ups
+ * are on by default, as they are for a deployed function.
+ */
+public class LoadDriver {
+
+  /** The load to send, BigQuery retries a rejected batch up to the max attempts. */
+  public record Settings(
+      int callers,
+      int batches,
+      int rowsPerBatch,
+      int rowCharacters,
+      int maxAttempts,
+      Duration retryPause,
+      Map<String, String> userDefinedContext) {}
+
+  /** What happened while driving the load. */
+  public record Report(
+      int batches,
+      int failedBatches,
+      long rows,
+      Duration elapsed,
+      double rowsPerSecond,
+      Duration firstBatchLatency,
+      Duration p50Latency,
+      Duration p99Latency,
+      long rejectedAttempts,
+      long claudeRetries,
+      ClaudeSimulator.Stats simulator) {
+
+    /** Calls to Claude API that did not produce a reply for a row. */
+    public long wastedCalls() {
+      return simulator.received() - rows;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "batches=%d failed=%d rows=%d elapsed=%dms throughput=%.1f rows/s first=%dms p50=%dms"
+              + " p99=%dms rejected-attempts=%d claude-retries=%d claude-calls=%d rate-limited=%d"
+              + " overloaded=%d server-errors=%d wasted-calls=%d connections=%d",
+          batches,
+          failedBatches,
+          rows,
+          elapsed.toMillis(),
+          rowsPerSecond,
+          firstBatchLatency.toMillis(),
+          p50Latency.toMillis(),
+          p99Latency.toMillis(),
+          rejectedAttempts,
+          claudeRetries,
+          simulator.received(),
+          simulator.rateLimited(),
+          simulator.overloaded(),
+          simulator.serverErrors(),
+          wastedCalls(),
+          simulator.connections());
+    }
+  }
+
+  private final Settings settings;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  public LoadDriver(Settings settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * Starts the context of a function using the simulator with one key per token, functions do not
+   * close the context they are given.
+   */
+  public static ApplicationContext context(ClaudeSimulator simulator, List<String> keys) {
+    return ApplicationContext.run(
+        Map.of(
+            "micronaut.http.services.claude.url", simulator.url(),
+            "micronaut.http.services.claude.ssl.enabled", simulator.tls(),
+            "micronaut.http.services.claude.ssl.insecure-trust-all-certificates", simulator.tls(),
+            "claude.tokens", String.join(",", keys),
+            "claude.transport.warmup", System.getProperty("claude.transport.warmup", "true")));
+  }
+
+  public Report run(HttpFunction function, ClaudeSimulator simulator) {
+    var retries = retries(function);
+    var next = new AtomicInteger();
+    var latencies = Collections.synchronizedList(new ArrayList<Long>());
+    var firstBatch = new AtomicLong();
+    var failed = new AtomicInteger();
+    var rejected = new LongAdder();
+    var rows = new LongAdder();
+    var start = System.nanoTime();
+    try (var callers = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int caller = 0; caller < settings.callers(); caller++) {
+        callers.submit(
+            () -> {
+              for (var batch = next.getAndIncrement();
+                  batch < settings.batches();
+                  batch = next.getAndIncrement()) {
+                var batchStart = System.nanoTime();
+                if (send(function, batch, rejected)) {
+                  rows.add(settings.rowsPerBatch());
+                } else {
+                  failed.incrementAndGet();
+                }
+                latencies.add(System.nanoTime() - batchStart);
+                if (batch == 0) {
+                  firstBatch.set(System.nanoTime() - batchStart);
+                }
+              }
+              return null;
+            });
+      }
+    }
+    var elapsed = Duration.ofNanos(System.nanoTime() - start);
+    var sorted = latencies.stream().sorted().toList();
+    return new Report(
+        settings.batches(),
+        failed.get(),
+        rows.sum(),
+        elapsed,
+        rows.sum() / Math.max(0.001, elapsed.toNanos() / 1e9),
+        Duration.ofNanos(firstBatch.get()),
+        percentile(sorted, 0.5),
+        percentile(sorted, 0.99),
+        rejected.sum(),
+        retries(function) - retries,
+        simulator.stats());
+  }
+
+  /** Sends the batch until it gets answered or runs out of attempts, false when it failed. */
+  boolean send(HttpFunction function, int batch, LongAdder rejected) throws Exception {
+    var request =
+        new RemoteFunctionRequest(
+            "load-" + batch,
+            "load-driver",
+            "load-driver",
+            settings.userDefinedContext(),
+            IntStream.range(0, settings.rowsPerBatch())
+                .mapToObj(row -> List.of(text(batch, row)))
+                .toList());
+    for (int attempt = 1; attempt <= settings.maxAttempts(); attempt++) {
+      var response =
+          function.invoke(
+              HttpRequest.POST("/", request).contentType(MediaType.APPLICATION_JSON_TYPE));
+      if (response.getStatus() == HttpStatus.OK) {
+        return objectMapper
+            .readTree(response.getBodyAsText())
+            .path("errorMessage")
+            .isMissingNode();
+      }
+      rejected.increment();
+      Thread.sleep(settings.retryPause().toMillis());
+    }
+    return false;
+  }
+
+  String text(int batch, int row) {
+    var prefix = "batch " + batch + " row " + row + " ";
+    return prefix + "x".repeat(Math.max(0, settings.rowCharacters() - prefix.length()));
+  }
+
+  static long retries(HttpFunction function) {
+    return function
+        .getApplicationContext()
+        .getBean(ClaudeMetrics.class)
+        .registry()
+        .find(ClaudeMetrics.RETRIES)
+        .timers()
+        .stream()
+        .mapToLong(timer -> timer.count())
+        .sum();
+  }
+
+  static Duration percentile(List<Long> sorted, double percentile) {
+    if (sorted.isEmpty()) {
+      return Duration.ZERO;
+    }
+    var index = (int) Math.ceil(percentile * sorted.size()) - 1;
+    return Duration.ofNanos(sorted.get(Math.max(0, Math.min(sorted.size() - 1, index))));
+  }
+
+  public static void main(String[] args) throws Exception {
+    var keys =
+        IntStream.range(0, Integer.getInteger("simulator.keys", 2))
+            .mapToObj(i -> "simulated-key-" + i)
+            .toList();
+    var defaults = ClaudeSimulator.Settings.defaults();
+    var simulatorSettings =
+        new ClaudeSimulator.Settings(
+            Integer.getInteger("simulator.requests-limit", defaults.requestsLimit()),
+            Integer.getInteger("simulator.tokens-limit", defaults.tokensLimit()),
+            duration("simulator.interval", defaults.interval()),
+            duration("simulator.median-latency", defaults.medianLatency()),
+            duration("simulator.p99-latency", defaults.p99Latency()),
+            Double.parseDouble(
+                System.getProperty(
+                    "simulator.overloaded-rate", String.valueOf(defaults.overloadedRate()))),
+            Double.parseDouble(
+                System.getProperty(
+                    "simulator.server-error-rate", String.valueOf(defaults.serverErrorRate()))),
+            Integer.getInteger("simulator.output-tokens", defaults.outputTokens()));
+    var loadSettings =
+        new Settings(
+            Integer.getInteger("load.callers", 4),
+            Integer.getInteger("load.batches", 20),
+            Integer.getInteger("load.rows", 50),
+            Integer.getInteger("load.row-characters", 2048),
+            Integer.getInteger("load.max-attempts", 5),
+            duration("load.retry-pause", Duration.ofSeconds(5)),
+            Map.of("per-row-errors", System.getProperty("load.per-row-errors", "false")));
+    try (var simulator =
+            new ClaudeSimulator(simulatorSettings, keys, Boolean.getBoolean("simulator.tls"));
+        var context = context(simulator, keys);
+        var function = new HttpFunction(context)) {
+      System.out.println(new LoadDriver(loadSettings).run(function, simulator));
+    }
+  }
+
+  static Duration duration(String property, Duration defaultValue) {
+    var value = System.getProperty(property);
+    return value == null ? defaultValue : Duration.parse(value);
+  }
+}
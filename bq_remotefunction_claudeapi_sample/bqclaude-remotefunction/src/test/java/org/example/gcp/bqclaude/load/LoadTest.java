@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.example.gcp.bqclaude.load;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import io.micronaut.gcp.function.http.HttpFunction;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Small runs of the load driver against the simulator, checking the function copes with rate
+ * limiting and injected errors. Larger runs are meant for {@link LoadDriver#main}.
+ */
+public class LoadTest {
+
+  static final List<String> KEYS = List.of("simulated-key-0", "simulated-key-1");
+
+  @Test
+  public void testRateLimitedLoadIsAnswered() throws Exception {
+    // budgets of 8 requests per second and key, so 60 rows can not go through at once even on a
+    // cold JVM
+    var simulatorSettings =
+        new ClaudeSimulator.Settings(
+            8,
+            1_000_000,
+            Duration.ofSeconds(1),
+            Duration.ofMillis(20),
+            Duration.ofMillis(80),
+            0,
+            0,
+            10);
+    var loadSettings =
+        new LoadDriver.Settings(4, 6, 10, 200, 5, Duration.ofMillis(500), Map.of());
+    try (var simulator = new ClaudeSimulator(simulatorSettings, KEYS);
+        var context = LoadDriver.context(simulator, KEYS);
+        var function = new HttpFunction(context)) {
+      var report = new LoadDriver(loadSettings).run(function, simulator);
+      assertEquals(0, report.failedBatches(), report.toString());
+      assertEquals(60, report.rows());
+      assertTrue(report.simulator().rateLimited() > 0, report.toString());
+      assertTrue(report.claudeRetries() > 0, report.toString());
+      assertEquals(report.simulator().rateLimited(), report.wastedCalls());
+      assertTrue(report.p99Latency().compareTo(report.p50Latency()) >= 0);
+    }
+  }
+
+  @Test
+  public void testRateLimitedBatchesKeepTheirCompletedRows() throws Exception {
+    // with a deadline too short to wait for the budgets, rate limited batches get rejected, and
+    // their rows run one at a time so none is in flight when the batch gets rejected
+    var simulatorSettings =
+        new ClaudeSimulator.Settings(
+            4,
+            1_000_000,
+            Duration.ofSeconds(1),
+            Duration.ofMillis(5),
+            Duration.ofMillis(20),
+            0,
+            0,
+            10);
+    var loadSettings =
+        new LoadDriver.Settings(
+            2,
+            4,
+            10,
+            200,
+            20,
+            Duration.ofMillis(300),
+            Map.of("deadline-seconds", "1", "max-concurrency", "1"));
+    try (var simulator = new ClaudeSimulator(simulatorSettings, KEYS);
+        var context = LoadDriver.context(simulator, KEYS);
+        var function = new HttpFunction(context)) {
+      var report = new LoadDriver(loadSettings).run(function, simulator);
+      assertEquals(0, report.failedBatches(), report.toString());
+      assertTrue(report.rejectedAttempts() > 0, report.toString());
+      // rows answered on a rejected attempt are kept, so only the rate limited calls are wasted
+      assertEquals(report.simulator().rateLimited(), report.wastedCalls(), report.toString());
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import org.example.gcp.bqclaude.TokenStoreConfiguration;
+import org.example.gcp.bqclaude.client.Interactions;
+import org.example.gcp.bqclaude.exceptions.TokenExhaustedException;
+import org.example.gcp.bqclaude.tokens.TokenStateStore.KeyReset;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class RedisTokenStateStoreTest {
+
+  FakeRedis redis;
+
+  @BeforeEach
+  void startFakeRedis() throws IOException {
+    redis = new FakeRedis();
+  }
+
+  @AfterEach
+  void stopFakeRedis() throws IOException {
+    redis.close();
+  }
+
+  RedisTokenStateStore store() {
+    return new RedisTokenStateStore(
+        new TokenStoreConfiguration(
+            "redis", "redis://localhost:" + redis.port(), "test:resets", Duration.ofSeconds(1)));
+  }
+
+  TokenDispatcher instance(RedisTokenStateStore store) {
+    var dispatcher = TokenDispatcherTest.dispatcher("first");
+    dispatcher.stateStore = store;
+    return dispatcher;
+  }
+
+  @Test
+  public void testKeepsTheResetsStillPending() {
+    var store = store();
+    try {
+      // publishing is fire and forget, but the commands are sent in order once connected
+      store.connection().join();
+      var now = System.currentTimeMillis();
+      store.publish(new KeyReset("some-model", "passed", now - 1000));
+      store.publish(new KeyReset("some-model", "pending", now + 1000));
+      store.publish(new KeyReset("some-model", "pending", now + 500));
+      assertEquals(
+          List.of(new KeyReset("some-model", "pending", now + 1000)), store.resets(now).join());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  public void testInstancesSkipTokensRateLimitedByOthers() throws Exception {
+    var firstStore = store();
+    var secondStore = store();
+    try {
+      var first = instance(firstStore);
+      var second = instance(secondStore);
+      assertEquals("first", second.dispatchToken());
+
+      assertThrows(
+          TokenExhaustedException.class,
+          () ->
+              first.informTokenUsage(
+                  new Interactions.ClaudeResponse(
+                      "first",
+                      Interactions.Body.RateLimited.create(),
+                      Map.of("retry-after", List.of("30"), "x-should-retry", List.of("true")))));
+      var deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+      while (second.nextAvailableIn() == 0 && System.nanoTime() < deadline) {
+        second.refresh(System.currentTimeMillis()).join();
+        Thread.sleep(10);
+      }
+      var wait = second.nextAvailableIn();
+      assertTrue(wait > 25000 && wait <= 30000);
+      assertThrows(TokenExhaustedException.class, () -> second.dispatchToken());
+    } finally {
+      firstStore.close();
+      secondStore.close();
+    }
+  }
+
+  /**
+   * Speaks enough of the Redis protocol for the sorted set commands of the store, answering the
+   * handshake commands so the client falls back to the version 2 of the protocol.
+   */
+  static class FakeRedis implements AutoCloseable {
+
+    final ServerSocket server = new ServerSocket(0);
+    final Map<String, ConcurrentSkipListMap<String, Double>> sets = new ConcurrentHashMap<>();
+
+    FakeRedis() throws IOException {
+      Thread.ofVirtual().start(this::accept);
+    }
+
+    int port() {
+      return server.getLocalPort();
+    }
+
+    void accept() {
+      while (!server.isClosed()) {
+        try {
+          var socket = server.accept();
+          Thread.ofVirtual().start(() -> serve(socket));
+        } catch (IOException ex) {
+          return;
+        }
+      }
+    }
+
+    void serve(Socket socket) {
+      try (socket) {
+        var in = new BufferedInputStream(socket.getInputStream());
+        var out = socket.getOutputStream();
+        while (true) {
+          var command = read(in);
+          if (command == null) {
+            return;
+          }
+          write(out, execute(command));
+        }
+      } catch (IOException ex) {
+        // the client went away
+      }
+    }
+
+    synchronized String execute(List<String> command) {
+      var args = command.subList(1, command.size());
+      return switch (command.getFirst().toUpperCase()) {
+        case "PING" -> "+PONG\r\n";
+        case "CLIENT", "SELECT" -> "+OK\r\n";
+        case "ZADD" -> {
+          var set = sets.computeIfAbsent(args.get(0), __ -> new ConcurrentSkipListMap<>());
+          var greater = args.get(1).equalsIgnoreCase("GT");
+          var score = Double.parseDouble(args.get(greater ? 2 : 1));
+          var member = args.get(greater ? 3 : 2);
+          var current = set.get(member);
+          if (current == null || !greater || score > current) {
+            set.put(member, score);
+          }
+          yield ":" + (current == null ? 1 : 0) + "\r\n";
+        }
+        case "ZREMRANGEBYSCORE" -> {
+          var set = sets.getOrDefault(args.get(0), new ConcurrentSkipListMap<>());
+          var removed =
+              set.entrySet()
+                  .removeIf(entry -> inRange(entry.getValue(), args.get(1), args.get(2)));
+          yield ":" + (removed ? 1 : 0) + "\r\n";
+        }
+        case "ZRANGEBYSCORE" -> {
+          var set = sets.getOrDefault(args.get(0), new ConcurrentSkipListMap<>());
+          var reply = new ArrayList<String>();
+          set.forEach(
+              (member, score) -> {
+                if (inRange(score, args.get(1), args.get(2))) {
+                  reply.add(member);
+                  reply.add(String.valueOf(score));
+                }
+              });
+          var array = new StringBuilder("*" + reply.size() + "\r\n");
+          reply.forEach(value -> array.append(bulk(value)));
+          yield array.toString();
+        }
+        default -> "-ERR unknown command '" + command.getFirst() + "'\r\n";
+      };
+    }
+
+    static boolean inRange(double score, String min, String max) {
+      return bound(min, score, true) && bound(max, score, false);
+    }
+
+    static boolean bound(String bound, double score, boolean lower) {
+      if (bound.equals("-inf") || bound.equals("+inf")) {
+        return lower ? bound.equals("-inf") : bound.equals("+inf");
+      }
+      var exclusive = bound.startsWith("(");
+      var value = Double.parseDouble(exclusive ? bound.substring(1) : bound);
+      if (lower) {
+        return exclusive ? score > value : score >= value;
+      }
+      return exclusive ? score < value : score <= value;
+    }
+
+    static String bulk(String value) {
+      return "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+    }
+
+    static List<String> read(InputStream in) throws IOException {
+      var header = line(in);
+      if (header == null) {
+        return null;
+      }
+      var count = Integer.parseInt(header.substring(1));
+      var args = new ArrayList<String>(count);
+      for (int i = 0; i < count; i++) {
+        var length = Integer.parseInt(line(in).substring(1));
+        args.add(new String(in.readNBytes(length), StandardCharsets.UTF_8));
+        line(in);
+      }
+      return args;
+    }
+
+    static String line(InputStream in) throws IOException {
+      var line = new StringBuilder();
+      int next;
+      while ((next = in.read()) != '\n') {
+        if (next < 0) {
+          return null;
+        }
+        if (next != '\r') {
+          line.append((char) next);
+        }
+      }
+      return line.toString();
+    }
+
+    static void write(OutputStream out, String reply) throws IOException {
+      out.write(reply.getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.example.gcp.bqclaude.ClaudeConfiguration;
+import org.example.gcp.bqclaude.ConcurrencyConfiguration;
+import org.example.gcp.bqclaude.ExecutionConfiguration;
+import org.example.gcp.bqclaude.TokenBudgetConfiguration;
+import org.example.gcp.bqclaude.TokenStoreConfiguration;
+import org.example.gcp.bqclaude.client.Interactions;
+import org.example.gcp.bqclaude.tokens.TokenEstimator.TokenEstimate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures {@link TokenDispatcher#dispatchToken()} under contention, alone, while responses keep
+ * updating the token states and when reserving estimated tokens on their budgets. Run it alone
+ * with:
+ *
+ * <pre>
+ * ./mvnw -Pbenchmarks verify -DskipTests -Djmh.includes=TokenDispatcherBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenDispatcherBenchmark {
+
+  @Param({"1", "4", "16"})
+  int tokenCount;
+
+  static final TokenEstimate ESTIMATE = new TokenEstimate(2048, 512, 256);
+
+  TokenDispatcher dispatcher;
+  List<Interactions.ClaudeResponse> responses;
+
+  @Setup
+  public void setup() {
+    var tokens = IntStream.range(0, tokenCount).mapToObj(i -> "token-" + i).toList();
+    dispatcher = new TokenDispatcher();
+    dispatcher.configuration = new ClaudeConfiguration("some-model", "2023-06-01", tokens);
+    dispatcher.executionConfiguration = new ExecutionConfiguration(true, 32, 8, false, true);
+    dispatcher.concurrencyConfiguration = new ConcurrencyConfiguration(true, 1, 64, 0.5, 2.0);
+    dispatcher.budgetConfiguration = new TokenBudgetConfiguration(true, 4.0, 0, 0);
+    dispatcher.storeConfiguration =
+        new TokenStoreConfiguration("memory", null, "bqclaude:token-resets", Duration.ofSeconds(1));
+    dispatcher.stateStore = new InMemoryTokenStateStore();
+    var reset = Instant.now().plusSeconds(60).toString();
+    responses =
+        tokens.stream()
+            .map(
+                token ->
+                    new Interactions.ClaudeResponse(
+                        token,
+                        new Interactions.Body.OK(
+                            List.of(), "id", "some-model", null, null, null, "message", null),
+                        Map.of(
+                            "anthropic-ratelimit-requests-limit", List.of("1000"),
+                            "anthropic-ratelimit-requests-remaining", List.of("500"),
+                            "anthropic-ratelimit-requests-reset", List.of(reset),
+                            "anthropic-ratelimit-tokens-limit", List.of("100000"),
+                            "anthropic-ratelimit-tokens-remaining", List.of("80000"),
+                            "anthropic-ratelimit-tokens-reset", List.of(reset))))
+            .toList();
+    responses.forEach(dispatcher::informTokenUsage);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String dispatch() {
+    return dispatcher.dispatchToken();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String reserve() {
+    var token = dispatcher.dispatchToken(ESTIMATE);
+    dispatcher.releaseBudget(token, ESTIMATE, null);
+    return token;
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(7)
+  public String mixedDispatch() {
+    return dispatcher.dispatchToken();
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public Interactions.ClaudeResponse mixedInform() {
+    var response = responses.get((int) (System.nanoTime() % responses.size()));
+    return dispatcher.informTokenUsage(response);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder().include(TokenDispatcherBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
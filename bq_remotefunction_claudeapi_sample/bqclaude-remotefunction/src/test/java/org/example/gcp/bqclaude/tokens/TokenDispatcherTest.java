@@ -0,0 +1,307 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import org.example.gcp.bqclaude.ClaudeConfiguration;
+import org.example.gcp.bqclaude.ConcurrencyConfiguration;
+import org.example.gcp.bqclaude.ExecutionConfiguration;
+import org.example.gcp.bqclaude.RetryConfiguration;
+import org.example.gcp.bqclaude.TokenBudgetConfiguration;
+import org.example.gcp.bqclaude.TokenStoreConfiguration;
+import org.example.gcp.bqclaude.client.Interactions;
+import org.example.gcp.bqclaude.exceptions.TokenExhaustedException;
+import org.example.gcp.bqclaude.tokens.TokenEstimator.TokenEstimate;
+import org.junit.jupiter.api.Test;
+
+public class TokenDispatcherTest {
+
+  static TokenDispatcher dispatcher(String... tokens) {
+    return dispatcher(new TokenBudgetConfiguration(true, 4.0, 0, 0), tokens);
+  }
+
+  static TokenDispatcher dispatcher(TokenBudgetConfiguration budget, String... tokens) {
+    var dispatcher = new TokenDispatcher();
+    dispatcher.configuration = new ClaudeConfiguration("some-model", "2023-06-01", List.of(tokens));
+    dispatcher.executionConfiguration = new ExecutionConfiguration(true, 32, 8, false, true);
+    dispatcher.concurrencyConfiguration = new ConcurrencyConfiguration(true, 1, 64, 0.5, 2.0);
+    dispatcher.retryConfiguration =
+        new RetryConfiguration(10, Duration.ofSeconds(5), Duration.ofSeconds(540));
+    dispatcher.budgetConfiguration = budget;
+    dispatcher.storeConfiguration =
+        new TokenStoreConfiguration("memory", null, "bqclaude:token-resets", Duration.ofSeconds(1));
+    dispatcher.stateStore = new InMemoryTokenStateStore();
+    return dispatcher;
+  }
+
+  static Interactions.ClaudeResponse ok(String token, Map<String, List<String>> headers) {
+    return new Interactions.ClaudeResponse(
+        token,
+        new Interactions.Body.OK(List.of(), "id", "some-model", null, null, null, "message", null),
+        headers);
+  }
+
+  static Map<String, List<String>> requestBudget(long limit, long remaining, Instant reset) {
+    return Map.of(
+        "anthropic-ratelimit-requests-limit", List.of(String.valueOf(limit)),
+        "anthropic-ratelimit-requests-remaining", List.of(String.valueOf(remaining)),
+        "anthropic-ratelimit-requests-reset", List.of(reset.toString()));
+  }
+
+  @Test
+  public void testParsesRateLimitHeaders() {
+    var reset = Instant.parse("2024-08-12T19:32:54Z");
+    var limits =
+        RateLimits.fromHeaders(
+            Map.of(
+                "anthropic-ratelimit-requests-limit", List.of("50"),
+                "anthropic-ratelimit-requests-remaining", List.of("10"),
+                "anthropic-ratelimit-requests-reset", List.of(reset.toString()),
+                "anthropic-ratelimit-tokens-limit", List.of("40000"),
+                "anthropic-ratelimit-tokens-remaining", List.of("30000"),
+                "retry-after", List.of("7"),
+                "x-should-retry", List.of("true")));
+    assertEquals(50, limits.requestsLimit());
+    assertEquals(10, limits.requestsRemaining());
+    assertEquals(reset.toEpochMilli(), limits.requestsReset());
+    assertEquals(40000, limits.tokensLimit());
+    assertEquals(30000, limits.tokensRemaining());
+    assertEquals(RateLimits.UNKNOWN, limits.tokensReset());
+    assertEquals(7000, limits.retryAfterMillis());
+    assertTrue(limits.shouldRetry());
+  }
+
+  @Test
+  public void testPrefersTokenWithMostHeadroom() {
+    var dispatcher = dispatcher("first", "second");
+    var reset = Instant.now().plusSeconds(60);
+    dispatcher.informTokenUsage(ok("first", requestBudget(100, 5, reset)));
+    dispatcher.informTokenUsage(ok("second", requestBudget(100, 80, reset)));
+    for (int i = 0; i < 10; i++) {
+      assertEquals("second", dispatcher.dispatchToken());
+    }
+  }
+
+  @Test
+  public void testSkipsExhaustedTokensUntilReset() {
+    var dispatcher = dispatcher("first", "second");
+    dispatcher.informTokenUsage(ok("first", requestBudget(100, 0, Instant.now().plusSeconds(60))));
+    dispatcher.informTokenUsage(ok("second", requestBudget(100, 0, Instant.now().minusSeconds(1))));
+    for (int i = 0; i < 10; i++) {
+      assertEquals("second", dispatcher.dispatchToken());
+    }
+    dispatcher.informTokenUsage(ok("second", requestBudget(100, 0, Instant.now().plusSeconds(60))));
+    assertThrows(TokenExhaustedException.class, () -> dispatcher.dispatchToken());
+  }
+
+  @Test
+  public void testRateLimitedTokensRestUntilRetryAfter() {
+    var dispatcher = dispatcher("first", "second");
+    assertThrows(
+        TokenExhaustedException.class,
+        () ->
+            dispatcher.informTokenUsage(
+                new Interactions.ClaudeResponse(
+                    "first",
+                    Interactions.Body.RateLimited.create(),
+                    Map.of("retry-after", List.of("30"), "x-should-retry", List.of("true")))));
+    // another token is still usable, so there is no need to wait
+    assertEquals(0, dispatcher.nextAvailableIn());
+    assertEquals("second", dispatcher.dispatchToken());
+
+    // rejected without headers, the token rests for the fallback delay
+    assertThrows(
+        TokenExhaustedException.class,
+        () ->
+            dispatcher.informTokenUsage(
+                new Interactions.ClaudeResponse(
+                    "second", Interactions.Body.RateLimited.create(), Map.of())));
+    var wait = dispatcher.nextAvailableIn();
+    assertTrue(wait > 4000 && wait <= 5000);
+  }
+
+  @Test
+  public void testKeepsTokenStatePerModel() {
+    var dispatcher = dispatcher("first");
+    var exhausted = requestBudget(100, 0, Instant.now().plusSeconds(60));
+    dispatcher.informTokenUsage("other-model", ok("first", exhausted));
+    assertTrue(dispatcher.nextAvailableIn("other-model") > 0);
+    assertThrows(
+        TokenExhaustedException.class,
+        () -> dispatcher.dispatchToken("other-model", TokenEstimate.NONE));
+    // the configured model has its own limits, while the permits are shared
+    assertEquals(0, dispatcher.nextAvailableIn());
+    assertEquals("first", dispatcher.dispatchToken());
+    assertSame(dispatcher.key("first").permits, dispatcher.key("other-model", "first").permits);
+  }
+
+  @Test
+  public void testAdaptsConcurrencyLimitToOutcomes() {
+    var dispatcher = dispatcher("first");
+    assertEquals(Map.of("token-0", 8), dispatcher.concurrencyLimits());
+
+    // a full limit worth of successes with stable latency grows the limit by one
+    for (int i = 0; i < 8; i++) {
+      dispatcher.acquirePermit("first");
+      dispatcher.releasePermit("first", System.nanoTime(), TokenDispatcher.Outcome.SUCCESS);
+    }
+    assertEquals(9, dispatcher.concurrencyLimits().get("token-0"));
+
+    // rejections of requests started before the cut count only once
+    var start = System.nanoTime();
+    dispatcher.acquirePermit("first");
+    dispatcher.acquirePermit("first");
+    dispatcher.releasePermit("first", start, TokenDispatcher.Outcome.OVERLOADED);
+    dispatcher.releasePermit("first", start, TokenDispatcher.Outcome.OVERLOADED);
+    assertEquals(4, dispatcher.concurrencyLimits().get("token-0"));
+
+    // other failures do not tell anything about the capacity
+    dispatcher.acquirePermit("first");
+    dispatcher.releasePermit("first", System.nanoTime(), TokenDispatcher.Outcome.FAILED);
+    assertEquals(4, dispatcher.concurrencyLimits().get("token-0"));
+  }
+
+  @Test
+  public void testShrunkLimitRetiresPermits() {
+    var dispatcher = dispatcher("first");
+    var start = System.nanoTime();
+    for (int i = 0; i < 8; i++) {
+      dispatcher.acquirePermit("first");
+    }
+    var waiting = dispatcher.acquirePermitAsync("first");
+    dispatcher.releasePermit("first", start, TokenDispatcher.Outcome.OVERLOADED);
+    // the waiter gets in only once the requests in flight go below the new limit of 4
+    for (int i = 0; i < 3; i++) {
+      dispatcher.releasePermit("first");
+      assertFalse(waiting.isDone());
+    }
+    dispatcher.releasePermit("first");
+    assertTrue(waiting.isDone());
+  }
+
+  @Test
+  public void testParsesInputAndOutputTokenBudgets() {
+    var reset = Instant.parse("2024-08-12T19:32:54Z");
+    var limits =
+        RateLimits.fromHeaders(
+            Map.of(
+                "anthropic-ratelimit-input-tokens-limit", List.of("40000"),
+                "anthropic-ratelimit-input-tokens-remaining", List.of("30000"),
+                "anthropic-ratelimit-input-tokens-reset", List.of(reset.toString()),
+                "anthropic-ratelimit-output-tokens-limit", List.of("8000"),
+                "anthropic-ratelimit-output-tokens-remaining", List.of("2000")));
+    assertEquals(new RateLimits.Budget(40000, 30000, reset.toEpochMilli()), limits.inputTokens());
+    assertEquals(new RateLimits.Budget(8000, 2000, RateLimits.UNKNOWN), limits.outputTokens());
+    assertEquals(2000, limits.tokensRemaining());
+
+    // a single tokens budget bounds the input tokens
+    var single =
+        RateLimits.fromHeaders(
+            Map.of(
+                "anthropic-ratelimit-tokens-limit", List.of("1000"),
+                "anthropic-ratelimit-tokens-remaining", List.of("500")));
+    assertEquals(new RateLimits.Budget(1000, 500, RateLimits.UNKNOWN), single.inputTokens());
+    assertFalse(single.outputTokens().known());
+  }
+
+  @Test
+  public void testEstimatesAndCalibratesTokens() {
+    var estimator = new TokenEstimator(new TokenBudgetConfiguration(true, 4.0, 0, 0));
+    var request =
+        Interactions.ClaudeRequest.parse(
+            "some-model", 256, "a".repeat(400), List.of("b".repeat(800)));
+    var estimate = estimator.estimate(request);
+    assertEquals(1200, estimate.characters());
+    assertEquals(300 + TokenEstimator.MESSAGE_OVERHEAD, estimate.inputTokens());
+    assertEquals(256, estimate.outputTokens());
+
+    // prompts reported with fewer tokens than estimated move the ratio up
+    estimator.calibrate(estimate, new Interactions.Body.Usage(100, 10, 50, 50));
+    assertEquals(4.2, estimator.charactersPerToken(), 0.0001);
+
+    var disabled = new TokenEstimator(new TokenBudgetConfiguration(false, 4.0, 0, 0));
+    assertSame(TokenEstimate.NONE, disabled.estimate(request));
+  }
+
+  @Test
+  public void testReservesEstimatedTokensOnInformedBudgets() {
+    var dispatcher = dispatcher("first", "second");
+    var reset = Instant.now().plusSeconds(60).toString();
+    var budget =
+        Map.of(
+            "anthropic-ratelimit-input-tokens-limit", List.of("1000"),
+            "anthropic-ratelimit-input-tokens-remaining", List.of("1000"),
+            "anthropic-ratelimit-input-tokens-reset", List.of(reset));
+    dispatcher.informTokenUsage(ok("first", budget));
+    dispatcher.informTokenUsage(ok("second", budget));
+    var estimate = new TokenEstimate(2400, 600, 0);
+
+    var first = dispatcher.dispatchToken(estimate);
+    var second = dispatcher.dispatchToken(estimate);
+    assertNotEquals(first, second);
+    assertEquals(Map.of("token-0", 600L, "token-1", 600L), dispatcher.reservedTokens());
+    // neither token has room for another one until a reservation is given back
+    assertThrows(TokenExhaustedException.class, () -> dispatcher.dispatchToken(estimate));
+    assertTrue(dispatcher.nextAvailableIn() > 0);
+    // smaller requests still fit
+    dispatcher.releaseBudget(
+        dispatcher.dispatchToken(new TokenEstimate(400, 100, 0)),
+        new TokenEstimate(400, 100, 0),
+        null);
+
+    dispatcher.releaseBudget(first, estimate, new Interactions.Body.Usage(500, 10, 0, 0));
+    assertEquals(first, dispatcher.dispatchToken(estimate));
+  }
+
+  @Test
+  public void testConfiguredBudgetsTakeTheReportedUsage() {
+    var dispatcher = dispatcher(new TokenBudgetConfiguration(true, 4.0, 1000, 0), "first");
+    var estimate = new TokenEstimate(2400, 600, 0);
+    assertEquals("first", dispatcher.dispatchToken(estimate));
+    dispatcher.releaseBudget("first", estimate, new Interactions.Body.Usage(900, 10, 0, 0));
+
+    // with 100 tokens left the next 600 come after refilling 500 at 1000 per minute
+    assertThrows(TokenExhaustedException.class, () -> dispatcher.dispatchToken(estimate));
+    var wait = dispatcher.nextAvailableIn();
+    assertTrue(wait > 29000 && wait <= 30000, "waiting " + wait);
+    // requests dispatched without an estimate are not bounded by the budgets
+    assertEquals("first", dispatcher.dispatchToken());
+  }
+
+  @Test
+  public void testCancelledRequestsKeepTheirTokensUsed() {
+    var dispatcher = dispatcher("first");
+    var reset = Instant.now().plusSeconds(60).toString();
+    dispatcher.informTokenUsage(
+        ok(
+            "first",
+            Map.of(
+                "anthropic-ratelimit-input-tokens-limit", List.of("1000"),
+                "anthropic-ratelimit-input-tokens-remaining", List.of("1000"),
+                "anthropic-ratelimit-input-tokens-reset", List.of(reset))));
+    var estimate = new TokenEstimate(2400, 600, 0);
+
+    dispatcher.consumeBudget("some-model", dispatcher.dispatchToken(estimate), estimate);
+    assertEquals(Map.of("token-0", 0L), dispatcher.reservedTokens());
+    // the tokens of the cancelled request are not available again until the budget refills
+    assertThrows(TokenExhaustedException.class, () -> dispatcher.dispatchToken(estimate));
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 Google.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.example.gcp.bqclaude.tokens;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the capture of the token state from the headers of a Claude API response, which
+ * happens for every row. The responses carry 20 headers, like the ones returned by Claude API, for
+ * a token with budget left and for a rate limited one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenHeadersBenchmark {
+
+  @Param({"false", "true"})
+  boolean rateLimited;
+
+  Map<String, List<String>> headers;
+
+  @Setup
+  public void setup() {
+    var reset = Instant.now().plusSeconds(60).toString();
+    headers = new LinkedHashMap<>();
+    headers.put("Date", List.of("Mon, 12 Aug 2024 19:32:54 GMT"));
+    headers.put("Content-Type", List.of("application/json"));
+    headers.put("Content-Length", List.of("512"));
+    headers.put("Connection", List.of("keep-alive"));
+    headers.put("request-id", List.of("req_018EeWyXxfu5pfWkrYcMdjWG"));
+    headers.put("via", List.of("1.1 google"));
+    headers.put("cf-cache-status", List.of("DYNAMIC"));
+    headers.put("Server", List.of("cloudflare"));
+    headers.put("CF-RAY", List.of("8b2a3c4d5e6f7a8b-IAD"));
+    headers.put("anthropic-ratelimit-requests-limit", List.of("4000"));
+    headers.put("anthropic-ratelimit-requests-remaining", List.of(rateLimited ? "0" : "3999"));
+    headers.put("anthropic-ratelimit-requests-reset", List.of(reset));
+    headers.put("anthropic-ratelimit-input-tokens-limit", List.of("400000"));
+    headers.put("anthropic-ratelimit-input-tokens-remaining", List.of("399000"));
+    headers.put("anthropic-ratelimit-input-tokens-reset", List.of(reset));
+    headers.put("anthropic-ratelimit-output-tokens-limit", List.of("80000"));
+    headers.put("anthropic-ratelimit-output-tokens-remaining", List.of("79000"));
+    headers.put("anthropic-ratelimit-output-tokens-reset", List.of(reset));
+    headers.put("retry-after", List.of(rateLimited ? "30" : "0"));
+    headers.put("x-should-retry", List.of(String.valueOf(rateLimited)));
+  }
+
+  @Benchmark
+  public TokenDispatcher.Token captureToken() {
+    return TokenDispatcher.Token.captureTokenFromHeaders("token-0", headers);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(
+            new OptionsBuilder().include(TokenHeadersBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
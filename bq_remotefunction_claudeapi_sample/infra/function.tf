@@ -36,7 +36,7 @@ resource "google_cloudfunctions2_function" "function" {
   }
 
   service_config {
-    min_instance_count               = 1
+    min_instance_count               = var.min_instance_count
     max_instance_count               = 1
     max_instance_request_concurrency = 3
     available_memory                 = "2G"
@@ -54,6 +54,12 @@ variable "system_prompt" {
     default = ""
 }
 
+variable "min_instance_count" {
+    type        = number
+    description = "Function instances kept warm, 0 lets the function scale to zero when idle."
+    default     = 1
+}
+
 
 output "remote_service_url" {
     value = google_cloudfunctions2_function.function.url
@@ -13,7 +13,7 @@ PROJECT=$1
 
 pushd "bqclaude-remotefunction"
 
-mvn clean install
+mvn clean install -Dmicronaut.aot.enabled=true
 
 popd
 